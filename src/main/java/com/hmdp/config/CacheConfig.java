@@ -0,0 +1,115 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.CacheInvalidationBus;
+import com.hmdp.utils.CacheRebuildExecutor;
+import com.hmdp.utils.CacheSerializer;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.KryoCacheCodec;
+import com.hmdp.utils.LocalCache;
+import com.hmdp.utils.LocalCacheInvalidationBus;
+import com.hmdp.utils.RedisCacheInvalidationBus;
+import com.hmdp.utils.SingleFlight;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@Configuration
+public class CacheConfig {
+
+    @Bean
+    public LocalCache localCache(CacheProperties cacheProperties, MeterRegistry meterRegistry) {
+        CacheProperties.Local local = cacheProperties.getLocal();
+        LocalCache localCache = new LocalCache(local.getMaximumSize(), local.getMaximumWeight());
+        // 命中、未命中、淘汰次数，通过actuator的/actuator/metrics查看
+        FunctionCounter.builder("cache.local.hits", localCache, LocalCache::hitCount).register(meterRegistry);
+        FunctionCounter.builder("cache.local.misses", localCache, LocalCache::missCount).register(meterRegistry);
+        FunctionCounter.builder("cache.local.evictions", localCache, LocalCache::evictionCount).register(meterRegistry);
+        Gauge.builder("cache.local.size", localCache, LocalCache::size).register(meterRegistry);
+        Gauge.builder("cache.local.weight", localCache, LocalCache::weight).register(meterRegistry);
+        return localCache;
+    }
+
+    @Bean
+    @ConditionalOnProperty(prefix = "hmdp.cache.invalidation", name = "mode", havingValue = "redis", matchIfMissing = true)
+    public CacheInvalidationBus redisCacheInvalidationBus(StringRedisTemplate stringRedisTemplate,
+                                                          RedisMessageListenerContainer listenerContainer,
+                                                          CacheProperties cacheProperties) {
+        CacheProperties.Invalidation invalidation = cacheProperties.getInvalidation();
+        return new RedisCacheInvalidationBus(stringRedisTemplate, listenerContainer, invalidation.getChannel(),
+                invalidation.getFlushInterval().toMillis(), invalidation.getMaxBatchSize());
+    }
+
+    @Bean
+    @ConditionalOnProperty(prefix = "hmdp.cache.invalidation", name = "mode", havingValue = "local")
+    public CacheInvalidationBus localCacheInvalidationBus() {
+        return new LocalCacheInvalidationBus();
+    }
+
+    @Bean
+    public SingleFlight singleFlight(MeterRegistry meterRegistry) {
+        // 每次从数据库加载时合并了多少个并发请求
+        DistributionSummary coalesced = DistributionSummary.builder("cache.singleflight.coalesced")
+                .description("callers coalesced into one cache load")
+                .register(meterRegistry);
+        SingleFlight singleFlight = new SingleFlight(coalesced::record);
+        FunctionCounter.builder("cache.singleflight.loads", singleFlight, SingleFlight::loadCount).register(meterRegistry);
+        return singleFlight;
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public CacheRebuildExecutor cacheRebuildExecutor(CacheProperties cacheProperties, MeterRegistry meterRegistry) {
+        CacheProperties.Rebuild rebuild = cacheProperties.getRebuild();
+        Timer latency = Timer.builder("cache.rebuild.latency")
+                .description("time spent rebuilding one cache key")
+                .register(meterRegistry);
+        CacheRebuildExecutor executor = new CacheRebuildExecutor(rebuild.getThreads(), rebuild.getQueueCapacity(),
+                rebuild.getDeadline().toMillis(), rebuild.isVirtualThreads(),
+                CacheRebuildExecutor.Overflow.valueOf(rebuild.getOverflow().toUpperCase()),
+                rebuild.getDeferDelay().toMillis(), nanos -> latency.record(nanos, TimeUnit.NANOSECONDS));
+        Gauge.builder("cache.rebuild.queue", executor, CacheRebuildExecutor::queueSize).register(meterRegistry);
+        Gauge.builder("cache.rebuild.active", executor, CacheRebuildExecutor::activeCount).register(meterRegistry);
+        FunctionCounter.builder("cache.rebuild.rejected", executor, CacheRebuildExecutor::rejectedCount).register(meterRegistry);
+        FunctionCounter.builder("cache.rebuild.deduplicated", executor, CacheRebuildExecutor::deduplicatedCount).register(meterRegistry);
+        FunctionCounter.builder("cache.rebuild.timeouts", executor, CacheRebuildExecutor::timeoutCount).register(meterRegistry);
+        return executor;
+    }
+
+    /**
+     * 缓存值是带头部的二进制，key还是字符串
+     */
+    @Bean
+    public RedisTemplate<String, byte[]> cacheRedisTemplate(RedisConnectionFactory connectionFactory) {
+        RedisTemplate<String, byte[]> template = new RedisTemplate<>();
+        template.setConnectionFactory(connectionFactory);
+        template.setKeySerializer(RedisSerializer.string());
+        template.setValueSerializer(RedisSerializer.byteArray());
+        template.setHashKeySerializer(RedisSerializer.string());
+        template.setHashValueSerializer(RedisSerializer.byteArray());
+        return template;
+    }
+
+    @Bean
+    public CacheSerializer cacheSerializer(CacheProperties cacheProperties) {
+        List<CacheCodec> codecs = List.of(new JsonCacheCodec(), new KryoCacheCodec());
+        CacheCodec writeCodec = switch (cacheProperties.getCodec()) {
+            case "json" -> codecs.get(0);
+            case "kryo" -> codecs.get(1);
+            default -> throw new IllegalArgumentException("不支持的缓存编解码器: " + cacheProperties.getCodec());
+        };
+        return new CacheSerializer(codecs, writeCodec, cacheProperties.getCompressThreshold());
+    }
+}
@@ -0,0 +1,173 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * CacheClient相关的配置, 对应application.yaml中的hmdp.cache
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.cache")
+public class CacheProperties {
+
+    /**
+     * 进程内一级缓存(L1)
+     */
+    private Local local = new Local();
+
+    /**
+     * 跨节点的本地缓存失效广播
+     */
+    private Invalidation invalidation = new Invalidation();
+
+    /**
+     * 防止缓存穿透的布隆过滤器
+     */
+    private Bloom bloom = new Bloom();
+
+    /**
+     * 写入缓存时使用的编解码器: kryo / json, 读取时按头部记录的编号选择, 不受这个配置影响
+     */
+    private String codec = "kryo";
+
+    /**
+     * 序列化后超过多少字节开始压缩, 小于等于0不压缩
+     */
+    private int compressThreshold = 1024;
+
+    /**
+     * key前缀 -> TTL随机抖动的比例, 0.1代表在原TTL基础上随机延长0~10%
+     * 物理TTL、逻辑过期时间和空值的TTL都会加上抖动, 没有配置的前缀不抖动
+     */
+    private Map<String, Double> ttlJitter = new HashMap<>();
+
+    /**
+     * 过期前按概率提前刷新(XFetch)
+     */
+    private EarlyRefresh earlyRefresh = new EarlyRefresh();
+
+    /**
+     * 逻辑过期的key在Redis里不存在时: true同步查数据库加载一次(多个请求合并); false直接返回null, 依赖预热
+     */
+    private boolean loadOnLogicalMiss = true;
+
+    /**
+     * 异步重建缓存的线程池
+     */
+    private Rebuild rebuild = new Rebuild();
+
+    /**
+     * 启动时预热店铺缓存
+     */
+    private WarmUp warmUp = new WarmUp();
+
+    @Data
+    public static class Local {
+        /**
+         * 最多缓存多少个条目
+         */
+        private long maximumSize = 10000;
+        /**
+         * 所有条目的总权重上限, 权重按Redis里的序列化长度估算
+         */
+        private long maximumWeight = 32L * 1024 * 1024;
+        /**
+         * 开启L1的key前缀 -> 本地存活时间, 没有配置的前缀不走L1
+         * yaml里key带冒号, 要写成 "[cache:shop:]": 5s
+         */
+        private Map<String, Duration> ttl = new HashMap<>();
+    }
+
+    @Data
+    public static class Invalidation {
+        /**
+         * redis: 通过Redis发布订阅广播; local: 进程内广播, 给测试用
+         */
+        private String mode = "redis";
+        private String channel = "cache:invalidate";
+        /**
+         * 合并发送的间隔, 这段时间内的失效key合成一条消息
+         */
+        private Duration flushInterval = Duration.ofMillis(5);
+        /**
+         * 一条消息最多携带的key数量
+         */
+        private int maxBatchSize = 500;
+    }
+
+    @Data
+    public static class EarlyRefresh {
+        private boolean enabled = true;
+        /**
+         * 越大越早刷新, 1.0是论文推荐的默认值
+         */
+        private double beta = 1.0;
+    }
+
+    @Data
+    public static class Rebuild {
+        private int threads = 10;
+        /**
+         * 排队的任务上限
+         */
+        private int queueCapacity = 1000;
+        /**
+         * 从提交算起, 超过这个时间还没开始执行的任务直接放弃
+         */
+        private Duration deadline = Duration.ofSeconds(5);
+        /**
+         * 使用虚拟线程, 并发数仍然受threads限制
+         */
+        private boolean virtualThreads = false;
+        /**
+         * 队列满了: drop直接丢弃; defer延迟deferDelay后再提交一次
+         */
+        private String overflow = "drop";
+        private Duration deferDelay = Duration.ofMillis(50);
+    }
+
+    @Data
+    public static class WarmUp {
+        private boolean enabled = true;
+        /**
+         * 每页读取的店铺数量
+         */
+        private int batchSize = 500;
+        /**
+         * 每秒最多写入多少个店铺, 小于等于0不限速
+         */
+        private int rate = 5000;
+        /**
+         * 加载到这个比例readiness才变成UP
+         */
+        private double readyFraction = 0.8;
+        /**
+         * 失败后从上次加载到的id继续, 最多重试几次, 间隔从retryBackoff开始翻倍, 不超过maxRetryBackoff
+         */
+        private int maxRetries = 5;
+        private Duration retryBackoff = Duration.ofSeconds(1);
+        private Duration maxRetryBackoff = Duration.ofSeconds(30);
+    }
+
+    @Data
+    public static class Bloom {
+        /**
+         * 误判率
+         */
+        private double falseProbability = 0.01;
+        /**
+         * 预期的元素数量, 实际数量超过后会自动扩容重建
+         */
+        private long expectedInsertions = 1000000;
+        /**
+         * 插入数量达到预期数量的这个比例就重建
+         */
+        private double saturation = 0.9;
+    }
+}
@@ -0,0 +1,70 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 全局唯一ID相关的配置, 对应application.yaml中的hmdp.id
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.id")
+public class IdProperties {
+
+    /**
+     * RedisIdWorker的号段模式
+     */
+    private Segment segment = new Segment();
+
+    /**
+     * 业务前缀 -> ID生成器: redis / snowflake, 没有配置的前缀用redis
+     */
+    private Map<String, String> generators = new HashMap<>();
+
+    /**
+     * snowflake生成器的workerId租约
+     */
+    private Snowflake snowflake = new Snowflake();
+
+    @Data
+    public static class Segment {
+        /**
+         * 开启后每个节点一次INCRBY租用step个序列号, 在本地分配, 不开启每个ID一次INCR
+         */
+        private boolean enabled = false;
+        /**
+         * 每次租用的序列号数量, 节点重启时没用完的会浪费掉
+         */
+        private int step = 1000;
+        /**
+         * 当前号段用到这个比例时异步租用下一段
+         */
+        private double prefetchRatio = 0.8;
+    }
+
+    @Data
+    public static class Snowflake {
+        /**
+         * workerId租约的过期时间, 节点宕机后过这么久workerId才能被其他节点使用
+         */
+        private Duration leaseTtl = Duration.ofSeconds(60);
+        /**
+         * 续约间隔, 要明显小于leaseTtl
+         */
+        private Duration heartbeat = Duration.ofSeconds(10);
+        /**
+         * 能容忍的时钟回拨, 在这之内接着上一次的时间戳生成, 超过了拒绝生成
+         */
+        private Duration maxBackward = Duration.ofSeconds(5);
+        /**
+         * 续约失败时的安全余量, 最后一次成功续约之后过了leaseTtl - leaseMargin就不再生成ID,
+         * 留给节点之间的时钟误差和Redis过期的误差
+         */
+        private Duration leaseMargin = Duration.ofSeconds(10);
+    }
+}
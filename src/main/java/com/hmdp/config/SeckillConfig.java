@@ -0,0 +1,25 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.LocalSlidingWindowLimiter;
+import com.hmdp.utils.RedisSlidingWindowLimiter;
+import com.hmdp.utils.SlidingWindowLimiter;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+@Configuration
+public class SeckillConfig {
+
+    @Bean
+    @ConditionalOnProperty(prefix = "hmdp.seckill.admission", name = "global-mode", havingValue = "redis", matchIfMissing = true)
+    public SlidingWindowLimiter redisSlidingWindowLimiter(StringRedisTemplate stringRedisTemplate) {
+        return new RedisSlidingWindowLimiter(stringRedisTemplate);
+    }
+
+    @Bean
+    @ConditionalOnProperty(prefix = "hmdp.seckill.admission", name = "global-mode", havingValue = "local")
+    public SlidingWindowLimiter localSlidingWindowLimiter() {
+        return new LocalSlidingWindowLimiter();
+    }
+}
@@ -0,0 +1,235 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 秒杀相关的配置, 对应application.yaml中的hmdp.seckill
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.seckill")
+public class SeckillProperties {
+
+    /**
+     * stream.orders的消费者
+     */
+    private Consumer consumer = new Consumer();
+
+    /**
+     * 秒杀库存在Redis中的分片
+     */
+    private Stock stock = new Stock();
+
+    /**
+     * stream.orders的积压采样
+     */
+    private Metrics metrics = new Metrics();
+
+    /**
+     * 接管超时未确认的消息, 超过重试次数的放进死信队列
+     */
+    private Reclaim reclaim = new Reclaim();
+
+    /**
+     * 秒杀入口的准入控制
+     */
+    private Admission admission = new Admission();
+
+    /**
+     * 订单结果, 客户端长轮询查询
+     */
+    private OrderStatus orderStatus = new OrderStatus();
+
+    /**
+     * Redis和数据库的库存、下单用户对账
+     */
+    private Reconcile reconcile = new Reconcile();
+
+    /**
+     * 从数据库补齐秒杀券时间窗口的间隔(ms), 新增秒杀券的广播丢了最多影响这么久
+     */
+    private long voucherResyncInterval = 10000;
+
+    @Data
+    public static class Reconcile {
+        private boolean enabled = true;
+        /**
+         * 两次对账之间的间隔(ms), 由@Scheduled直接读取
+         */
+        private long interval = 60000;
+        /**
+         * 每次最多核对几张券, 下一次从后面的券接着核对
+         */
+        private int vouchersPerRun = 20;
+        /**
+         * 游标每页读取的订单数, 也是SSCAN的COUNT
+         */
+        private int batchSize = 500;
+        /**
+         * 分片之间借库存超过这个时间还没完成, 认为借库存的节点已经宕机, 对账时替它补完
+         */
+        private Duration transferTimeout = Duration.ofMinutes(1);
+        /**
+         * 发现不一致时是否修复, false只上报
+         */
+        private boolean repair = true;
+    }
+
+    @Data
+    public static class OrderStatus {
+        /**
+         * 结果在Redis里保存多久, 超过之后查询会去数据库确认
+         */
+        private Duration ttl = Duration.ofMinutes(30);
+        /**
+         * 按订单生成时间分桶, 一个桶一个hash, 整个桶一起过期
+         */
+        private Duration bucket = Duration.ofMinutes(1);
+        /**
+         * 长轮询默认等待多久
+         */
+        private Duration pollTimeout = Duration.ofSeconds(10);
+        /**
+         * 客户端最多能指定等待多久
+         */
+        private Duration maxPollTimeout = Duration.ofSeconds(30);
+    }
+
+    @Data
+    public static class Admission {
+        private boolean enabled = true;
+        /**
+         * 全局限流的实现: redis 所有节点共享, local 只在本机生效, 没有Redis的测试环境用
+         */
+        private String globalMode = "redis";
+        /**
+         * 全局滑动窗口的大小
+         */
+        private Duration globalWindow = Duration.ofSeconds(1);
+        /**
+         * 排队号的有效期
+         */
+        private Duration ticketTtl = Duration.ofMinutes(10);
+        /**
+         * 没有单独配置的券用这个
+         */
+        private Limit defaults = new Limit();
+        /**
+         * 券id -> 限流参数, 整体替换defaults
+         */
+        private Map<Long, Limit> vouchers = new HashMap<>();
+
+        public Limit limitOf(Long voucherId) {
+            return vouchers.getOrDefault(voucherId, defaults);
+        }
+    }
+
+    @Data
+    public static class Limit {
+        /**
+         * 每个节点每秒放行多少个请求, 0不限制
+         */
+        private double localRate = 2000;
+        /**
+         * 本机令牌桶最多攒多少个令牌
+         */
+        private int localBurst = 200;
+        /**
+         * 所有节点每个窗口最多放行多少个请求, 0不限制
+         */
+        private long globalLimit = 0;
+        /**
+         * 是否先排队, 开启后没有轮到的请求直接拒绝
+         */
+        private boolean waitingRoom = false;
+        /**
+         * 排队时每秒放行多少个排队号
+         */
+        private int releaseRate = 500;
+    }
+
+    @Data
+    public static class Reclaim {
+        private boolean enabled = true;
+        /**
+         * 两次XAUTOCLAIM之间的间隔
+         */
+        private Duration interval = Duration.ofSeconds(5);
+        /**
+         * 消息空闲超过这么久才会被接管, 要比一批订单的处理时间长得多, 否则会和原来的消费者重复处理
+         */
+        private Duration minIdle = Duration.ofSeconds(30);
+        /**
+         * 投递超过这么多次还没有确认, 放进死信队列
+         */
+        private int maxDeliveries = 5;
+        /**
+         * 每次XAUTOCLAIM的COUNT
+         */
+        private int batchSize = 100;
+        private String deadLetterStream = "stream.orders.dlq";
+    }
+
+    @Data
+    public static class Stock {
+        /**
+         * 新增秒杀券时库存拆成几个分片, 1不分片, 还是原来的 seckill:stock:{voucherId}
+         * 只对新增的券生效, 已有的券按Redis里记录的分片数
+         */
+        private int shards = 1;
+        /**
+         * 每个分片至少这么多库存, 库存少的券分片数相应减少
+         */
+        private int minStockPerShard = 100;
+        /**
+         * 卖完的券在本地直接拒绝, 每隔这么久放一个请求去Redis确认一次
+         * 补库存的广播丢失时, 最多这么久之后恢复
+         */
+        private Duration soldOutRecheck = Duration.ofSeconds(5);
+    }
+
+    @Data
+    public static class Metrics {
+        /**
+         * 采样间隔(ms), 由@Scheduled直接读取
+         */
+        private long interval = 5000;
+    }
+
+    @Data
+    public static class Consumer {
+        private String stream = "stream.orders";
+        private String group = "g1";
+        /**
+         * 消费者名称前缀, 默认用主机名, 实际名称是 前缀-线程序号
+         * 重启后名称不变, 才能接着处理自己pending-list里的消息
+         */
+        private String name;
+        /**
+         * 消费线程数
+         */
+        private int threads = 4;
+        /**
+         * 每次最多读取多少条消息, 一批消息在一个事务里写入
+         */
+        private int batchSize = 100;
+        /**
+         * 没有消息时阻塞等待的时间
+         */
+        private Duration block = Duration.ofSeconds(2);
+        /**
+         * 写合并的窗口, 各个消费线程在这段时间内读到的订单合成一个事务写入, 0不合并
+         */
+        private Duration combineWindow = Duration.ofMillis(5);
+        /**
+         * 合并的订单数达到这个值立即写入
+         */
+        private int combineMaxSize = 1000;
+    }
+}
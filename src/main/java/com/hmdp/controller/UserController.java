@@ -9,6 +9,7 @@ import com.hmdp.entity.User;
 import com.hmdp.entity.UserInfo;
 import com.hmdp.service.IUserInfoService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.BloomFilterGuard;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.bind.annotation.*;
@@ -16,6 +17,8 @@ import org.springframework.web.bind.annotation.*;
 import jakarta.annotation.Resource;
 import jakarta.servlet.http.HttpSession;
 
+import static com.hmdp.utils.RedisConstants.BLOOM_USER_KEY;
+
 /**
  * <p>
  * 前端控制器
@@ -35,6 +38,9 @@ public class UserController {
     @Resource
     private IUserInfoService userInfoService;
 
+    @Resource
+    private BloomFilterGuard bloomFilterGuard;
+
     /**
      * 发送手机验证码
      * RequestParam表示参数写在路径里
@@ -104,6 +110,10 @@ public class UserController {
     }
 
     public Result queryUserById(@PathVariable("id") Long userId) {
+        // 布隆过滤器判断一定不存在，不用查数据库
+        if (!bloomFilterGuard.mightContain(BLOOM_USER_KEY, userId)) {
+            return Result.ok();
+        }
         // 查询详情
         User user = userService.getById(userId);
         if (user == null) {
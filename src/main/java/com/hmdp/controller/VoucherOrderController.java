@@ -4,10 +4,13 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
 import jakarta.annotation.Resource;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
 /**
  * <p>
@@ -28,4 +31,29 @@ public class VoucherOrderController {
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 领取排队号，开启排队的券要先排队，轮到了才能秒杀
+     */
+    @PostMapping("seckill/{id}/ticket")
+    public Result takeSeckillTicket(@PathVariable("id") Long voucherId) {
+        return voucherOrderService.takeSeckillTicket(voucherId);
+    }
+
+    /**
+     * 查询排队进度，ahead为0就可以秒杀了
+     */
+    @GetMapping("seckill/{id}/ticket")
+    public Result querySeckillTicket(@PathVariable("id") Long voucherId) {
+        return voucherOrderService.querySeckillTicket(voucherId);
+    }
+
+    /**
+     * 查询秒杀订单的结果，还没有结果时最多挂起timeout毫秒，结果出来立即返回
+     */
+    @GetMapping("{id}/status")
+    public DeferredResult<Result> queryOrderStatus(@PathVariable("id") Long orderId,
+                                                   @RequestParam(value = "timeout", required = false) Long timeout) {
+        return voucherOrderService.queryOrderStatus(orderId, timeout);
+    }
 }
@@ -2,6 +2,8 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.Shop;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.cursor.Cursor;
 
 /**
  * <p>
@@ -13,4 +15,9 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface ShopMapper extends BaseMapper<Shop> {
 
+    /**
+     * 查询id大于lastId的limit条店铺，按id排序，以游标的方式逐条读取
+     * 游标只能在事务内使用
+     */
+    Cursor<Shop> scanAfterId(@Param("lastId") long lastId, @Param("limit") int limit);
 }
@@ -2,6 +2,11 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.cursor.Cursor;
+
+import java.util.Collection;
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +18,21 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 多行INSERT IGNORE批量写入订单，重复的订单被唯一索引忽略
+     * @return 实际写入的条数
+     */
+    int insertBatch(@Param("orders") List<VoucherOrder> orders);
+
+    /**
+     * 查询一张券user_id大于lastUserId的limit个下单用户，按user_id排序，以游标的方式逐条读取
+     * 游标只能在事务内使用
+     */
+    Cursor<Long> scanUserIds(@Param("voucherId") Long voucherId, @Param("lastUserId") long lastUserId,
+                             @Param("limit") int limit);
+
+    /**
+     * userIds中在这张券下过单的用户
+     */
+    List<Long> selectUserIds(@Param("voucherId") Long voucherId, @Param("userIds") Collection<Long> userIds);
 }
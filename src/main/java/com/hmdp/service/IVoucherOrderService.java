@@ -3,6 +3,9 @@ package com.hmdp.service;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.List;
 
 /**
  * <p>
@@ -16,7 +19,15 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
 
+    Result takeSeckillTicket(Long voucherId);
+
+    Result querySeckillTicket(Long voucherId);
+
     Result createVoucherOrder(Long voucherId);
 
-    void createVoucherOrder2(VoucherOrder voucherOrder);
+    boolean createVoucherOrder2(VoucherOrder voucherOrder);
+
+    List<VoucherOrder> createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    DeferredResult<Result> queryOrderStatus(Long orderId, Long timeout);
 }
@@ -15,6 +15,8 @@ import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.BloomFilterGuard;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
 import jakarta.annotation.Resource;
@@ -25,10 +27,15 @@ import org.springframework.stereotype.Service;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
+import static com.hmdp.utils.RedisConstants.BLOOM_BLOG_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_USER_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_USER_TTL;
 import static com.hmdp.utils.RedisConstants.FEED_KEY;
 
 /**
@@ -53,6 +60,12 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Resource
     private IFollowService followService;
 
+    @Resource
+    private BloomFilterGuard bloomFilterGuard;
+
+    @Resource
+    private CacheClient cacheClient;
+
     @Override
     public Result queryHotBlog(Integer current) {
         // 根据用户查询
@@ -63,23 +76,25 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         List<Blog> records = page.getRecords();
         // 查询用户
 //        records.forEach(this::queryBlogUser);
-        // List里面的每个Blog要做两件事，以前只做一件事
-        records.forEach(blog -> {
-            this.queryBlogUser(blog);
-            this.isBlogLiked(blog);
-        });
+        // 作者信息一次批量查出来，不再每个Blog查一次
+        queryBlogUser(records);
+        records.forEach(this::isBlogLiked);
         return Result.ok(records);
     }
 
     @Override
     public Result queryBlogById(Long id) {
+        // 0. 布隆过滤器判断一定不存在，不用查数据库
+        if (!bloomFilterGuard.mightContain(BLOOM_BLOG_KEY, id)) {
+            return Result.fail("笔记不存在!");
+        }
         // 1. 查询blog
         Blog blog = getById(id);
         if (blog == null) {
             return Result.fail("笔记不存在!");
         }
         // 2. 查询blog有关的用户
-        queryBlogUser(blog);
+        queryBlogUser(List.of(blog));
         // 3. 查询blog是否被点赞
         isBlogLiked(blog);
         return Result.ok(blog);
@@ -165,6 +180,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (!isSuccess) {
             return Result.fail("新增笔记失败!");
         }
+        bloomFilterGuard.add(BLOOM_BLOG_KEY, blog.getId());
         // 3. 查询笔记作者的所有粉丝 select * from tb_follow where follow_user_id = ?
         // 类似于微服务中调别的服务
         List<Follow> follows = followService.query().eq("follow_user_id", user.getId()).list();
@@ -219,13 +235,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         String idStr = StrUtil.join(",", ids);
         List<Blog> blogs = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
 
-        // 每一个blog都要做这件事
-        for (Blog blog : blogs) {
-            // 5.1 查询blog有关的用户
-            queryBlogUser(blog);
-            // 5.2. 查询blog是否被点赞
-            isBlogLiked(blog);
-        }
+        // 5.1 批量查询blog有关的用户
+        queryBlogUser(blogs);
+        // 5.2. 查询blog是否被点赞
+        blogs.forEach(this::isBlogLiked);
         // 6. 封装并返回
         ScrollResult r = new ScrollResult();
         r.setList(blogs);
@@ -234,10 +247,25 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         return Result.ok(r);
     }
 
-    private void queryBlogUser(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+    /**
+     * 批量查询blog的作者，一次MGET，未命中的一次IN查询
+     */
+    private void queryBlogUser(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
+            return;
+        }
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).toList();
+        // 缓存里只放UserDTO，不把密码之类的字段写进Redis
+        Map<Long, UserDTO> users = cacheClient.queryBatch(CACHE_USER_KEY, userIds, UserDTO.class,
+                ids -> userService.listByIds(ids).stream()
+                        .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class))),
+                CACHE_USER_TTL, TimeUnit.MINUTES);
+        for (Blog blog : blogs) {
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
     }
 }
@@ -1,17 +1,14 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.BloomFilterGuard;
 import com.hmdp.utils.CacheClient;
-import com.hmdp.utils.RedisData;
 import com.hmdp.utils.SystemConstants;
 import jakarta.annotation.Resource;
 import org.springframework.data.geo.Distance;
@@ -23,10 +20,9 @@ import org.springframework.data.redis.domain.geo.GeoReference;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
-import java.time.LocalDateTime;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 import java.util.concurrent.TimeUnit;
 
 import static com.hmdp.utils.RedisConstants.*;
@@ -49,6 +45,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private BloomFilterGuard bloomFilterGuard;
+
     // 这种方案只能说是被动的方案，人家已经在穿透你了，然后你想办法弥补
     // 也可以主动采取一些措施去解决缓存穿透如
     // 增加id的复杂度，避免被猜测id规律
@@ -66,7 +65,7 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         // 逻辑过期解决缓存击穿
 //        Shop shop = queryWithLogicalExpire(id);
         Shop shop = cacheClient
-                .queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, 20L, TimeUnit.SECONDS);
+                .queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_LOGICAL_TTL, TimeUnit.SECONDS);
         if (shop == null) {
             return Result.fail("店铺不存在!");
         }
@@ -76,164 +75,41 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
     /**
      * 封装缓存穿透的代码
+     * 缓存值改成带头部的二进制格式后，读写都交给cacheClient，不能再直接用stringRedisTemplate按json读写
      */
     public Shop queryWithPassThrough(Long id) {
-        String key = CACHE_SHOP_KEY + id;
-        // 1. 从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        // 2. 判断是否存在
-        // 用isNotBlank的好处显现出来了，null, "" 都会是false
-        if (StrUtil.isNotBlank(shopJson)) {
-            // 3. 存在，直接返回
-            return JSONUtil.toBean(shopJson, Shop.class);
-        }
-        // 判断命中的是否是空值, 也就是""
-        if (shopJson != null) {
-            // 返回一个错误信息
-            return null;
-        }
-        // 4. 不存在，根据id查询数据库
-        Shop shop = getById(id);
-        // 5. 不存在，返回错误
-        if (shop == null) {
-            // 缓存穿透
-            // 将空值写入redis
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-            // 返回错误信息
-            return null;
-        }
-        // 6. 存在，写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        // 7. 返回
-        return shop;
+        return cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
     // 热点key问题：1.高并发 2.缓存重建的时间比较久
+    // 以前没抢到锁就休眠50ms再递归重试，现在交给cacheClient：
+    // 本节点的并发请求合并成一次，跨节点没抢到锁的等待持锁节点写入缓存的通知
     public Shop queryWithMutex(Long id) {
-        String key = CACHE_SHOP_KEY + id;
-        // 1. 从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        // 2. 判断是否存在
-        // 用isNotBlank的好处显现出来了，null, "" 都会是false
-        if (StrUtil.isNotBlank(shopJson)) {
-            // 3. 存在，直接返回
-            return JSONUtil.toBean(shopJson, Shop.class);
-        }
-        // 判断命中的是否是空值, 也就是""
-        if (shopJson != null) {
-            // 返回一个错误信息
-            return null;
-        }
-        // 4. 实现缓存重建
-        // 4.1.获取互斥锁
-        // 锁的key和缓存的key不是同一个
-        String lockKey = LOCK_SHOP_KEY + id;
-        Shop shop = null;
-        try {
-            boolean isLock = tryLock(lockKey);
-            // 4.2.判断是否获取成功
-            if (!isLock) {
-                // 4.3.失败，则休眠并重试
-                Thread.sleep(50);
-                return queryWithMutex(id);
-            }
-            // 4.4.成功，根据id查询数据库
-            shop = getById(id);
-            // 重建时间越久，发生线程并发安全的问题的可能性就越高
-            // 模拟重建的延时
-            Thread.sleep(200);
-            // 5. 不存在，返回错误
-            if (shop == null) {
-                // 缓存穿透
-                // 将空值写入redis
-                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-                // 返回错误信息
-                return null;
-            }
-            // 6. 存在，写入redis
-            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            // 7. 释放互斥锁
-            unlock(lockKey);
-        }
-        // 8. 返回
-        return shop;
+        return cacheClient.queryWithMutex(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
-    // 线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-
     /**
-     * 封装缓存穿透的代码
+     * 逻辑过期解决缓存击穿，逻辑过期时间在缓存值的头部
      */
     public Shop queryWithLogicalExpire(Long id) {
-        String key = CACHE_SHOP_KEY + id;
-        // 1. 从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        // 2. 判断是否存在
-        // 用isNotBlank的好处显现出来了，null, "" 都会是false
-        if (StrUtil.isBlank(shopJson)) {
-            // 3. 不存在，直接返回null
-            return null;
-        }
-        // 4. 命中，需要先把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(shopJson, RedisData.class);
-        Shop shop = JSONUtil.toBean((JSONObject) redisData.getData(), Shop.class);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        // 5. 判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())) {
-            // 5.1. 未过期，直接返回店铺信息
-            return shop;
-        }
-        // 5.2. 已过期，需要缓存重建
-        // 6. 缓存重建
-        // 6.1. 获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
-        // 6.2. 判断是否获取锁成功
-        if (isLock) {
-            // 6.3. 成功，开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    // 重建缓存
-                    this.saveShop2Redis(id, 20L);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    // 释放锁
-                    unlock(lockKey);
-                }
-            });
-        }
-        // 6.4. 返回过期的商铺信息
-        return shop;
-    }
-
-    /**
-     * 尝试获取锁
-     */
-    private boolean tryLock(String key) {
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        // 千万不要直接返回，会做自动拆箱，有可能出现空指针
-        return BooleanUtil.isTrue(flag);
+        return cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_LOGICAL_TTL, TimeUnit.SECONDS);
     }
 
-    private void unlock(String key) {
-        stringRedisTemplate.delete(key);
-    }
-
-    public void saveShop2Redis(Long id, Long expireSeconds) throws InterruptedException {
+    public void saveShop2Redis(Long id, Long expireSeconds) {
         // 1. 查询店铺数据
         Shop shop = getById(id);
-        Thread.sleep(200);
-        // 2. 封装逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-        // 3. 写入Redis
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
+        // 2. 写入Redis，逻辑过期时间写在头部
+        cacheClient.setWithLogicalExpire(CACHE_SHOP_KEY + id, shop, expireSeconds, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public boolean save(Shop shop) {
+        boolean success = getBaseMapper().insert(shop) > 0;
+        if (success) {
+            // 新店铺的id加入布隆过滤器，否则会被当成不存在的id拦截
+            bloomFilterGuard.add(BLOOM_SHOP_KEY, shop.getId());
+        }
+        return success;
     }
 
     @Override
@@ -247,7 +123,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         updateById(shop);
         // 2. 删除缓存
         // 删除过程中如果有抛异常，将来这块的事务需要回滚
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+        // 通过cacheClient删除，其他节点的本地缓存也会收到失效通知
+        cacheClient.delete(CACHE_SHOP_KEY + id);
         // 单体项目数据库操作和缓存操作都在同一个方法里，可以通过事务来控制原子性
         // 分布式系统更新完数据库，删缓存的动作是另外一个系统来做的，可能要通过MQ来异步的通知对方，对方去完成缓存的处理
         // 借助于TTC这样的方案保持强一致性
@@ -299,11 +176,17 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             Distance distance = result.getDistance();
             distanceMap.put(shopIdStr, distance);
         });
-        // 5. 根据id查询店铺Shop 要保证有序就不能用listByIds()
-        String idStr = StrUtil.join(",", ids);
-        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
-        for (Shop shop : shops) {
+        // 5. 根据id批量查询店铺Shop，先查缓存，未命中的一次IN查询
+        // queryBatch按传入的id顺序返回，不需要ORDER BY FIELD
+        Map<Long, Shop> shopMap = cacheClient.queryBatch(CACHE_SHOP_KEY, ids, Shop.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, Function.identity())),
+                CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        List<Shop> shops = new ArrayList<>(shopMap.size());
+        for (Shop cached : shopMap.values()) {
+            // 缓存里的对象可能在本地缓存里共享，复制一份再设置距离
+            Shop shop = BeanUtil.copyProperties(cached, Shop.class);
             shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
+            shops.add(shop);
         }
         // 6. 返回
         return Result.ok(shops);
@@ -11,6 +11,7 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.BloomFilterGuard;
 import com.hmdp.utils.RegexUtils;
 import com.hmdp.utils.UserHolder;
 import jakarta.annotation.Resource;
@@ -45,6 +46,9 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private BloomFilterGuard bloomFilterGuard;
+
     @Override
     public Result sendCode(String phone, HttpSession session) {
         // 1. 校验手机号
@@ -199,6 +203,8 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         user.setNickName(USER_NICK_NAME_PREFIX + RandomUtil.randomString(10));
         // 2. 保存用户
         save(user);
+        // 3. 新用户的id加入布隆过滤器
+        bloomFilterGuard.add(BLOOM_USER_KEY, user.getId());
         return user;
     }
 }
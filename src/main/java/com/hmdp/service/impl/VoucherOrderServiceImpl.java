@@ -1,6 +1,10 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import cn.hutool.core.util.NumberUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.config.SeckillProperties;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
@@ -8,31 +12,57 @@ import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.IdGenerator;
+import com.hmdp.utils.NodeId;
+import com.hmdp.utils.SeckillAdmission;
+import com.hmdp.utils.SeckillOrderStatus;
+import com.hmdp.utils.SeckillStock;
+import com.hmdp.utils.SeckillVoucherCache;
+import com.hmdp.utils.SeckillStreamMetrics;
 import com.hmdp.utils.SimpleRedisLock;
 import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.WriteCombiner;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
-import org.springframework.core.io.ClassPathResource;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.domain.Range;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
+import org.springframework.web.context.request.async.DeferredResult;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_STREAMS_KEY;
 
 /**
  * <p>
@@ -50,91 +80,487 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private ISeckillVoucherService seckillVoucherService;
 
     @Resource
-    private RedisIdWorker redisIdWorker;
+    private IdGenerator idGenerator;
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private RedissonClient redissonClient;
+    private SeckillStock seckillStock;
 
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    @Resource
+    private SeckillProperties seckillProperties;
 
-    static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
-    }
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Resource
+    private SeckillStreamMetrics seckillStreamMetrics;
+
+    @Resource
+    private SeckillAdmission seckillAdmission;
+
+    @Resource
+    private SeckillVoucherCache seckillVoucherCache;
+
+    @Resource
+    private SeckillOrderStatus seckillOrderStatus;
 
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    // 消费线程池，线程数来自配置
+    private ExecutorService seckillOrderExecutor;
+
+    private volatile boolean running = true;
+
+    // 要消费的stream: stream.orders和分片券在seckill:streams里登记的stream，定时从Redis刷新
+    private volatile List<String> orderStreams = List.of();
+    private volatile long streamsRefreshedAt;
+    private final Object streamsLock = new Object();
+    private static final long STREAMS_REFRESH_MILLIS = 1000;
+    // 有分片stream时，所有stream都没有消息才阻塞读stream.orders，分片stream上的新消息最多等这么久
+    private static final Duration SHARD_POLL_BLOCK = Duration.ofMillis(100);
+
+    // 每批的处理耗时和条数
+    private Timer batchTimer;
+    private DistributionSummary batchSize;
+
+    // 把各个消费线程的批次在短时间窗口内合并成一个事务，null代表不合并
+    private WriteCombiner<VoucherOrder> orderCombiner;
+
+    // 接管超时未确认的消息，null代表没有开启
+    private ScheduledExecutorService reclaimExecutor;
+    private Counter reclaimedCounter;
+    private Counter deadLetterCounter;
+
+    // 消息id -> 最近一次处理失败的原因，进入死信队列时一起写进去，只保留最近的一部分
+    private final Map<String, String> failures = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > 10000;
+        }
+    });
 
     // 任务应该在类初始化完毕后立马执行
     @PostConstruct
     private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        SeckillProperties.Consumer config = seckillProperties.getConsumer();
+        batchTimer = Timer.builder("seckill.order.batch")
+                .description("time to persist and ack one batch of stream.orders")
+                .register(meterRegistry);
+        batchSize = DistributionSummary.builder("seckill.order.batch.size")
+                .description("orders persisted per batch")
+                .register(meterRegistry);
+        createGroupIfAbsent(config.getStream(), config.getGroup());
+        orderStreams = List.of(config.getStream());
+        if (!config.getCombineWindow().isZero()) {
+            DistributionSummary combined = DistributionSummary.builder("seckill.order.combined")
+                    .description("orders written in one combined transaction")
+                    .register(meterRegistry);
+            orderCombiner = new WriteCombiner<>("seckill-order-writer", config.getCombineWindow().toNanos(),
+                    TimeUnit.NANOSECONDS, config.getCombineMaxSize(), this::persist,
+                    combined::record);
+        }
+        seckillOrderExecutor = Executors.newFixedThreadPool(config.getThreads(),
+                ThreadFactoryBuilder.create().setNamePrefix("seckill-order-").build());
+        String prefix = consumerPrefix(config);
+        for (int i = 0; i < config.getThreads(); i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler(prefix + "-" + i));
+        }
+        SeckillProperties.Reclaim reclaim = seckillProperties.getReclaim();
+        if (reclaim.isEnabled()) {
+            reclaimedCounter = Counter.builder("seckill.order.reclaimed")
+                    .description("pending entries taken over from idle consumers with XAUTOCLAIM")
+                    .register(meterRegistry);
+            deadLetterCounter = Counter.builder("seckill.order.dead-letter")
+                    .description("entries moved to the dead-letter stream after exceeding the delivery budget")
+                    .register(meterRegistry);
+            reclaimExecutor = Executors.newSingleThreadScheduledExecutor(
+                    ThreadFactoryBuilder.create().setNamePrefix("seckill-order-reclaim-").setDaemon(true).build());
+            PendingReclaimer reclaimer = new PendingReclaimer(prefix + "-reclaim");
+            long interval = reclaim.getInterval().toMillis();
+            reclaimExecutor.scheduleWithFixedDelay(reclaimer, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        seckillOrderExecutor.shutdownNow();
+        if (reclaimExecutor != null) {
+            reclaimExecutor.shutdownNow();
+        }
+        if (orderCombiner != null) {
+            orderCombiner.shutdown();
+        }
+    }
+
+    /**
+     * 消费者组不存在就创建，stream不存在一起创建 XGROUP CREATE stream.orders g1 0 MKSTREAM
+     * 从0开始，分片stream在创建消费者组之前写进去的消息也会被消费
+     */
+    private void createGroupIfAbsent(String stream, String group) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                    stream.getBytes(StandardCharsets.UTF_8), group, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            // BUSYGROUP，已经存在了
+            log.debug("消费者组已存在: {} {}", stream, group);
+        }
+    }
+
+    /**
+     * 要消费的stream，第一个总是stream.orders
+     * 分片券的订单写在和分片库存同一个slot的stream里(stream.orders:{voucherId:i})，新增券时登记在seckill:streams
+     * 最多每秒刷新一次，新出现的stream先创建消费者组
+     */
+    private List<String> orderStreams() {
+        if (System.currentTimeMillis() - streamsRefreshedAt < STREAMS_REFRESH_MILLIS) {
+            return orderStreams;
+        }
+        synchronized (streamsLock) {
+            long now = System.currentTimeMillis();
+            if (now - streamsRefreshedAt < STREAMS_REFRESH_MILLIS) {
+                return orderStreams;
+            }
+            SeckillProperties.Consumer config = seckillProperties.getConsumer();
+            try {
+                Set<String> registered = stringRedisTemplate.opsForSet().members(SECKILL_STREAMS_KEY);
+                List<String> streams = new ArrayList<>();
+                streams.add(config.getStream());
+                if (registered != null) {
+                    for (String stream : new TreeSet<>(registered)) {
+                        if (!orderStreams.contains(stream)) {
+                            createGroupIfAbsent(stream, config.getGroup());
+                        }
+                        streams.add(stream);
+                    }
+                }
+                orderStreams = List.copyOf(streams);
+            } catch (Exception e) {
+                // 刷新失败接着用上一次的列表
+                log.warn("刷新订单stream列表失败", e);
+            }
+            streamsRefreshedAt = now;
+            return orderStreams;
+        }
+    }
+
+    /**
+     * 同一个节点重启后名称不变，才能接着处理自己pending-list里的消息
+     */
+    private static String consumerPrefix(SeckillProperties.Consumer config) {
+        if (StrUtil.isNotBlank(config.getName())) {
+            return config.getName();
+        }
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return NodeId.VALUE;
+        }
     }
 
     private class VoucherOrderHandler implements Runnable {
 
-        String queueName = "stream.orders";
+        private final SeckillProperties.Consumer config = seckillProperties.getConsumer();
+        private final Consumer consumer;
+
+        VoucherOrderHandler(String consumerName) {
+            this.consumer = Consumer.from(config.getGroup(), consumerName);
+        }
 
         @Override
         public void run() {
-            while (true) {
+            // 启动时先把上次没处理完的消息处理掉
+            handlePendingList();
+            while (running) {
                 try {
-                    // 1. 获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS streams.order >
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
-                    );
-                    // 2. 判断消息获取是否成功
-                    if (list == null || list.isEmpty()) {
-                        // 2.1. 如果获取失败，说明没有消息，继续下一次循环
-                        continue;
+                    List<String> streams = orderStreams();
+                    // 有分片stream时每个stream不阻塞地读一批，分片stream在不同的slot，不能一条命令读多个
+                    boolean handled = false;
+                    if (streams.size() > 1) {
+                        for (String stream : streams) {
+                            handled |= readAndHandle(stream, null);
+                        }
+                    }
+                    // 都没有消息，阻塞等stream.orders
+                    if (!handled) {
+                        readAndHandle(streams.get(0), streams.size() > 1 ? SHARD_POLL_BLOCK : config.getBlock());
                     }
-                    // 3. 解析消息中的订单信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    // 4. 如果获取成功，可以下单
-                    handleVoucherOrder(voucherOrder);
-                    // 5. ACK确认 XACK stream.orders
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
                 } catch (Exception e) {
+                    if (!running) {
+                        break;
+                    }
                     log.error("处理订单异常", e);
                     handlePendingList();
                 }
             }
         }
 
+        /**
+         * 读一批新消息整批处理，block为null时不阻塞，返回是否读到了消息
+         */
+        private boolean readAndHandle(String stream, Duration block) {
+            StreamReadOptions options = StreamReadOptions.empty().count(config.getBatchSize());
+            // 1. 获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 100 BLOCK 2000 STREAMS streams.order >
+            List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                    consumer,
+                    block == null ? options : options.block(block),
+                    StreamOffset.create(stream, ReadOffset.lastConsumed())
+            );
+            // 2. 判断消息获取是否成功
+            if (list == null || list.isEmpty()) {
+                // 2.1. 如果获取失败，说明没有消息
+                return false;
+            }
+            // 3. 整批下单并确认
+            handleBatch(list, consumer.getName());
+            return true;
+        }
+
         private void handlePendingList() {
-            while (true) {
+            for (String stream : orderStreams()) {
+                handlePendingList(stream);
+            }
+        }
+
+        /**
+         * 从前往后把自己pending-list里的消息处理一遍
+         * 处理失败的消息跳过，不再从0开始反复读同一条坏消息，由PendingReclaimer按投递次数重试或者放进死信队列
+         */
+        private void handlePendingList(String stream) {
+            int handled = 0;
+            String lastId = "0";
+            while (running) {
                 try {
-                    // 1. 读取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 STREAMS streams.order 0
+                    // 1. 读取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT 100 STREAMS streams.order lastId
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
+                            consumer,
+                            StreamReadOptions.empty().count(config.getBatchSize()),
+                            StreamOffset.create(stream, ReadOffset.from(lastId))
                     );
                     if (list == null || list.isEmpty()) {
                         // 如果获取失败，说明pending-list没有异常消息，结束循环
                         break;
                     }
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    handleVoucherOrder(voucherOrder);
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+                    handleBatch(list, consumer.getName());
+                    handled += list.size();
+                    lastId = list.get(list.size() - 1).getId().getValue();
                 } catch (Exception e) {
-                    log.error("处理订单异常", e);
+                    log.error("处理pending-list订单异常, stream: {}, 消费者: {}", stream, consumer.getName(), e);
                     try {
                         Thread.sleep(20);
                     } catch (InterruptedException ex) {
-                        ex.printStackTrace();
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+            if (handled > 0) {
+                log.info("消费者{}处理完{}的pending-list, 数量: {}", consumer.getName(), stream, handled);
+            }
+        }
+    }
+
+    /**
+     * 一批消息(来自同一个stream): 一个事务写入，一次XACK确认
+     * 整批失败时退回到逐条处理，不让一条坏消息拖住整批；逐条处理还失败的留在pending-list，记下失败原因
+     */
+    private void handleBatch(List<MapRecord<String, Object, Object>> list, String consumerName) {
+        SeckillProperties.Consumer config = seckillProperties.getConsumer();
+        long begin = System.nanoTime();
+        // 1. 解析消息中的订单信息，解析不了的消息不可能成功，留给死信队列
+        List<MapRecord<String, Object, Object>> records = new ArrayList<>(list.size());
+        List<VoucherOrder> orders = new ArrayList<>(list.size());
+        for (MapRecord<String, Object, Object> record : list) {
+            try {
+                orders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+                records.add(record);
+            } catch (Exception e) {
+                recordFailure(record.getId(), e);
+            }
+        }
+        if (records.isEmpty()) {
+            return;
+        }
+        String stream = records.get(0).getStream();
+        try {
+            // 2. 批量下单，开启写合并时等合并后的事务提交
+            if (orderCombiner == null) {
+                persist(orders);
+            } else {
+                orderCombiner.submit(orders).join();
+            }
+            List<RecordId> committed = records.stream().map(MapRecord::getId).toList();
+            seckillStreamMetrics.recordPersisted(committed);
+            // 3. 一次XACK确认整批 XACK stream.orders g1 id1 id2 ...
+            RecordId[] ids = committed.toArray(RecordId[]::new);
+            stringRedisTemplate.opsForStream().acknowledge(stream, config.getGroup(), ids);
+        } catch (Exception e) {
+            log.error("批量下单失败，逐条处理, 数量: {}", records.size(), e);
+            for (int i = 0; i < records.size(); i++) {
+                RecordId id = records.get(i).getId();
+                try {
+                    handleVoucherOrder(orders.get(i));
+                    seckillStreamMetrics.recordPersisted(List.of(id));
+                    stringRedisTemplate.opsForStream().acknowledge(stream, config.getGroup(), id);
+                } catch (Exception ex) {
+                    // 逐条处理失败的消息留在pending-list
+                    recordFailure(id, ex);
+                }
+            }
+        }
+        long cost = System.nanoTime() - begin;
+        batchTimer.record(cost, TimeUnit.NANOSECONDS);
+        batchSize.record(records.size());
+        log.debug("消费者{}处理订单{}条, 耗时{}ms, {}条/秒", consumerName, records.size(),
+                TimeUnit.NANOSECONDS.toMillis(cost), records.size() * 1_000_000_000L / Math.max(cost, 1));
+    }
+
+    /**
+     * 批量下单并写入订单结果，消费线程和写合并的写线程都走这里
+     */
+    private void persist(List<VoucherOrder> orders) {
+        List<VoucherOrder> soldOut = proxy.createVoucherOrders(orders);
+        // 事务已经提交，没有因为库存不足被拒绝的订单都已经在数据库里了
+        Map<Long, SeckillOrderStatus.Status> statuses = new HashMap<>(orders.size() * 2);
+        orders.forEach(order -> statuses.put(order.getId(), SeckillOrderStatus.Status.SUCCESS));
+        soldOut.forEach(order -> statuses.put(order.getId(), SeckillOrderStatus.Status.SOLD_OUT));
+        seckillOrderStatus.record(statuses);
+    }
+
+    private void recordFailure(RecordId id, Exception e) {
+        log.error("处理订单消息失败, id: {}", id, e);
+        failures.put(id.getValue(), e.getClass().getSimpleName() + ": " + e.getMessage());
+    }
+
+    /**
+     * 接管超时未确认的消息，消费者宕机或者一直处理失败的消息都会被接管
+     * 1. XAUTOCLAIM 把空闲超过minIdle的消息转给自己，投递次数加1
+     * 2. XPENDING 查出这些消息的投递次数，超过maxDeliveries的写进死信队列并确认
+     * 3. 其余的按批处理，失败的等下一次再被接管
+     * 每个节点都有一个，XAUTOCLAIM是原子的，同一条消息不会被两个节点同时接管
+     * 分片券的stream每个都要接管一遍，每个stream一个cursor
+     */
+    private class PendingReclaimer implements Runnable {
+
+        private final SeckillProperties.Consumer config = seckillProperties.getConsumer();
+        private final SeckillProperties.Reclaim reclaim = seckillProperties.getReclaim();
+        private final String consumerName;
+        private final Map<String, String> cursors = new HashMap<>();
+
+        PendingReclaimer(String consumerName) {
+            this.consumerName = consumerName;
+        }
+
+        @Override
+        public void run() {
+            for (String stream : orderStreams()) {
+                try {
+                    while (running) {
+                        // 1. 每次最多接管一批，cursor回到0-0说明扫完了一遍
+                        List<MapRecord<String, Object, Object>> claimed = autoClaim(stream);
+                        if (!claimed.isEmpty()) {
+                            reclaimedCounter.increment(claimed.size());
+                            handleClaimed(stream, claimed);
+                        }
+                        if ("0-0".equals(cursors.get(stream))) {
+                            break;
+                        }
                     }
+                } catch (Exception e) {
+                    // 异常不能抛出去，否则定时任务就停了
+                    log.error("接管pending-list消息异常, stream: {}", stream, e);
                 }
             }
+            cursors.keySet().retainAll(orderStreams);
+        }
+
+        private void handleClaimed(String stream, List<MapRecord<String, Object, Object>> claimed) {
+            // 2. 查出投递次数
+            Map<String, Long> deliveries = new HashMap<>();
+            PendingMessages pending = stringRedisTemplate.opsForStream().pending(stream,
+                    Consumer.from(config.getGroup(), consumerName),
+                    Range.closed(claimed.get(0).getId().getValue(), claimed.get(claimed.size() - 1).getId().getValue()),
+                    claimed.size());
+            pending.forEach(message -> deliveries.put(message.getIdAsString(), message.getTotalDeliveryCount()));
+            // 3. 超过重试次数的进死信队列，其余的整批处理
+            List<MapRecord<String, Object, Object>> retry = new ArrayList<>(claimed.size());
+            for (MapRecord<String, Object, Object> record : claimed) {
+                long count = deliveries.getOrDefault(record.getId().getValue(), 0L);
+                if (count > reclaim.getMaxDeliveries()) {
+                    deadLetter(record, count);
+                } else {
+                    retry.add(record);
+                }
+            }
+            if (!retry.isEmpty()) {
+                handleBatch(retry, consumerName);
+            }
+        }
+
+        private void deadLetter(MapRecord<String, Object, Object> record, long deliveries) {
+            String id = record.getId().getValue();
+            Map<String, String> fields = new LinkedHashMap<>();
+            record.getValue().forEach((k, v) -> fields.put(String.valueOf(k), String.valueOf(v)));
+            fields.put("originalStream", record.getStream());
+            fields.put("originalId", id);
+            fields.put("deliveries", String.valueOf(deliveries));
+            fields.put("reason", failures.getOrDefault(id, "超过最大投递次数, 失败原因不在本节点"));
+            // XADD stream.orders.dlq * ... 之后再确认，写失败了下次还会被接管
+            stringRedisTemplate.opsForStream().add(
+                    StreamRecords.newRecord().in(reclaim.getDeadLetterStream()).ofMap(fields));
+            stringRedisTemplate.opsForStream().acknowledge(record.getStream(), config.getGroup(), record.getId());
+            failures.remove(id);
+            deadLetterCounter.increment();
+            Object orderId = record.getValue().get("id");
+            if (orderId != null && NumberUtil.isLong(orderId.toString())) {
+                seckillOrderStatus.record(Long.valueOf(orderId.toString()), SeckillOrderStatus.Status.FAILED);
+            }
+            log.error("订单消息进入死信队列, id: {}, 投递次数: {}, 原因: {}", id, deliveries, fields.get("reason"));
+        }
+
+        /**
+         * XAUTOCLAIM stream.orders g1 {consumerName} {minIdle} {cursor} COUNT {batchSize}
+         * Spring Data Redis还没有封装这个命令，直接执行，回复是 [下一个cursor, [[id, [k, v, ...]], ...], ...]
+         * 已经被XDEL删掉的消息没有内容，直接确认掉
+         */
+        @SuppressWarnings("unchecked")
+        private List<MapRecord<String, Object, Object>> autoClaim(String stream) {
+            String cursor = cursors.getOrDefault(stream, "0-0");
+            List<Object> reply = stringRedisTemplate.execute((RedisCallback<List<Object>>) connection ->
+                    (List<Object>) connection.execute("XAUTOCLAIM",
+                            bytes(stream), bytes(config.getGroup()), bytes(consumerName),
+                            bytes(String.valueOf(reclaim.getMinIdle().toMillis())), bytes(cursor),
+                            bytes("COUNT"), bytes(String.valueOf(reclaim.getBatchSize()))));
+            List<MapRecord<String, Object, Object>> records = new ArrayList<>();
+            if (reply == null || reply.size() < 2) {
+                cursors.put(stream, "0-0");
+                return records;
+            }
+            cursors.put(stream, string(reply.get(0)));
+            for (Object item : (List<Object>) reply.get(1)) {
+                if (!(item instanceof List<?> entry) || entry.size() < 2) {
+                    continue;
+                }
+                String id = string(entry.get(0));
+                if (!(entry.get(1) instanceof List<?> kv)) {
+                    stringRedisTemplate.opsForStream().acknowledge(stream, config.getGroup(), id);
+                    continue;
+                }
+                Map<Object, Object> value = new LinkedHashMap<>();
+                for (int i = 0; i + 1 < kv.size(); i += 2) {
+                    value.put(string(kv.get(i)), string(kv.get(i + 1)));
+                }
+                records.add(StreamRecords.newRecord().in(stream).withId(RecordId.of(id)).ofMap(value));
+            }
+            return records;
+        }
+
+        private static byte[] bytes(String value) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        private static String string(Object value) {
+            return value instanceof byte[] b ? new String(b, StandardCharsets.UTF_8) : String.valueOf(value);
         }
     }
 
@@ -158,29 +584,17 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     private void handleVoucherOrder(VoucherOrder voucherOrder) {
         // 用户id不能从userHolder去取，现在是从线程池获取的全新的线程而不是主线程
-        // 从ThreadLocal去取这个用户是取不到的
-        // 1. 获取用户
-        Long userId = voucherOrder.getUserId();
-        // 2. 创建锁对象
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        // 3. 获取锁
-        boolean isLock = lock.tryLock();
-        // 4. 判断是否获取锁成功
-        if (!isLock) {
-            // 异步处理不用返回给前端
-            log.error("不允许重复下单");
-            return;
-        }
+        // 以前按用户加Redisson锁，是为了保护"先查订单数再插入"；现在一人一单由(user_id, voucher_id)唯一索引保证，不需要锁了
         // 事务代理对象是拿不到的，代理对象也是基于ThreadLocal获取的，子线程是没有办法去ThreadLocal取出想要的东西的
-        // 只能事务对象提前获取 -> 在主线程获取
-        try {
-            // 异步处理，不再需要返回给前端任何东西
-            proxy.createVoucherOrder2(voucherOrder);
-        } finally {
-            lock.unlock();
-        }
+        // 异步处理，不再需要返回给前端任何东西
+        boolean created = proxy.createVoucherOrder2(voucherOrder);
+        seckillOrderStatus.record(voucherOrder.getId(),
+                created ? SeckillOrderStatus.Status.SUCCESS : SeckillOrderStatus.Status.SOLD_OUT);
     }
 
+    // 事务代理对象，消费线程里拿不到AopContext，启动时注入，不用等第一次秒杀请求
+    @Lazy
+    @Resource
     private IVoucherOrderService proxy;
 
     // 订单新增和库存扣减涉及到两张表的操作，这种情况最好加上事务
@@ -188,25 +602,74 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     public Result seckillVoucher(Long voucherId) {
         // 获取用户
         Long userId = UserHolder.getUser().getId();
-        // 2.3. 订单id
-        long orderId = redisIdWorker.nextId("order");
-        // 1. 执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(), String.valueOf(orderId)
-        );
+        // 不在秒杀时间内的请求按内存里的时间窗口直接拒绝
+        SeckillVoucherCache.Window window = seckillVoucherCache.get(voucherId);
+        if (window == null) {
+            return Result.fail("秒杀券不存在");
+        }
+        long now = System.currentTimeMillis();
+        if (window.notStarted(now)) {
+            return Result.fail("秒杀尚未开始!");
+        }
+        if (window.ended(now)) {
+            return Result.fail("秒杀已经结束!");
+        }
+        // 已经卖完的券在本地直接拒绝，不用生成订单id，也不用访问Redis
+        if (seckillStock.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        // 准入控制，被拒绝的请求也不执行脚本
+        SeckillAdmission.Decision decision = seckillAdmission.admit(voucherId, userId);
+        if (decision != SeckillAdmission.Decision.ADMITTED) {
+            return Result.fail(decision.getMessage());
+        }
+        // 1. 执行lua脚本，分片的券在用户所在的分片上执行
+        // 订单id在脚本里生成，没有购买资格的请求不再多访问一次Redis去生成id
+        SeckillStock.Purchase purchase = seckillStock.tryPurchase(voucherId, userId, window);
         // 2. 判断结果是否为0
-        int r = result.intValue();
+        int r = purchase.result();
         if (r != 0) {
-            // 2.1. 不为0, 代表没有购买资格
-            return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
+            // 2.1. 不为0, 代表没有购买资格，3和4是本地时钟和Redis的时间不一致
+            return Result.fail(switch (r) {
+                case 1 -> "库存不足";
+                case 2 -> "不能重复下单";
+                case 3 -> "秒杀尚未开始!";
+                default -> "秒杀已经结束!";
+            });
         }
-        // 3. 获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
-        // 有两种方法，一种是也把他传入阻塞队列中，还有一种放到成员变量的位置
-        // 4. 返回订单id
-        return Result.ok(orderId);
+        // 3. 返回订单id
+        return Result.ok(purchase.orderId());
+    }
+
+    @Override
+    public DeferredResult<Result> queryOrderStatus(Long orderId, Long timeout) {
+        SeckillProperties.OrderStatus config = seckillProperties.getOrderStatus();
+        long wait = timeout == null ? config.getPollTimeout().toMillis()
+                : Math.max(0, Math.min(timeout, config.getMaxPollTimeout().toMillis()));
+        // 容器的异步超时比等待时间稍长，正常情况下总是由等待的结果完成
+        DeferredResult<Result> result = new DeferredResult<>(wait + 5000);
+        seckillOrderStatus.await(orderId, wait).whenComplete((status, e) -> {
+            if (e != null) {
+                result.setErrorResult(e);
+            } else {
+                result.setResult(Result.ok(status));
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public Result takeSeckillTicket(Long voucherId) {
+        if (seckillStock.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        return Result.ok(seckillAdmission.takeTicket(voucherId, UserHolder.getUser().getId()));
+    }
+
+    @Override
+    public Result querySeckillTicket(Long voucherId) {
+        SeckillAdmission.Ticket ticket = seckillAdmission.queryTicket(voucherId, UserHolder.getUser().getId());
+        return ticket == null ? Result.fail("请先排队") : Result.ok(ticket);
     }
     // 订单新增和库存扣减涉及到两张表的操作，这种情况最好加上事务
 //    @Override
@@ -336,7 +799,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         // 7. 创建订单
         VoucherOrder voucherOrder = new VoucherOrder();
         // 7.1. 订单id
-        long orderId = redisIdWorker.nextId("order");
+        long orderId = idGenerator.nextId("order");
         voucherOrder.setId(orderId);
         // 7.2. 用户id
         voucherOrder.setUserId(userId);
@@ -348,22 +811,10 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     }
 
     @Transactional
-    public void createVoucherOrder2(VoucherOrder voucherOrder) {
-        // 新增数据只能判断是否存在，而不能判断是否修改过，只能用悲观锁
-        // 5. 一人一单
-        // 加锁应该是当前用户，以用户id加锁，减小锁定资源范围
+    public boolean createVoucherOrder2(VoucherOrder voucherOrder) {
+        // 5. 一人一单不再先查订单数(没有索引时是全表扫描)，交给(user_id, voucher_id)唯一索引
         // userId不能通过ThreadLocal获取，是异步的子线程，要从voucherOrder里面去取
 //        bug: Long userId = UserHolder.getUser().getId();
-        Long userId = voucherOrder.getUserId();
-        // 去字符串常量池找和这个值一样的字符串地址，这样就能确保用户的id一样，锁就一样
-        // 5.1. 查询订单
-        Long count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
-        // 5.2. 判断是否存在
-        if (count > 0) {
-            // 用户已经购买过了
-            log.error("用户已经购买过一次！");
-            return;
-        }
 
         // 6. 扣减库存
         boolean success = seckillVoucherService.update()
@@ -374,13 +825,101 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                 .eq("voucher_id", voucherOrder.getVoucherId()).gt("stock", 0)
                 .update();
         if (!success) {
-            // 扣减失败
+            // 扣减失败，卖完之后才重复投递的订单扣不到库存，但之前已经成立了
+            if (!getBaseMapper().selectUserIds(voucherOrder.getVoucherId(), List.of(voucherOrder.getUserId())).isEmpty()) {
+                log.error("用户已经购买过一次！userId: {}, voucherId: {}", voucherOrder.getUserId(), voucherOrder.getVoucherId());
+                return true;
+            }
             log.error("库存不足！");
-            return;
+            return false;
         }
 
-        // 7. 创建订单
-        save(voucherOrder);
-        // 也不需要返回id了，业务是异步执行的
+        // 7. 创建订单 INSERT IGNORE，已经存在的订单被唯一索引忽略
+        if (getBaseMapper().insertBatch(List.of(voucherOrder)) == 0) {
+            // 用户已经购买过了(消息重复投递)，回滚扣掉的库存
+            log.error("用户已经购买过一次！userId: {}, voucherId: {}", voucherOrder.getUserId(), voucherOrder.getVoucherId());
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+        }
+        // 也不需要返回id了，业务是异步执行的，只返回订单是否成立(重复投递的订单之前已经成立了)
+        return true;
+    }
+
+    /**
+     * 批量下单，一批消息一个事务
+     * 1. 一人一单: 批次内去重，数据库里已经存在的由(user_id, voucher_id)唯一索引在INSERT IGNORE时忽略
+     * 2. 扣库存: 每种券一条UPDATE，stock = stock - k WHERE stock >= k
+     * 3. 写订单: 每种券一条多行INSERT IGNORE，被忽略的订单把库存还回去
+     * 返回因为库存不足没有写入的订单，库存不足时先查出已经写入过的订单，它们不算在里面
+     */
+    @Override
+    @Transactional
+    public List<VoucherOrder> createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        // 1. 一人一单，同一批里重复投递的消息先去掉
+        Map<String, VoucherOrder> unique = new LinkedHashMap<>();
+        for (VoucherOrder order : voucherOrders) {
+            if (unique.putIfAbsent(order.getUserId() + ":" + order.getVoucherId(), order) != null) {
+                log.error("用户已经购买过一次！userId: {}, voucherId: {}", order.getUserId(), order.getVoucherId());
+            }
+        }
+        // 2. 按券分组扣库存
+        List<VoucherOrder> soldOut = new ArrayList<>();
+        Map<Long, List<VoucherOrder>> byVoucher = unique.values().stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        for (Map.Entry<Long, List<VoucherOrder>> entry : byVoucher.entrySet()) {
+            Long voucherId = entry.getKey();
+            List<VoucherOrder> orders = entry.getValue();
+            List<VoucherOrder> accepted = new ArrayList<>(orders.size());
+            int k = orders.size();
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + k)
+                    .eq("voucher_id", voucherId).ge("stock", k)
+                    .update();
+            if (success) {
+                accepted.addAll(orders);
+            } else {
+                // 库存不够整批扣，先去掉之前已经写入过的订单(卖完之后才重复投递)，它们已经成立，不用再扣库存
+                Set<Long> existing = new HashSet<>(getBaseMapper().selectUserIds(voucherId,
+                        orders.stream().map(VoucherOrder::getUserId).collect(Collectors.toList())));
+                if (!existing.isEmpty()) {
+                    log.error("用户已经购买过一次！voucherId: {}, 重复订单数: {}", voucherId, existing.size());
+                }
+                // 剩下的逐个扣，扣完为止，扣不到的订单不成立
+                boolean empty = false;
+                for (VoucherOrder order : orders) {
+                    if (existing.contains(order.getUserId())) {
+                        continue;
+                    }
+                    if (!empty) {
+                        empty = !seckillVoucherService.update()
+                                .setSql("stock = stock -1")
+                                .eq("voucher_id", voucherId).gt("stock", 0)
+                                .update();
+                        if (empty) {
+                            log.error("库存不足！voucherId: {}", voucherId);
+                        }
+                    }
+                    if (empty) {
+                        soldOut.add(order);
+                    } else {
+                        accepted.add(order);
+                    }
+                }
+            }
+            if (accepted.isEmpty()) {
+                continue;
+            }
+            // 3. 写入订单，已经存在的被唯一索引忽略
+            int inserted = getBaseMapper().insertBatch(accepted);
+            int duplicated = accepted.size() - inserted;
+            if (duplicated > 0) {
+                // 之前已经写入过的订单(消息重复投递)，多扣的库存还回去
+                log.error("用户已经购买过一次！voucherId: {}, 重复订单数: {}", voucherId, duplicated);
+                seckillVoucherService.update()
+                        .setSql("stock = stock + " + duplicated)
+                        .eq("voucher_id", voucherId)
+                        .update();
+            }
+        }
+        return soldOut;
     }
 }
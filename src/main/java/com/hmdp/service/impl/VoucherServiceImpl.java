@@ -7,16 +7,17 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.utils.SeckillStock;
+import com.hmdp.utils.SeckillVoucherCache;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import jakarta.annotation.Resource;
 
 import java.util.List;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
-
 /**
  * <p>
  * 服务实现类
@@ -31,7 +32,9 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private ISeckillVoucherService seckillVoucherService;
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private SeckillStock seckillStock;
+    @Resource
+    private SeckillVoucherCache seckillVoucherCache;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -53,7 +56,38 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        // 保存秒杀库存到Redis中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        // 秒杀时间窗口写入所有节点的内存，秒杀请求不用查数据库
+        seckillVoucherCache.put(seckillVoucher);
+        // 保存秒杀库存到Redis中，热门券按配置拆成多个分片
+        seckillStock.init(voucher.getId(), voucher.getStock());
+    }
+
+    @Override
+    @Transactional
+    public Result addSeckillStock(Long voucherId, Integer amount) {
+        if (amount == null || amount <= 0) {
+            return Result.fail("库存数量必须大于0");
+        }
+        // 1. 数据库加库存
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock + " + amount)
+                .eq("voucher_id", voucherId)
+                .update();
+        if (!success) {
+            return Result.fail("秒杀券不存在");
+        }
+        // 2. 事务提交之后再给Redis加库存、清除所有节点的售罄标记
+        // 提交前加，事务回滚时Redis多出来的库存会超卖；提交后加失败，由对账按数据库补上
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    seckillStock.addStock(voucherId, amount);
+                }
+            });
+        } else {
+            seckillStock.addStock(voucherId, amount);
+        }
+        return Result.ok();
     }
 }
@@ -0,0 +1,320 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.BooleanUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.config.CacheProperties;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.User;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.UserMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RBloomFilter;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.LongCodec;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 布隆过滤器解决缓存穿透
+ * 1. Redis里用Redisson的RBloomFilter保存一份，所有节点共享
+ * 2. 每个节点在JVM里再放一份镜像，镜像准备好之后只用镜像判断，不访问Redis；新增的id通过发布订阅同步给其他节点
+ *    发布订阅的消息可能丢，定时从数据库补上镜像加载之后新增的id，丢消息最多影响一个补齐间隔
+ * 3. 启动时从数据库分页加载id预热，新增数据时追加，快饱和时定时任务重建，镜像还没加载完时用Redis里的过滤器判断
+ * 布隆过滤器说不存在就一定不存在，说存在只是可能存在，所以没准备好的时候一律放行
+ */
+@Slf4j
+@Component
+public class BloomFilterGuard {
+
+    private static final int LOAD_BATCH_SIZE = 1000;
+    private static final String SEPARATOR = "|";
+
+    @Resource
+    private ShopMapper shopMapper;
+    @Resource
+    private BlogMapper blogMapper;
+    @Resource
+    private UserMapper userMapper;
+    @Resource
+    private RedissonClient redissonClient;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+    @Resource
+    private CacheProperties cacheProperties;
+
+    // 过滤器的key -> 过滤器
+    private final Map<String, Filter> filters = new ConcurrentHashMap<>();
+    // 缓存key前缀 -> 过滤器，给CacheClient用
+    private final Map<String, Filter> filtersByCachePrefix = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        this.<Shop>register(BLOOM_SHOP_KEY, CACHE_SHOP_KEY, shopMapper);
+        this.<Blog>register(BLOOM_BLOG_KEY, null, blogMapper);
+        this.<User>register(BLOOM_USER_KEY, CACHE_USER_KEY, userMapper);
+        // 其他节点新增的id
+        listenerContainer.addMessageListener(
+                (message, pattern) -> onAdd(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(BLOOM_ADD_CHANNEL));
+    }
+
+    private <T> void register(String bloomKey, String cachePrefix, BaseMapper<T> mapper) {
+        // 按id分页，只查id一列
+        IdPageLoader loader = lastId -> mapper.selectObjs(new QueryWrapper<T>()
+                .select("id").gt("id", lastId).orderByAsc("id").last("LIMIT " + LOAD_BATCH_SIZE));
+        Filter filter = new Filter(bloomKey, loader);
+        filters.put(bloomKey, filter);
+        if (cachePrefix != null) {
+            filtersByCachePrefix.put(cachePrefix, filter);
+        }
+    }
+
+    /**
+     * id是否可能存在
+     * @return false代表一定不存在，可以直接拒绝
+     */
+    public boolean mightContain(String bloomKey, Long id) {
+        Filter filter = filters.get(bloomKey);
+        if (filter == null || id == null) {
+            return true;
+        }
+        // 1. JVM里的镜像已经准备好，直接用镜像判断，漏掉的新增消息由定时补齐修复
+        LocalBloomFilter mirror = filter.mirror;
+        if (mirror != null) {
+            return mirror.mightContain(id);
+        }
+        // 2. 镜像还在预热，Redis里的过滤器加载完成了就用Redis的判断
+        try {
+            if (BooleanUtil.isTrue(stringRedisTemplate.hasKey(readyKey(bloomKey)))) {
+                return filter.redisFilter().contains(id);
+            }
+        } catch (Exception e) {
+            log.error("查询布隆过滤器异常, key: {}", bloomKey, e);
+        }
+        // 3. Redis里的过滤器也没准备好(比如正在重建)，放行
+        return true;
+    }
+
+    /**
+     * 按缓存key前缀判断，没有注册过滤器的前缀一律放行
+     */
+    public boolean mightContainForCache(String keyPrefix, Object id) {
+        Filter filter = filtersByCachePrefix.get(keyPrefix);
+        if (filter == null || !(id instanceof Number number)) {
+            return true;
+        }
+        return mightContain(filter.bloomKey, number.longValue());
+    }
+
+    /**
+     * 新增数据后调用，写入Redis和本地镜像，并通知其他节点
+     */
+    public void add(String bloomKey, Long id) {
+        Filter filter = filters.get(bloomKey);
+        if (filter == null || id == null) {
+            return;
+        }
+        filter.addLocal(id);
+        try {
+            filter.redisFilter().add(id);
+        } catch (Exception e) {
+            // 重建期间过滤器可能还没初始化，重建会从数据库重新加载，这里不用处理
+            log.warn("写入布隆过滤器失败, key: {}, id: {}", bloomKey, id, e);
+        }
+        stringRedisTemplate.convertAndSend(BLOOM_ADD_CHANNEL,
+                NodeId.VALUE + SEPARATOR + bloomKey + SEPARATOR + id);
+    }
+
+    private void onAdd(String body) {
+        String[] parts = body.split("\\|");
+        if (parts.length != 3 || NodeId.VALUE.equals(parts[0])) {
+            return;
+        }
+        Filter filter = filters.get(parts[1]);
+        if (filter != null) {
+            filter.addLocal(Long.parseLong(parts[2]));
+        }
+    }
+
+    /**
+     * 启动完成后在后台预热，不阻塞启动
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        Thread.ofPlatform().name("bloom-warmup").daemon().start(() -> {
+            CacheProperties.Bloom config = cacheProperties.getBloom();
+            for (Filter filter : filters.values()) {
+                try {
+                    rebuildRedis(filter, config.getExpectedInsertions(), false);
+                    rebuildMirror(filter, config.getExpectedInsertions());
+                } catch (Exception e) {
+                    log.error("布隆过滤器预热失败, key: {}", filter.bloomKey, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 定时检查是否快饱和，饱和后误判率会急剧上升，需要按更大的容量重建
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.bloom.check-interval:60000}")
+    public void rebuildIfSaturated() {
+        CacheProperties.Bloom config = cacheProperties.getBloom();
+        for (Filter filter : filters.values()) {
+            try {
+                LocalBloomFilter mirror = filter.mirror;
+                if (mirror != null && mirror.insertions() > mirror.expectedInsertions() * config.getSaturation()) {
+                    long expected = Math.max(config.getExpectedInsertions(), mirror.insertions() * 2);
+                    log.info("布隆过滤器接近饱和，开始重建, key: {}, 容量: {}", filter.bloomKey, expected);
+                    rebuildRedis(filter, expected, true);
+                    rebuildMirror(filter, expected);
+                }
+            } catch (Exception e) {
+                log.error("重建布隆过滤器失败, key: {}", filter.bloomKey, e);
+            }
+        }
+    }
+
+    /**
+     * 定时从数据库补上镜像加载之后新增的id，修复发布订阅丢掉的新增消息
+     * id是自增的，只需要查比上次加载到的id更大的，没有新增时只有一次走主键索引的空查询
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.bloom.resync-interval:10000}")
+    public void resyncMirrors() {
+        for (Filter filter : filters.values()) {
+            if (filter.mirror == null || filter.building != null) {
+                // 还在预热或者正在重建，重建完会从头加载
+                continue;
+            }
+            try {
+                filter.loadedId = loadIds(filter.loader, filter.loadedId, ids -> ids.forEach(filter::addLocal));
+            } catch (Exception e) {
+                log.error("补齐布隆过滤器镜像失败, key: {}", filter.bloomKey, e);
+            }
+        }
+    }
+
+    /**
+     * 重建Redis里的过滤器，多个节点只需要一个去做
+     * @param force false: 已经存在就不重建; true: 删掉按新容量重建
+     */
+    private void rebuildRedis(Filter filter, long expectedInsertions, boolean force) {
+        RBloomFilter<Long> redisFilter = filter.redisFilter();
+        RLock lock = redissonClient.getLock(LOCK_CACHE_KEY + filter.bloomKey);
+        if (!lock.tryLock()) {
+            // 其他节点正在重建
+            return;
+        }
+        try {
+            String readyKey = readyKey(filter.bloomKey);
+            if (!force && BooleanUtil.isTrue(stringRedisTemplate.hasKey(readyKey))) {
+                return;
+            }
+            if (force && redisFilter.isExists() && redisFilter.getExpectedInsertions() >= expectedInsertions) {
+                // 其他节点已经按更大的容量重建过了
+                return;
+            }
+            stringRedisTemplate.delete(readyKey);
+            redisFilter.delete();
+            redisFilter.tryInit(expectedInsertions, cacheProperties.getBloom().getFalseProbability());
+            loadIds(filter.loader, 0, ids -> redisFilter.add(ids));
+            // 加载完成后才允许用Redis里的过滤器做判断
+            stringRedisTemplate.opsForValue().set(readyKey, "1");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 重建本地镜像，重建期间新增的id同时写入新旧两份，完成后替换
+     */
+    private void rebuildMirror(Filter filter, long expectedInsertions) {
+        LocalBloomFilter building = new LocalBloomFilter(
+                expectedInsertions, cacheProperties.getBloom().getFalseProbability());
+        filter.building = building;
+        long lastId = loadIds(filter.loader, 0, ids -> ids.forEach(building::add));
+        filter.loadedId = lastId;
+        filter.mirror = building;
+        filter.building = null;
+        log.info("布隆过滤器加载完成, key: {}, id数量: {}", filter.bloomKey, building.insertions());
+    }
+
+    /**
+     * 从lastId之后分页加载id
+     * @return 加载到的最大id，没有新的id就是传入的lastId
+     */
+    private long loadIds(IdPageLoader loader, long lastId, Consumer<List<Long>> consumer) {
+        while (true) {
+            List<Long> ids = loader.load(lastId).stream()
+                    // bigint unsigned 查出来可能是BigInteger
+                    .map(id -> ((Number) id).longValue())
+                    .toList();
+            if (ids.isEmpty()) {
+                return lastId;
+            }
+            consumer.accept(ids);
+            lastId = ids.get(ids.size() - 1);
+        }
+    }
+
+    private static String readyKey(String bloomKey) {
+        return bloomKey + ":ready";
+    }
+
+    @FunctionalInterface
+    private interface IdPageLoader {
+        List<Object> load(long lastId);
+    }
+
+    private class Filter {
+        private final String bloomKey;
+        private final IdPageLoader loader;
+        // 正在使用的镜像，null代表还没预热完
+        private volatile LocalBloomFilter mirror;
+        // 正在重建的镜像
+        private volatile LocalBloomFilter building;
+        // 镜像从数据库加载到的最大id，定时补齐从这里往后查
+        private volatile long loadedId;
+
+        Filter(String bloomKey, IdPageLoader loader) {
+            this.bloomKey = bloomKey;
+            this.loader = loader;
+        }
+
+        RBloomFilter<Long> redisFilter() {
+            return redissonClient.getBloomFilter(bloomKey, LongCodec.INSTANCE);
+        }
+
+        void addLocal(long id) {
+            LocalBloomFilter current = mirror;
+            if (current != null) {
+                current.add(id);
+            }
+            LocalBloomFilter next = building;
+            if (next != null) {
+                next.add(id);
+            }
+        }
+    }
+}
@@ -1,21 +1,33 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import com.hmdp.config.CacheProperties;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.data.redis.connection.ReactiveStringCommands;
-import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
-import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -25,21 +37,124 @@ public class CacheClient {
 
     private final StringRedisTemplate stringRedisTemplate;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    // 缓存值是二进制的，读写缓存值用这个，锁之类的字符串操作还是用stringRedisTemplate
+    private final RedisTemplate<String, byte[]> cacheRedisTemplate;
+
+    // 缓存值的编解码
+    private final CacheSerializer cacheSerializer;
+
+    // 防穿透的空值
+    private static final byte[] NULL_VALUE = new byte[0];
+
+    // 进程内一级缓存，热点key不用每次都走网络和反序列化
+    private final LocalCache localCache;
+
+    private final CacheProperties cacheProperties;
+
+    // 通知其他节点清理本地缓存
+    private final CacheInvalidationBus invalidationBus;
+
+    // 合并本节点内同一个key的并发加载
+    private final SingleFlight singleFlight;
+
+    // 一定不存在的id直接拦截，不查Redis也不查数据库
+    private final BloomFilterGuard bloomFilterGuard;
+
+    // 异步重建缓存的线程池，全局共用一个
+    private final CacheRebuildExecutor rebuildExecutor;
+
+    /**
+     * 没抢到互斥锁时，每次等待持锁线程重建的最长时间
+     */
+    private static final long REMOTE_REBUILD_WAIT_MILLIS = 200;
+
+    // 正在等待重建的key，其他节点重建的收到失效广播，本节点重建的释放锁时唤醒
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> remoteRebuilds = new ConcurrentHashMap<>();
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, RedisTemplate<String, byte[]> cacheRedisTemplate,
+                       CacheSerializer cacheSerializer, LocalCache localCache, CacheProperties cacheProperties,
+                       CacheInvalidationBus invalidationBus, SingleFlight singleFlight,
+                       BloomFilterGuard bloomFilterGuard, CacheRebuildExecutor rebuildExecutor) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.cacheRedisTemplate = cacheRedisTemplate;
+        this.cacheSerializer = cacheSerializer;
+        this.localCache = localCache;
+        this.cacheProperties = cacheProperties;
+        this.invalidationBus = invalidationBus;
+        this.singleFlight = singleFlight;
+        this.bloomFilterGuard = bloomFilterGuard;
+        this.rebuildExecutor = rebuildExecutor;
+        // 其他节点改了缓存，清理本节点的本地缓存，同时唤醒在等这个key重建的线程
+        invalidationBus.subscribe(keys -> keys.forEach(this::onRemoteInvalidate));
     }
 
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        set(key, value, unit.toMillis(time), 0);
     }
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
-        // 设置逻辑过期
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        setWithLogicalExpire(key, value, unit.toMillis(time), 0);
+    }
+
+    /**
+     * 批量写入逻辑过期的缓存，一次pipeline，失效消息也只发一条，预热的时候用
+     * @param values key -> 数据
+     */
+    public void setWithLogicalExpire(Map<String, ?> values, Long time, TimeUnit unit) {
+        if (values.isEmpty()) {
+            return;
+        }
+        long ttlMillis = unit.toMillis(time);
+        cacheRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            RedisStringCommands commands = connection.stringCommands();
+            values.forEach((key, value) -> {
+                // 每个key的过期时间各自抖动
+                long expireAt = System.currentTimeMillis() + jitter(key, ttlMillis);
+                commands.set(key.getBytes(StandardCharsets.UTF_8), cacheSerializer.serialize(value, expireAt, true, 0));
+            });
+            return null;
+        });
+        values.keySet().forEach(localCache::invalidate);
+        invalidationBus.publish(values.keySet());
+    }
+
+    /**
+     * @param costMillis 这次重建查数据库花的时间，写在头部，用来计算提前刷新的概率
+     */
+    private void set(String key, Object value, long ttlMillis, int costMillis) {
+        // TTL加上随机抖动，同一批写入的key不会在同一时刻过期
+        long ttl = jitter(key, ttlMillis);
+        byte[] bytes = cacheSerializer.serialize(value, System.currentTimeMillis() + ttl, false, costMillis);
+        cacheRedisTemplate.opsForValue().set(key, bytes, ttl, TimeUnit.MILLISECONDS);
+        invalidateLocal(key);
+    }
+
+    private void setWithLogicalExpire(String key, Object value, long ttlMillis, int costMillis) {
+        // 设置逻辑过期，过期时间写在头部，同样加上随机抖动
+        long expireAt = System.currentTimeMillis() + jitter(key, ttlMillis);
         // 写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        cacheRedisTemplate.opsForValue().set(key, cacheSerializer.serialize(value, expireAt, true, costMillis));
+        invalidateLocal(key);
+    }
+
+    /**
+     * 删除缓存，所有节点的本地缓存一起失效
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        invalidateLocal(key);
+    }
+
+    /**
+     * 批量删除缓存，一次DEL，失效消息也只发一条
+     */
+    public void delete(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.delete(keys);
+        keys.forEach(localCache::invalidate);
+        invalidationBus.publish(keys);
     }
 
     // 返回值肯定不是Shop, 因为定义的是工具, 当一个返回值不确定的时候要用泛型
@@ -48,77 +163,484 @@ public class CacheClient {
     // 类型不确定，全部用泛型
     public <R, ID> R queryWithPassThrough(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        // 0. 布隆过滤器判断一定不存在，直接返回
+        if (!bloomFilterGuard.mightContainForCache(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
-        // 1. 从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        // 1. 先查本地缓存，再查redis
+        LocalValue cached = getCached(key, localTtl(keyPrefix), type);
         // 2. 判断是否存在
-        if (StrUtil.isNotBlank(json)) {
-            // 3. 存在，反序列化，直接返回
-            return JSONUtil.toBean(json, type);
-        }
-        // 判断命中的是否是空值
-        if (json != null) {
-            // 返回一个错误信息
-            return null;
+        if (cached != null) {
+            // 快过期了按概率提前在后台刷新
+            refreshEarlyIfNeeded(key, cached, () -> loadAndSet(key, id, dbFallback, time, unit));
+            // 3. 存在，直接返回，命中的可能是空值
+            return type.cast(cached.data());
         }
         // 4. 不存在，根据id查询数据库
         // 逻辑不知道就不要写了，交给调用者
         // 传递数据库查询的逻辑，其实就是函数, 有参数有返回值的函数，在java里面叫Function
         // 做函数式编程
+        // 同一个key并发未命中时只有一个线程查数据库，其余线程等它的结果
+        return singleFlight.execute(key, () -> loadAndSet(key, id, dbFallback, time, unit));
+    }
+
+    /**
+     * 批量查询，解决循环里逐个查缓存、逐个查数据库的问题
+     * 1. 本地缓存未命中的key一次MGET
+     * 2. Redis也未命中的id一次交给dbFallback批量查数据库
+     * 3. 查回来的结果一次pipeline写回，数据库里不存在的写入空值，和queryWithPassThrough一致
+     * 逻辑过期的key也能批量查，已过期的会一起重新加载，写回时仍然按逻辑过期写
+     * @param dbFallback 参数是未命中的id，返回id -> 数据，不存在的id不用放进去
+     * @return id -> 数据，按传入的顺序，不存在的id不在结果里
+     */
+    public <R, ID> Map<ID, R> queryBatch(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                         Function<Collection<ID>, Map<ID, R>> dbFallback, Long time, TimeUnit unit) {
+        Map<ID, R> result = new LinkedHashMap<>();
+        // 0. 去重，布隆过滤器判断一定不存在的直接去掉
+        List<ID> candidates = new ArrayList<>();
+        for (ID id : new LinkedHashSet<>(ids)) {
+            if (bloomFilterGuard.mightContainForCache(keyPrefix, id)) {
+                candidates.add(id);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return result;
+        }
+        // 1. 先查本地缓存
+        Duration localTtl = localTtl(keyPrefix);
+        long now = System.currentTimeMillis();
+        List<ID> remoteIds = new ArrayList<>(candidates.size());
+        for (ID id : candidates) {
+            LocalValue local = getLocal(keyPrefix + id, localTtl);
+            if (local == null || (local.data() != null && local.expireAt() <= now)) {
+                remoteIds.add(id);
+            } else if (local.data() != null) {
+                result.put(id, type.cast(local.data()));
+            }
+        }
+        // 2. 剩下的一次MGET
+        List<ID> missIds = new ArrayList<>();
+        // 命中了逻辑过期数据的id，写回时也要按逻辑过期写
+        Set<ID> logical = new HashSet<>();
+        if (!remoteIds.isEmpty()) {
+            List<String> keys = remoteIds.stream().map(id -> keyPrefix + id).toList();
+            List<byte[]> values = cacheRedisTemplate.opsForValue().multiGet(keys);
+            for (int i = 0; i < remoteIds.size(); i++) {
+                ID id = remoteIds.get(i);
+                byte[] bytes = values == null ? null : values.get(i);
+                if (bytes == null) {
+                    missIds.add(id);
+                    continue;
+                }
+                if (bytes.length == 0) {
+                    // 空值，数据库里也没有
+                    putLocal(keys.get(i), localTtl, new LocalValue(null, 0, 0), 1);
+                    continue;
+                }
+                if (!cacheSerializer.isReadable(bytes)) {
+                    missIds.add(id);
+                    continue;
+                }
+                long expireAt = cacheSerializer.expireAt(bytes);
+                if (cacheSerializer.isLogical(bytes) && expireAt <= now) {
+                    // 逻辑过期了，和未命中的一起重新加载
+                    missIds.add(id);
+                    logical.add(id);
+                    continue;
+                }
+                R r = cacheSerializer.deserialize(bytes, type);
+                putLocal(keys.get(i), localTtl, new LocalValue(r, expireAt, cacheSerializer.costMillis(bytes)),
+                        bytes.length);
+                result.put(id, r);
+            }
+        }
+        if (missIds.isEmpty()) {
+            return orderBy(candidates, result);
+        }
+        // 3. 未命中的一次查数据库
+        long begin = System.currentTimeMillis();
+        Map<ID, R> loaded = dbFallback.apply(missIds);
+        int cost = costSince(begin);
+        // 4. 一次pipeline写回，每个key的TTL各自加上随机抖动
+        long ttlMillis = unit.toMillis(time);
+        long nullTtlMillis = TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL);
+        List<String> writtenKeys = new ArrayList<>(missIds.size());
+        cacheRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            RedisStringCommands commands = connection.stringCommands();
+            for (ID id : missIds) {
+                String key = keyPrefix + id;
+                byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+                R r = loaded == null ? null : loaded.get(id);
+                if (r == null) {
+                    // 数据库里也不存在，写入空值
+                    commands.set(rawKey, NULL_VALUE, Expiration.milliseconds(jitter(key, nullTtlMillis)),
+                            RedisStringCommands.SetOption.upsert());
+                } else if (logical.contains(id)) {
+                    long expireAt = System.currentTimeMillis() + jitter(key, ttlMillis);
+                    commands.set(rawKey, cacheSerializer.serialize(r, expireAt, true, cost));
+                    result.put(id, r);
+                } else {
+                    long ttl = jitter(key, ttlMillis);
+                    byte[] bytes = cacheSerializer.serialize(r, System.currentTimeMillis() + ttl, false, cost);
+                    commands.set(rawKey, bytes, Expiration.milliseconds(ttl), RedisStringCommands.SetOption.upsert());
+                    result.put(id, r);
+                }
+                writtenKeys.add(key);
+            }
+            return null;
+        });
+        // 5. 所有节点的本地缓存一起失效，失效消息只发一条
+        writtenKeys.forEach(localCache::invalidate);
+        invalidationBus.publish(writtenKeys);
+        return orderBy(candidates, result);
+    }
+
+    private static <ID, R> Map<ID, R> orderBy(List<ID> ids, Map<ID, R> values) {
+        Map<ID, R> ordered = new LinkedHashMap<>(values.size() * 2);
+        for (ID id : ids) {
+            R r = values.get(id);
+            if (r != null) {
+                ordered.put(id, r);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * 互斥锁解决缓存击穿
+     * 1. 本节点内的并发未命中通过SingleFlight合并，只有一个线程去抢Redis互斥锁，其余线程等待通知
+     * 2. 跨节点通过Redis互斥锁合并，没抢到锁的节点等待持锁节点写入缓存的广播，而不是休眠后递归重试
+     */
+    public <R, ID> R queryWithMutex(
+            String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        if (!bloomFilterGuard.mightContainForCache(keyPrefix, id)) {
+            return null;
+        }
+        String key = keyPrefix + id;
+        // 1. 先查本地缓存，再查redis
+        Duration localTtl = localTtl(keyPrefix);
+        LocalValue cached = getCached(key, localTtl, type);
+        if (cached != null) {
+            refreshEarlyIfNeeded(key, cached, () -> loadAndSet(key, id, dbFallback, time, unit));
+            return type.cast(cached.data());
+        }
+        // 2. 未命中，实现缓存重建
+        return singleFlight.execute(key, () -> loadWithMutex(key, localTtl, type,
+                () -> loadAndSet(key, id, dbFallback, time, unit), () -> dbFallback.apply(id)));
+    }
+
+    /**
+     * @param loader 抢到锁之后查数据库并写入缓存
+     * @param fallback 等待超时之后直接查数据库
+     */
+    private <R> R loadWithMutex(
+            String key, Duration localTtl, Class<R> type, Supplier<R> loader, Supplier<R> fallback) {
+        // 锁的key和缓存的key不是同一个
+        String lockKey = LOCK_CACHE_KEY + key;
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(LOCK_SHOP_TTL);
+        while (System.currentTimeMillis() < deadline) {
+            // 2.1. 获取互斥锁
+            if (tryLock(lockKey)) {
+                try {
+                    // 2.2. 成功，再检查一次缓存，可能在抢锁之前别人已经重建好了
+                    LocalValue cached = getCached(key, localTtl, type);
+                    if (cached != null) {
+                        return type.cast(cached.data());
+                    }
+                    // 2.3. 根据id查询数据库，写入redis
+                    return loader.get();
+                } finally {
+                    // 2.4. 释放互斥锁
+                    unlockAndWake(lockKey, key);
+                }
+            }
+            // 2.5. 失败，说明其他节点正在重建，等它写入缓存后的通知
+            awaitRemoteRebuild(key);
+            LocalValue cached = getCached(key, localTtl, type);
+            if (cached != null) {
+                return type.cast(cached.data());
+            }
+        }
+        // 等了一个锁的有效期还没有结果，直接查数据库，不再等待
+        log.warn("等待缓存重建超时, key: {}", key);
+        return fallback.get();
+    }
+
+    /**
+     * 查数据库并写入缓存，数据库里不存在就写入空值
+     */
+    private <R, ID> R loadAndSet(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        long begin = System.currentTimeMillis();
         R r = dbFallback.apply(id);
         // 5. 不存在，返回错误
         if (r == null) {
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+            cacheRedisTemplate.opsForValue().set(key, NULL_VALUE,
+                    jitter(key, TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL)), TimeUnit.MILLISECONDS);
+            invalidateLocal(key);
             return null;
         }
         // 6. 存在，写入redis
-        set(key, r, time, unit);
+        set(key, r, unit.toMillis(time), costSince(begin));
         return r;
     }
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    /**
+     * 查数据库并按逻辑过期写入缓存，数据库里不存在就写入空值
+     */
+    private <R, ID> R loadAndSetWithLogicalExpire(String key, ID id, Function<ID, R> dbFallback, long ttlMillis) {
+        long begin = System.currentTimeMillis();
+        R r = dbFallback.apply(id);
+        if (r == null) {
+            cacheRedisTemplate.opsForValue().set(key, NULL_VALUE,
+                    jitter(key, TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL)), TimeUnit.MILLISECONDS);
+            invalidateLocal(key);
+            return null;
+        }
+        setWithLogicalExpire(key, r, ttlMillis, costSince(begin));
+        return r;
+    }
+
+    /**
+     * 等待持锁的线程重建key，其他节点写完缓存会广播失效消息，本节点的线程释放锁时直接唤醒，被唤醒或超时就返回
+     */
+    private void awaitRemoteRebuild(String key) {
+        CompletableFuture<Void> notified = remoteRebuilds.computeIfAbsent(key, k -> new CompletableFuture<>());
+        try {
+            // 注册之后再查一次，避免注册之前对方已经写完，错过了通知
+            if (BooleanUtil.isTrue(stringRedisTemplate.hasKey(key))) {
+                return;
+            }
+            notified.get(REMOTE_REBUILD_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            // 超时了回去重新抢锁，持锁的节点可能已经挂了
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            remoteRebuilds.remove(key, notified);
+        }
+    }
+
+    /**
+     * 先查本地缓存，再查Redis，Redis命中的放入本地缓存
+     * @return null代表未命中；命中空值时返回data为null的LocalValue
+     */
+    private LocalValue getCached(String key, Duration localTtl, Class<?> type) {
+        LocalValue local = getLocal(key, localTtl);
+        if (local != null) {
+            return local;
+        }
+        byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
+        if (bytes == null) {
+            return null;
+        }
+        // 判断命中的是否是空值
+        if (bytes.length == 0) {
+            // 空值也放到本地，穿透的请求连Redis都不用访问
+            LocalValue value = new LocalValue(null, 0, 0);
+            putLocal(key, localTtl, value, 1);
+            return value;
+        }
+        // 升级前的旧格式当作未命中，重新加载后覆盖
+        if (!cacheSerializer.isReadable(bytes)) {
+            return null;
+        }
+        LocalValue value = new LocalValue(cacheSerializer.deserialize(bytes, type),
+                cacheSerializer.expireAt(bytes), cacheSerializer.costMillis(bytes));
+        putLocal(key, localTtl, value, bytes.length);
+        return value;
+    }
 
     public <R, ID> R queryWithLogicalExpire(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        if (!bloomFilterGuard.mightContainForCache(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
+        // 和冷启动未命中的loadWithMutex用同一把锁，同一个key只有一个线程在重建
+        String lockKey = LOCK_CACHE_KEY + key;
+        long ttlMillis = unit.toMillis(time);
+        // 0. 先查本地缓存，逻辑上没过期就直接返回，过期了走下面的重建流程
+        Duration localTtl = localTtl(keyPrefix);
+        LocalValue local = getLocal(key, localTtl);
+        long now = System.currentTimeMillis();
+        if (local != null && local.expireAt() > now) {
+            if (shouldRefreshEarly(local, now)) {
+                rebuildWithLogicalExpire(lockKey, key, id, dbFallback, ttlMillis);
+            }
+            return type.cast(local.data());
+        }
         // 1. 从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
         // 2. 判断是否存在
-        if (StrUtil.isBlank(json)) {
-            // 3. 不存在，直接返回
+        if (bytes != null && bytes.length == 0) {
+            // 命中空值，数据库里也没有
             return null;
         }
-        // 4. 命中，需要先把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
+        if (bytes == null || !cacheSerializer.isReadable(bytes)) {
+            // 3. 不存在(升级前的旧格式也算)
+            if (!cacheProperties.isLoadOnLogicalMiss()) {
+                // 依赖预热，直接返回
+                return null;
+            }
+            // 冷启动未命中，同步加载一次，本节点的并发请求合并，跨节点用互斥锁
+            // 加载后按逻辑过期写入，之后就是过期后返回旧数据、后台重建
+            return singleFlight.execute(key, () -> loadWithMutex(key, localTtl, type,
+                    () -> loadAndSetWithLogicalExpire(key, id, dbFallback, ttlMillis), () -> dbFallback.apply(id)));
+        }
+        // 4. 命中，先只读头部的逻辑过期时间
+        long expireAt = cacheSerializer.expireAt(bytes);
+        // 本地缓存里就是同一个版本，不需要再反序列化
         // 字节码谁知道? 谁调用谁知道
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
-        LocalDateTime expireTime = redisData.getExpireTime();
+        R r = local != null && local.expireAt() == expireAt
+                ? type.cast(local.data())
+                : cacheSerializer.deserialize(bytes, type);
         // 5. 判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())) {
-            // 5.1. 未过期，直接返回店铺信息
+        if (expireAt > now) {
+            // 5.1. 未过期，放入本地缓存，直接返回店铺信息
+            LocalValue value = new LocalValue(r, expireAt, cacheSerializer.costMillis(bytes));
+            putLocal(key, localTtl, value, bytes.length);
+            // 快过期了按概率提前重建，不用等所有请求都拿到过期数据
+            if (shouldRefreshEarly(value, now)) {
+                rebuildWithLogicalExpire(lockKey, key, id, dbFallback, ttlMillis);
+            }
             return r;
         }
         // 5.2. 已过期，需要缓存重建
-        // 6. 缓存重建
+        rebuildWithLogicalExpire(lockKey, key, id, dbFallback, ttlMillis);
+        // 6.4 返回过期的商铺信息
+        return r;
+    }
+
+    /**
+     * 6. 缓存重建
+     */
+    private <R, ID> void rebuildWithLogicalExpire(
+            String lockKey, String key, ID id, Function<ID, R> dbFallback, long ttlMillis) {
         // 6.1. 获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
         boolean isLock = tryLock(lockKey);
         if (isLock) {
-            // 6.3. 成功，开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
+            // 6.3. 成功，交给重建线程池，队列满了或者同一个key已经在重建，释放锁
+            rebuildExecutor.submit(key, () -> {
                 try {
-                    // 查询数据库
-                    R r1 = dbFallback.apply(id);
-                    // 写入redis
-                    this.setWithLogicalExpire(key, r1, time, unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
+                    // 查询数据库写入redis，数据已经被删除的写入空值，不能一直返回过期的旧数据
+                    loadAndSetWithLogicalExpire(key, id, dbFallback, ttlMillis);
                 } finally {
-                    unlock(lockKey);
+                    unlockAndWake(lockKey, key);
                 }
-            });
+            }, () -> unlockAndWake(lockKey, key));
         }
-        // 6.4 返回过期的商铺信息
-        return r;
+    }
+
+    /**
+     * XFetch提前刷新：越接近过期、重建越慢，提前刷新的概率越大
+     * now - cost * beta * ln(rand) >= expireAt 时刷新，rand在(0, 1]之间
+     * 这样各个节点不会在过期的那一刻同时去查数据库
+     */
+    private boolean shouldRefreshEarly(LocalValue value, long now) {
+        CacheProperties.EarlyRefresh config = cacheProperties.getEarlyRefresh();
+        if (!config.isEnabled() || value.data() == null || value.costMillis() <= 0 || value.expireAt() <= now) {
+            return false;
+        }
+        double rand = 1 - ThreadLocalRandom.current().nextDouble();
+        return now - value.costMillis() * config.getBeta() * Math.log(rand) >= value.expireAt();
+    }
+
+    /**
+     * 物理TTL的key提前在后台刷新，用和互斥锁重建同一把锁，所有节点只有一个在刷新
+     */
+    private void refreshEarlyIfNeeded(String key, LocalValue value, Supplier<?> loader) {
+        if (!shouldRefreshEarly(value, System.currentTimeMillis())) {
+            return;
+        }
+        String lockKey = LOCK_CACHE_KEY + key;
+        if (!tryLock(lockKey)) {
+            return;
+        }
+        rebuildExecutor.submit(key, () -> {
+            try {
+                loader.get();
+            } finally {
+                unlockAndWake(lockKey, key);
+            }
+        }, () -> unlockAndWake(lockKey, key));
+    }
+
+    /**
+     * 按key前缀给TTL加上随机抖动，只往后延，[ttl, ttl * (1 + ratio))
+     * 有多个前缀匹配时用最长的那个
+     */
+    private long jitter(String key, long ttlMillis) {
+        double ratio = 0;
+        int matched = -1;
+        for (Map.Entry<String, Double> entry : cacheProperties.getTtlJitter().entrySet()) {
+            String prefix = entry.getKey();
+            if (prefix.length() > matched && key.startsWith(prefix)) {
+                matched = prefix.length();
+                ratio = entry.getValue();
+            }
+        }
+        if (ratio <= 0 || ttlMillis <= 0) {
+            return ttlMillis;
+        }
+        return ttlMillis + (long) (ThreadLocalRandom.current().nextDouble() * ratio * ttlMillis);
+    }
+
+    private static int costSince(long begin) {
+        return (int) Math.min(Integer.MAX_VALUE, System.currentTimeMillis() - begin);
+    }
+
+    /**
+     * 本地缓存的条目
+     * @param data 反序列化后的对象，null代表空值
+     * @param expireAt Redis里的值过期的时间戳(毫秒)，逻辑过期或物理TTL，空值为0
+     * @param costMillis 写入这个值之前重建花的时间
+     */
+    private record LocalValue(Object data, long expireAt, int costMillis) {
+    }
+
+    /**
+     * 前缀对应的本地存活时间，返回null代表这个前缀没有开启本地缓存
+     */
+    private Duration localTtl(String keyPrefix) {
+        return cacheProperties.getLocal().getTtl().get(keyPrefix);
+    }
+
+    /**
+     * 本节点的旧值作废，下次从Redis读到新值再放进来，同时通知其他节点
+     */
+    private void invalidateLocal(String key) {
+        localCache.invalidate(key);
+        invalidationBus.publish(key);
+    }
+
+    private void onRemoteInvalidate(String key) {
+        localCache.invalidate(key);
+        wakeWaiters(key);
+    }
+
+    /**
+     * 唤醒本节点在等这个key重建的线程，它们回去查缓存或者重新抢锁
+     */
+    private void wakeWaiters(String key) {
+        CompletableFuture<Void> notified = remoteRebuilds.remove(key);
+        if (notified != null) {
+            notified.complete(null);
+        }
+    }
+
+    private LocalValue getLocal(String key, Duration localTtl) {
+        if (localTtl == null) {
+            return null;
+        }
+        return (LocalValue) localCache.get(key);
+    }
+
+    private void putLocal(String key, Duration localTtl, LocalValue value, int weight) {
+        if (localTtl == null) {
+            return;
+        }
+        localCache.put(key, value, weight, localTtl.toMillis());
     }
 
     private boolean tryLock(String key) {
@@ -129,4 +651,13 @@ public class CacheClient {
     private void unlock(String key) {
         stringRedisTemplate.delete(key);
     }
+
+    /**
+     * 释放重建的互斥锁，同时唤醒本节点的等待线程
+     * 失效广播不会发给自己，持锁的是本节点的线程时，只能在这里唤醒；重建失败了也让它们马上回去抢锁
+     */
+    private void unlockAndWake(String lockKey, String key) {
+        unlock(lockKey);
+        wakeWaiters(key);
+    }
 }
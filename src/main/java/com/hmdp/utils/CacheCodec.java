@@ -0,0 +1,17 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存值的编解码器
+ * 编号写在缓存的头部，切换编解码器后旧数据仍然能按原来的编解码器读出来
+ */
+public interface CacheCodec {
+
+    /**
+     * 编解码器编号，不同实现不能重复
+     */
+    byte id();
+
+    byte[] encode(Object value);
+
+    <T> T decode(byte[] bytes, int offset, int length, Class<T> type);
+}
@@ -0,0 +1,26 @@
+package com.hmdp.utils;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * 缓存失效广播
+ * 某个节点修改或删除了缓存，通知所有节点清理各自的本地缓存
+ */
+public interface CacheInvalidationBus {
+
+    /**
+     * 广播失效的key，短时间内的多次调用会合并成一条消息
+     */
+    void publish(Collection<String> keys);
+
+    default void publish(String key) {
+        publish(List.of(key));
+    }
+
+    /**
+     * 注册收到失效消息后的处理逻辑
+     */
+    void subscribe(Consumer<Collection<String>> listener);
+}
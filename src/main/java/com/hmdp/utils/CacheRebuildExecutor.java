@@ -0,0 +1,180 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+/**
+ * 缓存重建线程池，所有异步重建共用一个
+ * 1. 队列有界，满了按配置丢弃，或者延迟一段时间再提交一次，还是满的就丢弃，不会无限堆积
+ * 2. 同一个key在队列里或正在执行时，再提交直接合并掉
+ * 3. 在队列里等待超过deadline的任务不再执行，执行超过deadline的记录下来，不会中断正在查数据库的线程
+ * 4. 任务的异常在这里记录日志，不会被线程池吞掉
+ * 被丢弃的任务会执行onDrop，调用者在里面释放自己持有的锁
+ */
+@Slf4j
+public class CacheRebuildExecutor {
+
+    public enum Overflow {
+        /**
+         * 队列满了直接丢弃
+         */
+        DROP,
+        /**
+         * 队列满了延迟一段时间再提交一次
+         */
+        DEFER
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService deferExecutor;
+    private final long deadlineMillis;
+    private final Overflow overflow;
+    private final long deferDelayMillis;
+
+    // 排队中和执行中的key
+    private final ConcurrentHashMap<String, Boolean> pending = new ConcurrentHashMap<>();
+
+    // 每次重建的耗时(纳秒)，从开始执行算起
+    private final LongConsumer latencyRecorder;
+
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LongAdder deduplicatedCount = new LongAdder();
+    private final LongAdder timeoutCount = new LongAdder();
+
+    public CacheRebuildExecutor(int threads, int queueCapacity, long deadlineMillis, boolean virtualThreads,
+                                Overflow overflow, long deferDelayMillis, LongConsumer latencyRecorder) {
+        ThreadFactory threadFactory = virtualThreads
+                ? Thread.ofVirtual().name("cache-rebuild-", 0).factory()
+                : ThreadFactoryBuilder.create().setNamePrefix("cache-rebuild-").setDaemon(true).build();
+        // 虚拟线程也通过线程数限制并发，不然重建的请求会把数据库连接池打满
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+        this.deferExecutor = Executors.newSingleThreadScheduledExecutor(
+                ThreadFactoryBuilder.create().setNamePrefix("cache-rebuild-defer-").setDaemon(true).build());
+        this.deadlineMillis = deadlineMillis;
+        this.overflow = overflow;
+        this.deferDelayMillis = deferDelayMillis;
+        this.latencyRecorder = latencyRecorder;
+    }
+
+    /**
+     * 提交重建任务
+     * @param key 按key去重，一般就是缓存的key
+     * @param onDrop 任务被合并、丢弃或超时没有执行时调用
+     * @return 是否接受了这个任务，延迟提交也算接受
+     */
+    public boolean submit(String key, Runnable task, Runnable onDrop) {
+        if (pending.putIfAbsent(key, Boolean.TRUE) != null) {
+            // 已经有同一个key的任务了
+            deduplicatedCount.increment();
+            runQuietly(key, onDrop);
+            return false;
+        }
+        return enqueue(new Rebuild(key, task, onDrop, System.currentTimeMillis()), overflow == Overflow.DEFER);
+    }
+
+    private boolean enqueue(Rebuild rebuild, boolean allowDefer) {
+        try {
+            executor.execute(rebuild);
+            return true;
+        } catch (RejectedExecutionException e) {
+            if (allowDefer && !deferExecutor.isShutdown()) {
+                deferExecutor.schedule(() -> enqueue(rebuild, false), deferDelayMillis, TimeUnit.MILLISECONDS);
+                return true;
+            }
+            rejectedCount.increment();
+            log.warn("缓存重建队列已满，丢弃任务, key: {}", rebuild.key);
+            rebuild.drop();
+            return false;
+        }
+    }
+
+    public int queueSize() {
+        return executor.getQueue().size();
+    }
+
+    public int activeCount() {
+        return executor.getActiveCount();
+    }
+
+    public long rejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    public long deduplicatedCount() {
+        return deduplicatedCount.sum();
+    }
+
+    public long timeoutCount() {
+        return timeoutCount.sum();
+    }
+
+    public void shutdown() {
+        deferExecutor.shutdownNow();
+        executor.shutdown();
+    }
+
+    private static void runQuietly(String key, Runnable runnable) {
+        try {
+            runnable.run();
+        } catch (Exception e) {
+            log.error("缓存重建回调异常, key: {}", key, e);
+        }
+    }
+
+    private class Rebuild implements Runnable {
+        private final String key;
+        private final Runnable task;
+        private final Runnable onDrop;
+        private final long submitTime;
+
+        Rebuild(String key, Runnable task, Runnable onDrop, long submitTime) {
+            this.key = key;
+            this.task = task;
+            this.onDrop = onDrop;
+            this.submitTime = submitTime;
+        }
+
+        @Override
+        public void run() {
+            long waited = System.currentTimeMillis() - submitTime;
+            if (waited > deadlineMillis) {
+                // 排队太久了，调用者早就拿着旧数据返回了，下一次请求会重新触发
+                timeoutCount.increment();
+                log.warn("缓存重建排队超时, key: {}, 等待: {}ms", key, waited);
+                drop();
+                return;
+            }
+            long begin = System.nanoTime();
+            try {
+                task.run();
+            } catch (Exception e) {
+                log.error("缓存重建失败, key: {}", key, e);
+            } finally {
+                pending.remove(key);
+                long cost = System.nanoTime() - begin;
+                latencyRecorder.accept(cost);
+                if (TimeUnit.NANOSECONDS.toMillis(cost) + waited > deadlineMillis) {
+                    timeoutCount.increment();
+                    log.warn("缓存重建超时, key: {}, 耗时: {}ms", key, TimeUnit.NANOSECONDS.toMillis(cost));
+                }
+            }
+        }
+
+        void drop() {
+            pending.remove(key);
+            runQuietly(key, onDrop);
+        }
+    }
+}
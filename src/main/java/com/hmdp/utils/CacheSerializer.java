@@ -0,0 +1,137 @@
+package com.hmdp.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 缓存值的存储格式
+ * | magic(1) | flags(1) | codec(1) | 过期时间戳毫秒(8) | 重建耗时毫秒(4) | 负载 |
+ * 1. 过期时间放在固定位置的头部，判断是否过期只需要读头部，不用反序列化整个对象
+ *    逻辑过期的值带FLAG_LOGICAL，其余的值记录的是物理TTL到期的时间
+ * 2. 重建耗时是写入前查数据库花的时间，用来计算提前刷新的概率
+ * 3. 负载超过阈值时压缩，压缩后的负载前4个字节是原始长度
+ * 4. 空值(防穿透)仍然是长度为0的值
+ * 格式不兼容的变化要换一个magic，旧数据会被当作未命中重新加载
+ */
+public class CacheSerializer {
+
+    private static final byte MAGIC = (byte) 0xCB;
+    private static final byte FLAG_COMPRESSED = 1;
+    private static final byte FLAG_LOGICAL = 1 << 1;
+    private static final int EXPIRE_OFFSET = 3;
+    private static final int COST_OFFSET = 11;
+    public static final int HEADER_LENGTH = 15;
+
+    // 按编号查找编解码器
+    private final CacheCodec[] codecs = new CacheCodec[256];
+    // 写入时使用的编解码器
+    private final CacheCodec writeCodec;
+    // 负载超过多少字节开始压缩，小于等于0不压缩
+    private final int compressThreshold;
+
+    public CacheSerializer(List<CacheCodec> codecs, CacheCodec writeCodec, int compressThreshold) {
+        for (CacheCodec codec : codecs) {
+            this.codecs[codec.id() & 0xFF] = codec;
+        }
+        this.codecs[writeCodec.id() & 0xFF] = writeCodec;
+        this.writeCodec = writeCodec;
+        this.compressThreshold = compressThreshold;
+    }
+
+    /**
+     * @param expireAt 过期的时间戳(毫秒)，不知道传0
+     * @param logical 是否逻辑过期
+     * @param costMillis 重建耗时，不知道传0
+     */
+    public byte[] serialize(Object value, long expireAt, boolean logical, int costMillis) {
+        byte[] payload = writeCodec.encode(value);
+        byte flags = logical ? FLAG_LOGICAL : 0;
+        if (compressThreshold > 0 && payload.length > compressThreshold) {
+            payload = compress(payload);
+            flags |= FLAG_COMPRESSED;
+        }
+        return ByteBuffer.allocate(HEADER_LENGTH + payload.length)
+                .put(MAGIC)
+                .put(flags)
+                .put(writeCodec.id())
+                .putLong(expireAt)
+                .putInt(costMillis)
+                .put(payload)
+                .array();
+    }
+
+    /**
+     * 是不是当前格式的数据，升级前写入的旧数据当作未命中处理
+     */
+    public boolean isReadable(byte[] bytes) {
+        return bytes.length >= HEADER_LENGTH && bytes[0] == MAGIC && codecs[bytes[2] & 0xFF] != null;
+    }
+
+    /**
+     * 只读头部的过期时间
+     */
+    public long expireAt(byte[] bytes) {
+        return ByteBuffer.wrap(bytes, EXPIRE_OFFSET, Long.BYTES).getLong();
+    }
+
+    public boolean isLogical(byte[] bytes) {
+        return (bytes[1] & FLAG_LOGICAL) != 0;
+    }
+
+    /**
+     * 只读头部的重建耗时
+     */
+    public int costMillis(byte[] bytes) {
+        return ByteBuffer.wrap(bytes, COST_OFFSET, Integer.BYTES).getInt();
+    }
+
+    public <T> T deserialize(byte[] bytes, Class<T> type) {
+        CacheCodec codec = codecs[bytes[2] & 0xFF];
+        if ((bytes[1] & FLAG_COMPRESSED) != 0) {
+            byte[] payload = decompress(bytes, HEADER_LENGTH);
+            return codec.decode(payload, 0, payload.length, type);
+        }
+        return codec.decode(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH, type);
+    }
+
+    private static byte[] compress(byte[] payload) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(payload);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length / 2 + 16);
+            // 原始长度，解压时一次分配好
+            out.writeBytes(ByteBuffer.allocate(Integer.BYTES).putInt(payload.length).array());
+            byte[] buffer = new byte[1024];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] decompress(byte[] bytes, int offset) {
+        int length = ByteBuffer.wrap(bytes, offset, Integer.BYTES).getInt();
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes, offset + Integer.BYTES, bytes.length - offset - Integer.BYTES);
+            byte[] payload = new byte[length];
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                n += inflater.inflate(payload, n, length - n);
+            }
+            return payload;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("缓存数据解压失败", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
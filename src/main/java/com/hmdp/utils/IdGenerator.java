@@ -0,0 +1,19 @@
+package com.hmdp.utils;
+
+/**
+ * 全局唯一ID生成器
+ */
+public interface IdGenerator {
+
+    /**
+     * @param keyPrefix 业务前缀，比如order
+     */
+    long nextId(String keyPrefix);
+
+    /**
+     * 是否完全在本地生成，不需要访问Redis
+     */
+    default boolean isLocal() {
+        return false;
+    }
+}
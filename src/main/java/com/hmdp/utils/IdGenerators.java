@@ -0,0 +1,62 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.IdProperties;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import org.springframework.context.annotation.Primary;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * 按业务前缀选择ID生成器，hmdp.id.generators里配置成snowflake的前缀用snowflake，其他的用Redis计数器
+ * 注入IdGenerator得到的就是这个类
+ */
+@Primary
+@Component
+public class IdGenerators implements IdGenerator {
+
+    public static final String SNOWFLAKE = "snowflake";
+
+    @Resource
+    private RedisIdWorker redisIdWorker;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IdProperties idProperties;
+
+    // 没有前缀使用snowflake时不创建，也不租用workerId
+    private SnowflakeIdGenerator snowflake;
+
+    @PostConstruct
+    private void init() {
+        if (idProperties.getGenerators().containsValue(SNOWFLAKE)) {
+            snowflake = new SnowflakeIdGenerator(stringRedisTemplate, idProperties.getSnowflake());
+            snowflake.start();
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (snowflake != null) {
+            snowflake.shutdown();
+        }
+    }
+
+    public IdGenerator forPrefix(String keyPrefix) {
+        return SNOWFLAKE.equals(idProperties.getGenerators().get(keyPrefix)) ? snowflake : redisIdWorker;
+    }
+
+    @Override
+    public long nextId(String keyPrefix) {
+        return forPrefix(keyPrefix).nextId(keyPrefix);
+    }
+
+    /**
+     * ID生成的时间(毫秒时间戳)，两种ID都能解析，同一个业务切换过生成器也没关系
+     */
+    public static long createdAtMillis(long id) {
+        return SnowflakeIdGenerator.isSnowflake(id)
+                ? SnowflakeIdGenerator.createdAtMillis(id) : RedisIdWorker.createdAtMillis(id);
+    }
+}
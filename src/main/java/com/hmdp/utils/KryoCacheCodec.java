@@ -0,0 +1,59 @@
+package com.hmdp.utils;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.serializers.CompatibleFieldSerializer;
+import com.esotericsoftware.kryo.util.Pool;
+
+/**
+ * Kryo二进制编解码
+ * 1. Kryo对象不是线程安全的，用对象池复用
+ * 2. 使用CompatibleFieldSerializer，实体类增删字段后新旧版本的节点仍然可以互相读取
+ */
+public class KryoCacheCodec implements CacheCodec {
+
+    public static final byte ID = 2;
+
+    private static final int BUFFER_SIZE = 256;
+
+    private final Pool<Kryo> pool = new Pool<>(true, false, 64) {
+        @Override
+        protected Kryo create() {
+            Kryo kryo = new Kryo();
+            // 缓存的实体类不需要提前注册
+            kryo.setRegistrationRequired(false);
+            kryo.setReferences(false);
+            kryo.setDefaultSerializer(CompatibleFieldSerializer.class);
+            return kryo;
+        }
+    };
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        Kryo kryo = pool.obtain();
+        try {
+            // maxBufferSize = -1, 不限制大小，按需扩容
+            Output output = new Output(BUFFER_SIZE, -1);
+            kryo.writeObject(output, value);
+            return output.toBytes();
+        } finally {
+            pool.free(kryo);
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, int offset, int length, Class<T> type) {
+        Kryo kryo = pool.obtain();
+        try {
+            return kryo.readObject(new Input(bytes, offset, length), type);
+        } finally {
+            pool.free(kryo);
+        }
+    }
+}
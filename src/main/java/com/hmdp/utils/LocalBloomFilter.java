@@ -0,0 +1,91 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * JVM内的布隆过滤器，只存long类型的id
+ * 位数组大小和哈希次数根据预期元素数量和误判率计算：
+ * m = -n * ln(p) / (ln2)^2, k = m / n * ln2
+ */
+public class LocalBloomFilter {
+
+    private final AtomicLongArray bits;
+    private final long bitSize;
+    private final int hashIterations;
+    private final long expectedInsertions;
+    private final LongAdder insertions = new LongAdder();
+
+    public LocalBloomFilter(long expectedInsertions, double falseProbability) {
+        long n = Math.max(1, expectedInsertions);
+        double p = Math.min(Math.max(falseProbability, 1e-9), 0.5);
+        long m = (long) Math.ceil(-n * Math.log(p) / (Math.log(2) * Math.log(2)));
+        this.expectedInsertions = n;
+        this.bitSize = Math.max(64, m);
+        this.hashIterations = Math.max(1, (int) Math.round((double) bitSize / n * Math.log(2)));
+        this.bits = new AtomicLongArray((int) ((bitSize + 63) >>> 6));
+    }
+
+    public void add(long id) {
+        long hash1 = mix(id);
+        long hash2 = mix(hash1);
+        boolean changed = false;
+        for (int i = 0; i < hashIterations; i++) {
+            long index = Math.floorMod(hash1 + i * hash2, bitSize);
+            changed |= setBit(index);
+        }
+        if (changed) {
+            insertions.increment();
+        }
+    }
+
+    public boolean mightContain(long id) {
+        long hash1 = mix(id);
+        long hash2 = mix(hash1);
+        for (int i = 0; i < hashIterations; i++) {
+            long index = Math.floorMod(hash1 + i * hash2, bitSize);
+            if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 已经插入的次数，只用来判断是否接近饱和
+     * 所有位都已经置过的插入不计数，同一个id从发布订阅和定时补齐收到多次也只算一次
+     */
+    public long insertions() {
+        return insertions.sum();
+    }
+
+    public long expectedInsertions() {
+        return expectedInsertions;
+    }
+
+    /**
+     * @return 这一位原来是不是0
+     */
+    private boolean setBit(long index) {
+        int i = (int) (index >>> 6);
+        long mask = 1L << index;
+        long old;
+        do {
+            old = bits.get(i);
+            if ((old & mask) != 0) {
+                return false;
+            }
+        } while (!bits.compareAndSet(i, old, old | mask));
+        return true;
+    }
+
+    /**
+     * splitmix64的混淆函数，把连续的id打散
+     */
+    private static long mix(long z) {
+        z += 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,218 @@
+package com.hmdp.utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 进程内一级缓存(L1)
+ * 1. 按条目数和权重双重限制容量，超出后按LRU淘汰
+ * 2. 每个条目有自己的存活时间
+ * 3. 分段加锁，减少热点key之间的锁竞争
+ * 缓存的是反序列化之后的对象，调用者拿到以后不要修改它
+ */
+public class LocalCache {
+
+    /**
+     * 分段数，必须是2的幂
+     */
+    private static final int SEGMENT_COUNT = 16;
+
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    public LocalCache(long maximumSize, long maximumWeight) {
+        // 容量平均分给每一段，每段至少能放一个条目
+        long segmentSize = Math.max(1, (maximumSize + SEGMENT_COUNT - 1) / SEGMENT_COUNT);
+        long segmentWeight = Math.max(1, (maximumWeight + SEGMENT_COUNT - 1) / SEGMENT_COUNT);
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(segmentSize, segmentWeight);
+        }
+    }
+
+    /**
+     * 查询缓存
+     * @return 缓存的值，不存在或已过期返回null
+     */
+    public Object get(String key) {
+        Object value = segmentFor(key).get(key, System.currentTimeMillis());
+        if (value == null) {
+            missCount.increment();
+        } else {
+            hitCount.increment();
+        }
+        return value;
+    }
+
+    /**
+     * 写入缓存
+     * @param weight 条目的权重，一般用序列化后的长度估算
+     * @param ttlMillis 条目的存活时间
+     */
+    public void put(String key, Object value, int weight, long ttlMillis) {
+        if (value == null || ttlMillis <= 0) {
+            return;
+        }
+        segmentFor(key).put(key, new Node(value, Math.max(1, weight), System.currentTimeMillis() + ttlMillis));
+    }
+
+    public void invalidate(String key) {
+        segmentFor(key).remove(key);
+    }
+
+    public void invalidateAll() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public long hitCount() {
+        return hitCount.sum();
+    }
+
+    public long missCount() {
+        return missCount.sum();
+    }
+
+    public long evictionCount() {
+        return evictionCount.sum();
+    }
+
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public long weight() {
+        long weight = 0;
+        for (Segment segment : segments) {
+            weight += segment.weight();
+        }
+        return weight;
+    }
+
+    private Segment segmentFor(String key) {
+        int h = key.hashCode();
+        // 高位参与运算，让分段更均匀
+        h ^= (h >>> 16);
+        return segments[h & (SEGMENT_COUNT - 1)];
+    }
+
+    private record Node(Object value, int weight, long expireAt) {
+    }
+
+    private class Segment {
+
+        private final long maximumSize;
+        private final long maximumWeight;
+        private final ReentrantLock lock = new ReentrantLock();
+        // accessOrder = true, 迭代顺序就是LRU顺序, 最久未访问的在最前面
+        private final LinkedHashMap<String, Node> map = new LinkedHashMap<>(16, 0.75f, true);
+        private long weight;
+
+        Segment(long maximumSize, long maximumWeight) {
+            this.maximumSize = maximumSize;
+            this.maximumWeight = maximumWeight;
+        }
+
+        Object get(String key, long now) {
+            lock.lock();
+            try {
+                Node node = map.get(key);
+                if (node == null) {
+                    return null;
+                }
+                if (node.expireAt() <= now) {
+                    // 已过期，顺手清理掉
+                    map.remove(key);
+                    weight -= node.weight();
+                    evictionCount.increment();
+                    return null;
+                }
+                return node.value();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void put(String key, Node node) {
+            // 单个条目就超过了一段的权重上限，没必要缓存
+            if (node.weight() > maximumWeight) {
+                remove(key);
+                return;
+            }
+            lock.lock();
+            try {
+                Node old = map.put(key, node);
+                if (old != null) {
+                    weight -= old.weight();
+                }
+                weight += node.weight();
+                evict();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void remove(String key) {
+            lock.lock();
+            try {
+                Node old = map.remove(key);
+                if (old != null) {
+                    weight -= old.weight();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void clear() {
+            lock.lock();
+            try {
+                map.clear();
+                weight = 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long size() {
+            lock.lock();
+            try {
+                return map.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long weight() {
+            lock.lock();
+            try {
+                return weight;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 从最久未访问的条目开始淘汰，直到条目数和权重都满足限制
+         */
+        private void evict() {
+            Iterator<Map.Entry<String, Node>> it = map.entrySet().iterator();
+            while ((map.size() > maximumSize || weight > maximumWeight) && it.hasNext()) {
+                Node eldest = it.next().getValue();
+                it.remove();
+                weight -= eldest.weight();
+                evictionCount.increment();
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.hmdp.utils;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * 进程内的失效广播，没有Redis的测试环境用它代替
+ * 同一个JVM里的多个CacheClient相当于多个节点，发布时同步通知所有订阅者
+ */
+public class LocalCacheInvalidationBus implements CacheInvalidationBus {
+
+    private final List<Consumer<Collection<String>>> listeners = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void publish(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        List<String> copy = List.copyOf(keys);
+        for (Consumer<Collection<String>> listener : listeners) {
+            listener.accept(copy);
+        }
+    }
+
+    @Override
+    public void subscribe(Consumer<Collection<String>> listener) {
+        listeners.add(listener);
+    }
+}
@@ -0,0 +1,40 @@
+package com.hmdp.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 进程内的滑动窗口，没有Redis的测试环境用它代替
+ * 算法和seckill_limit.lua一样，只是窗口只在当前JVM里共享
+ */
+public class LocalSlidingWindowLimiter implements SlidingWindowLimiter {
+
+    private final Map<String, Window> windows = new ConcurrentHashMap<>();
+
+    @Override
+    public boolean tryAcquire(String key, long limit, long windowMillis) {
+        Window window = windows.computeIfAbsent(key, k -> new Window());
+        long now = System.currentTimeMillis();
+        long start = now / windowMillis * windowMillis;
+        synchronized (window) {
+            if (window.start != start) {
+                // 窗口滑过去了，紧挨着的上一个窗口还有一部分在滑动窗口里
+                window.previous = start - window.start == windowMillis ? window.current : 0;
+                window.current = 0;
+                window.start = start;
+            }
+            double estimate = window.previous * (double) (windowMillis - (now - start)) / windowMillis + window.current;
+            if (estimate + 1 > limit) {
+                return false;
+            }
+            window.current++;
+            return true;
+        }
+    }
+
+    private static class Window {
+        private long start;
+        private long current;
+        private long previous;
+    }
+}
@@ -0,0 +1,14 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+
+/**
+ * 当前节点(JVM)的唯一标识，广播消息时用来忽略自己发出的消息
+ */
+public final class NodeId {
+
+    public static final String VALUE = UUID.randomUUID().toString(true);
+
+    private NodeId() {
+    }
+}
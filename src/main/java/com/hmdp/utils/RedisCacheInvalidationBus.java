@@ -0,0 +1,105 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 基于Redis发布订阅的失效广播
+ * 1. 发布的key先进入缓冲区，每隔flushIntervalMillis毫秒合并成一条消息发出去，批量更新时不会刷屏
+ * 2. 消息格式: 节点id\nkey1\nkey2...，收到自己发的消息直接忽略，本节点在写缓存时已经同步清理过了
+ */
+@Slf4j
+public class RedisCacheInvalidationBus implements CacheInvalidationBus {
+
+    private static final String SEPARATOR = "\n";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String channel;
+    private final int maxBatchSize;
+
+    private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+    private final List<Consumer<Collection<String>>> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService flushExecutor = Executors.newSingleThreadScheduledExecutor(
+            ThreadFactoryBuilder.create().setNamePrefix("cache-invalidation-").setDaemon(true).build());
+
+    public RedisCacheInvalidationBus(StringRedisTemplate stringRedisTemplate,
+                                     RedisMessageListenerContainer listenerContainer,
+                                     String channel, long flushIntervalMillis, int maxBatchSize) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.channel = channel;
+        this.maxBatchSize = maxBatchSize;
+        listenerContainer.addMessageListener(
+                (message, pattern) -> onMessage(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(channel));
+        flushExecutor.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void publish(Collection<String> keys) {
+        pending.addAll(keys);
+    }
+
+    @Override
+    public void subscribe(Consumer<Collection<String>> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * 把缓冲区里的key按maxBatchSize分批发出去
+     */
+    private void flush() {
+        try {
+            List<String> batch = new ArrayList<>();
+            String key;
+            while ((key = pending.poll()) != null) {
+                batch.add(key);
+                if (batch.size() >= maxBatchSize) {
+                    send(batch);
+                    batch = new ArrayList<>();
+                }
+            }
+            if (!batch.isEmpty()) {
+                send(batch);
+            }
+        } catch (Exception e) {
+            // 异常不能抛出去，否则定时任务就停了
+            log.error("广播缓存失效消息异常", e);
+        }
+    }
+
+    private void send(List<String> keys) {
+        stringRedisTemplate.convertAndSend(channel, NodeId.VALUE + SEPARATOR + String.join(SEPARATOR, keys));
+    }
+
+    private void onMessage(String body) {
+        String[] parts = body.split(SEPARATOR);
+        if (parts.length < 2 || NodeId.VALUE.equals(parts[0])) {
+            return;
+        }
+        List<String> keys = Arrays.asList(parts).subList(1, parts.length);
+        for (Consumer<Collection<String>> listener : listeners) {
+            listener.accept(keys);
+        }
+    }
+
+    public void shutdown() {
+        // 停机前把还没发出去的消息发完
+        flushExecutor.shutdown();
+        flush();
+    }
+}
@@ -1,11 +1,24 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import com.hmdp.config.IdProperties;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 全局唯一ID生成策略
@@ -16,9 +29,12 @@ import java.time.format.DateTimeFormatter;
  * Redis自增ID策略
  * 每天一个key, 1. 方便统一订单量 2. 限定key自增的值不至于太大超过了存储的上限
  * ID构造是 时间戳 + 计数器
+ * 号段模式: 每个节点一次INCRBY租用一段序列号，在本地用AtomicLong分配，用到prefetchRatio时异步租用下一段
+ * 序列号还是从同一个每天的key里取，ID的结构不变，只是同一秒内的ID不再严格按生成顺序递增
  */
+@Slf4j
 @Component
-public class RedisIdWorker {
+public class RedisIdWorker implements IdGenerator {
 
     /**
      * 开始时间戳
@@ -28,29 +44,166 @@ public class RedisIdWorker {
      * 序列号的位数
      */
     private static final int COUNT_BITS = 32;
+    /**
+     * 日期格式，线程安全，不用每次都创建
+     */
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
 
     private final StringRedisTemplate stringRedisTemplate;
+    private final IdProperties.Segment segmentConfig;
+
+    // 号段模式下每个业务前缀一个号段缓冲
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(
+            ThreadFactoryBuilder.create().setNamePrefix("id-segment-").setDaemon(true).build());
 
-    public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate, IdProperties idProperties) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.segmentConfig = idProperties.getSegment();
     }
 
+    @Override
     public long nextId(String keyPrefix) {
         // 1. 生成时间戳
         LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
-        long timestamp = nowSecond - BEGIN_TIMESTAMP;
+        long timestamp = timestamp(now);
         // 2. 生成序列号
         // 2.1. 获取当前日期，精确到天
         // key以":"分割，将来是分层级的
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        // 2.2. 自增长
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        String key = counterKey(keyPrefix, now);
+        // 2.2. 自增长，号段模式在本地分配
+        long count = segmentConfig.isEnabled()
+                ? buffers.computeIfAbsent(keyPrefix, k -> new SegmentBuffer()).next(key)
+                : stringRedisTemplate.opsForValue().increment(key);
         // 3. 拼接并返回
 
+        return compose(timestamp, count);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        prefetchExecutor.shutdownNow();
+    }
+
+    /**
+     * 从Redis租用一段序列号 [start, end]
+     */
+    private Segment lease(String key) {
+        int step = segmentConfig.getStep();
+        long end = stringRedisTemplate.opsForValue().increment(key, step);
+        return new Segment(key, end - step + 1, end,
+                end - step + Math.max(1, (long) (step * segmentConfig.getPrefetchRatio())));
+    }
+
+    /**
+     * 一段序列号，cursor是下一个要分配的值
+     */
+    private static final class Segment {
+        private final String key;
+        private final long end;
+        // 分配到这个值时开始预取下一段
+        private final long prefetchAt;
+        private final AtomicLong cursor;
+        private final AtomicBoolean prefetching = new AtomicBoolean();
+        // 预取的下一段，挂在当前号段上，不会被之后的号段覆盖
+        private final CompletableFuture<Segment> next = new CompletableFuture<>();
+
+        Segment(String key, long start, long end, long prefetchAt) {
+            this.key = key;
+            this.end = end;
+            this.prefetchAt = prefetchAt;
+            this.cursor = new AtomicLong(start);
+        }
+    }
+
+    /**
+     * 一个业务前缀的当前号段
+     */
+    private final class SegmentBuffer {
+        private volatile Segment current;
+
+        long next(String key) {
+            while (true) {
+                Segment segment = current;
+                // 1. 还没有号段或者已经换了一天，同步租用
+                if (segment == null || !segment.key.equals(key)) {
+                    switchTo(segment, key);
+                    continue;
+                }
+                // 2. 从号段里分配
+                long count = segment.cursor.getAndIncrement();
+                if (count <= segment.end) {
+                    if (count >= segment.prefetchAt && segment.prefetching.compareAndSet(false, true)) {
+                        // 3. 用到一定比例，异步租用下一段
+                        prefetch(segment);
+                    }
+                    return count;
+                }
+                // 4. 用完了，切换到预取的号段
+                switchTo(segment, key);
+            }
+        }
+
+        private void prefetch(Segment segment) {
+            try {
+                prefetchExecutor.execute(() -> {
+                    try {
+                        segment.next.complete(lease(segment.key));
+                    } catch (Exception e) {
+                        segment.next.completeExceptionally(e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                segment.next.completeExceptionally(e);
+            }
+        }
+
+        private synchronized void switchTo(Segment expired, String key) {
+            if (current != expired) {
+                // 其他线程已经切换过了
+                return;
+            }
+            Segment prefetched = null;
+            // 开始预取了就一定会完成，等它的结果，不然预取到的号段就浪费了
+            if (expired != null && expired.prefetching.get()) {
+                try {
+                    prefetched = expired.next.join();
+                } catch (Exception e) {
+                    log.warn("预取号段失败, 改为同步获取, key: {}", key, e);
+                }
+            }
+            // 预取的是前一天的号段就不能用了
+            current = prefetched != null && prefetched.key.equals(key) ? prefetched : lease(key);
+        }
+    }
+
+    /**
+     * ID里的时间戳部分
+     */
+    public static long timestamp(LocalDateTime now) {
+        return now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+    }
+
+    /**
+     * 当天的序列号key，秒杀脚本在脚本里自增同一个key
+     */
+    public static String counterKey(String keyPrefix, LocalDateTime now) {
+        return "icr:" + keyPrefix + ":" + now.format(DATE_FORMATTER);
+    }
+
+    public static long compose(long timestamp, long count) {
         return timestamp << COUNT_BITS | count;
     }
 
+    /**
+     * ID生成的时间(毫秒时间戳)，精确到秒
+     * ID里的时间戳是本地时间按UTC换算的，这里换算回来
+     */
+    public static long createdAtMillis(long id) {
+        return LocalDateTime.ofEpochSecond((id >>> COUNT_BITS) + BEGIN_TIMESTAMP, 0, ZoneOffset.UTC)
+                .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
     public static void main(String[] args) {
         LocalDateTime time = LocalDateTime.of(2024, 1, 1, 0, 0, 0);
         long second = time.toEpochSecond(ZoneOffset.UTC);
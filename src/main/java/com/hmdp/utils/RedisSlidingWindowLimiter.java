@@ -0,0 +1,35 @@
+package com.hmdp.utils;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.Collections;
+
+/**
+ * 基于Redis的滑动窗口，一次脚本完成判断和计数
+ * 时间用Redis的TIME，节点之间的时钟差不影响窗口
+ */
+public class RedisSlidingWindowLimiter implements SlidingWindowLimiter {
+
+    private static final DefaultRedisScript<Long> LIMIT_SCRIPT;
+
+    static {
+        LIMIT_SCRIPT = new DefaultRedisScript<>();
+        LIMIT_SCRIPT.setLocation(new ClassPathResource("seckill_limit.lua"));
+        LIMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    public RedisSlidingWindowLimiter(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @Override
+    public boolean tryAcquire(String key, long limit, long windowMillis) {
+        Long result = stringRedisTemplate.execute(LIMIT_SCRIPT, Collections.singletonList(key),
+                String.valueOf(limit), String.valueOf(windowMillis));
+        return result != null && result == 1L;
+    }
+}
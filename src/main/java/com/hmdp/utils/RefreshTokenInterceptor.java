@@ -6,13 +6,13 @@ import com.hmdp.dto.UserDTO;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
 
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 // 要想让拦截器生效还需要配置拦截器
-public class RefreshTokenInterceptor implements HandlerInterceptor {
+public class RefreshTokenInterceptor implements AsyncHandlerInterceptor {
 
     // 这里不能用Autowired, Resource等注解，只能使用构造函数来注入
     // 因为LoginInterceptor这个类他的对象是我们自己手动new出来的，不是通过Component等等注解来构建的
@@ -27,6 +27,8 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
     // preHandle前置拦截，postHandle在 Controller执行之后
     @Override
     public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        // 0. 先清掉当前线程上可能残留的用户，Tomcat线程是复用的，不能让这次请求用上一次请求的用户
+        UserHolder.removeUser();
         // (deprecated) 1. 获取session
         // 1. 获取请求头中的token
         String token = request.getHeader("authorization");
@@ -67,4 +69,11 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         // 保存的时候不需要key，它是保存在当前线程里面的
         UserHolder.removeUser();
     }
+
+    // 异步请求(比如返回DeferredResult的长轮询)第一次分派结束时不会调用afterCompletion，而是调用这里
+    // 不清除的话这个Tomcat线程会一直带着这个用户，下一个没有token的请求就会被当成这个用户
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        UserHolder.removeUser();
+    }
 }
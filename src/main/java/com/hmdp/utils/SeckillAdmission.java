@@ -0,0 +1,201 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.Resource;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀入口的准入控制，放在秒杀脚本前面，被拒绝的请求不执行脚本也不生成订单id
+ * 1. 本机令牌桶: 纯内存，挡掉超出本节点处理能力的请求，不访问Redis
+ * 2. 虚拟排队(可选): 先领排队号，按releaseRate每秒放行一批，没轮到的请求一次GET就拒绝
+ *    排队号里带着队列开始发号的时间，队列过期重新编号后不会用旧的时间去算
+ * 3. 全局滑动窗口: 所有节点加起来每个窗口最多放行globalLimit个请求，一次脚本
+ * 限流参数按券配置，hmdp.seckill.admission.vouchers里没有的券用defaults
+ */
+@Component
+public class SeckillAdmission {
+
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> TICKET_SCRIPT;
+
+    static {
+        TICKET_SCRIPT = new DefaultRedisScript<>();
+        TICKET_SCRIPT.setLocation(new ClassPathResource("seckill_ticket.lua"));
+        TICKET_SCRIPT.setResultType(List.class);
+    }
+
+    public enum Decision {
+        ADMITTED(null),
+        LOCAL_LIMITED("当前人数过多，请稍后重试"),
+        GLOBAL_LIMITED("当前人数过多，请稍后重试"),
+        NO_TICKET("请先排队"),
+        NOT_YOUR_TURN("还没有轮到你，请稍后重试");
+
+        private final String message;
+
+        Decision(String message) {
+            this.message = message;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    /**
+     * 排队号和前面还有多少人，ahead为0就可以秒杀了
+     */
+    public record Ticket(long number, long ahead) {
+    }
+
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Resource
+    private SlidingWindowLimiter slidingWindowLimiter;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    // 每张券一个令牌桶，限流参数改了就换一个新的桶
+    private final Map<Long, LimitedBucket> buckets = new ConcurrentHashMap<>();
+
+    private final Map<Decision, Counter> rejected = new EnumMap<>(Decision.class);
+
+    @PostConstruct
+    private void init() {
+        for (Decision decision : Decision.values()) {
+            if (decision != Decision.ADMITTED) {
+                rejected.put(decision, Counter.builder("seckill.admission.rejected")
+                        .description("seckill requests rejected before running the seckill script")
+                        .tag("reason", decision.name().toLowerCase())
+                        .register(meterRegistry));
+            }
+        }
+    }
+
+    public Decision admit(Long voucherId, Long userId) {
+        SeckillProperties.Admission admission = seckillProperties.getAdmission();
+        if (!admission.isEnabled()) {
+            return Decision.ADMITTED;
+        }
+        SeckillProperties.Limit limit = admission.limitOf(voucherId);
+        Decision decision = check(voucherId, userId, admission, limit);
+        if (decision != Decision.ADMITTED) {
+            rejected.get(decision).increment();
+        }
+        return decision;
+    }
+
+    private Decision check(Long voucherId, Long userId, SeckillProperties.Admission admission,
+                           SeckillProperties.Limit limit) {
+        // 1. 本机令牌桶
+        if (limit.getLocalRate() > 0) {
+            if (!bucket(voucherId, limit).tryAcquire()) {
+                return Decision.LOCAL_LIMITED;
+            }
+        }
+        // 2. 虚拟排队
+        if (limit.isWaitingRoom()) {
+            Ticket ticket = toTicket(stringRedisTemplate.opsForValue().get(ticketKey(voucherId, userId)), limit);
+            if (ticket == null) {
+                return Decision.NO_TICKET;
+            }
+            if (ticket.ahead() > 0) {
+                return Decision.NOT_YOUR_TURN;
+            }
+        }
+        // 3. 全局滑动窗口
+        if (limit.getGlobalLimit() > 0
+                && !slidingWindowLimiter.tryAcquire(SECKILL_LIMIT_KEY + "{" + voucherId + "}",
+                limit.getGlobalLimit(), admission.getGlobalWindow().toMillis())) {
+            return Decision.GLOBAL_LIMITED;
+        }
+        return Decision.ADMITTED;
+    }
+
+    /**
+     * 领取排队号，同一个用户重复领取返回原来的号
+     */
+    @SuppressWarnings("unchecked")
+    public Ticket takeTicket(Long voucherId, Long userId) {
+        SeckillProperties.Admission admission = seckillProperties.getAdmission();
+        List<Long> result = stringRedisTemplate.execute(TICKET_SCRIPT,
+                List.of(ticketKey(voucherId, userId), queueKey(voucherId)),
+                String.valueOf(admission.getTicketTtl().toMillis()));
+        long number = result.get(0);
+        long opened = result.get(1);
+        return new Ticket(number, Math.max(0, number - released(opened, admission.limitOf(voucherId))));
+    }
+
+    /**
+     * 查询排队进度，没有排队号返回null
+     */
+    public Ticket queryTicket(Long voucherId, Long userId) {
+        String ticket = stringRedisTemplate.opsForValue().get(ticketKey(voucherId, userId));
+        return toTicket(ticket, seckillProperties.getAdmission().limitOf(voucherId));
+    }
+
+    /**
+     * 解析保存的排队号 "排队号:openedAt"，没有或者格式不对返回null
+     */
+    private static Ticket toTicket(String value, SeckillProperties.Limit limit) {
+        int separator = value == null ? -1 : value.indexOf(':');
+        if (separator < 0) {
+            return null;
+        }
+        long number = Long.parseLong(value.substring(0, separator));
+        long opened = Long.parseLong(value.substring(separator + 1));
+        return new Ticket(number, Math.max(0, number - released(opened, limit)));
+    }
+
+    /**
+     * 已经放行到第几号: 开始发号时放行第一批，之后每秒放行releaseRate个
+     * 按时间计算，不需要定时任务去推进，所有节点算出来的一样(误差是节点和Redis的时钟差)
+     */
+    private static long released(long opened, SeckillProperties.Limit limit) {
+        long elapsed = Math.max(0, System.currentTimeMillis() - opened);
+        return (elapsed / 1000 + 1) * limit.getReleaseRate();
+    }
+
+    /**
+     * 券的令牌桶，配置的速率或者突发量变了就按新参数重建
+     */
+    private TokenBucket bucket(Long voucherId, SeckillProperties.Limit limit) {
+        double rate = limit.getLocalRate();
+        int burst = limit.getLocalBurst();
+        LimitedBucket current = buckets.get(voucherId);
+        if (current != null && current.matches(rate, burst)) {
+            return current.bucket();
+        }
+        return buckets.compute(voucherId, (id, old) -> old != null && old.matches(rate, burst)
+                ? old : new LimitedBucket(rate, burst, new TokenBucket(rate, burst))).bucket();
+    }
+
+    private static String queueKey(Long voucherId) {
+        return SECKILL_QUEUE_KEY + "{" + voucherId + "}";
+    }
+
+    private static String ticketKey(Long voucherId, Long userId) {
+        return SECKILL_TICKET_KEY + "{" + voucherId + "}:" + userId;
+    }
+
+    private record LimitedBucket(double rate, int burst, TokenBucket bucket) {
+        boolean matches(double rate, int burst) {
+            return this.rate == rate && this.burst == burst;
+        }
+    }
+}
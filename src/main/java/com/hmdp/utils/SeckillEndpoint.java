@@ -0,0 +1,29 @@
+package com.hmdp.utils;
+
+import jakarta.annotation.Resource;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 秒杀订单队列的积压、落库延迟和库存对账 /actuator/seckill
+ */
+@Component
+@Endpoint(id = "seckill")
+public class SeckillEndpoint {
+
+    @Resource
+    private SeckillStreamMetrics seckillStreamMetrics;
+    @Resource
+    private SeckillReconciler seckillReconciler;
+
+    @ReadOperation
+    public Map<String, Object> seckill() {
+        Map<String, Object> snapshot = new LinkedHashMap<>(seckillStreamMetrics.snapshot());
+        snapshot.put("reconcile", seckillReconciler.snapshot());
+        return snapshot;
+    }
+}
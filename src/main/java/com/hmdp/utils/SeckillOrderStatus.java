@@ -0,0 +1,202 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.mapper.VoucherOrderMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STATUS_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STATUS_KEY;
+
+/**
+ * 秒杀订单的最终结果，消费者落库后写入，客户端通过 GET /voucher-order/{id}/status 长轮询，不用去查数据库
+ * 1. 按订单id里的生成时间分桶，一个桶一个hash: seckill:order:status:{桶号} 订单id -> 状态码，整个桶一起过期
+ *    订单id本身就带着时间，查询时不用知道订单是什么时候落库的
+ * 2. 写入后广播，所有节点上等待这些订单的长轮询立即返回，没有人等也只是一条消息
+ * 3. 结果还没出来的请求挂起等待，超时返回PENDING，不占用Tomcat线程
+ * 4. 超过保存时间的订单去数据库确认一次，确认的结果写回桶里，同一个订单id(包括编造的)只查一次数据库
+ */
+@Slf4j
+@Component
+public class SeckillOrderStatus {
+
+    private static final String SEPARATOR = "|";
+
+    public enum Status {
+        PENDING(""),
+        SUCCESS("1"),
+        SOLD_OUT("2"),
+        FAILED("3");
+
+        private final String code;
+
+        Status(String code) {
+            this.code = code;
+        }
+
+        public static Status of(String code) {
+            for (Status status : values()) {
+                if (status.code.equals(code)) {
+                    return status;
+                }
+            }
+            return PENDING;
+        }
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    // 订单id -> 在这个节点上等待结果的长轮询
+    private final Map<Long, List<CompletableFuture<Status>>> waiting = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        listenerContainer.addMessageListener(
+                (message, pattern) -> onMessage(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(SECKILL_ORDER_STATUS_CHANNEL));
+    }
+
+    /**
+     * 订单落库(或者确定失败)后调用，一次pipeline写完一批，写失败不影响订单本身
+     */
+    public void record(Map<Long, Status> statuses) {
+        if (statuses.isEmpty()) {
+            return;
+        }
+        SeckillProperties.OrderStatus config = seckillProperties.getOrderStatus();
+        // 1. 按桶分组
+        Map<String, Map<String, String>> buckets = new HashMap<>();
+        StringJoiner message = new StringJoiner(",", NodeId.VALUE + SEPARATOR, "");
+        statuses.forEach((orderId, status) -> {
+            buckets.computeIfAbsent(bucketKey(orderId), k -> new HashMap<>()).put(orderId.toString(), status.code);
+            message.add(orderId + ":" + status.code);
+        });
+        try {
+            // 2. HSET + PEXPIRE，桶的过期时间从最后一次写入算起
+            long ttl = config.getTtl().toMillis() + config.getBucket().toMillis();
+            RedisSerializer<String> serializer = stringRedisTemplate.getStringSerializer();
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                buckets.forEach((key, fields) -> {
+                    Map<byte[], byte[]> hash = new HashMap<>(fields.size());
+                    fields.forEach((k, v) -> hash.put(serializer.serialize(k), serializer.serialize(v)));
+                    connection.hashCommands().hMSet(serializer.serialize(key), hash);
+                    connection.keyCommands().pExpire(serializer.serialize(key), ttl);
+                });
+                return null;
+            });
+            // 3. 通知其他节点
+            stringRedisTemplate.convertAndSend(SECKILL_ORDER_STATUS_CHANNEL, message.toString());
+        } catch (Exception e) {
+            // 客户端等到超时拿到PENDING，再查一次就会去数据库确认
+            log.warn("写入订单结果失败, 数量: {}", statuses.size(), e);
+        }
+        // 4. 本节点的等待者直接唤醒
+        statuses.forEach(this::complete);
+    }
+
+    public void record(Long orderId, Status status) {
+        record(Map.of(orderId, status));
+    }
+
+    /**
+     * 查询订单结果，Redis里没有并且已经超过保存时间的订单去数据库确认一次
+     * 确认的结果写回桶里，过期之前再查不用访问数据库；数据库里没有的订单算作FAILED，之后落库了record会覆盖
+     */
+    public Status get(Long orderId) {
+        String key = bucketKey(orderId);
+        Object code = stringRedisTemplate.opsForHash().get(key, orderId.toString());
+        if (code != null) {
+            return Status.of(code.toString());
+        }
+        SeckillProperties.OrderStatus config = seckillProperties.getOrderStatus();
+        long age = System.currentTimeMillis() - IdGenerators.createdAtMillis(orderId);
+        if (age <= config.getTtl().toMillis()) {
+            return Status.PENDING;
+        }
+        Status status = voucherOrderMapper.selectById(orderId) != null ? Status.SUCCESS : Status.FAILED;
+        try {
+            stringRedisTemplate.opsForHash().put(key, orderId.toString(), status.code);
+            stringRedisTemplate.expire(key, config.getTtl().toMillis() + config.getBucket().toMillis(),
+                    TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            log.warn("写入订单结果失败, orderId: {}", orderId, e);
+        }
+        return status;
+    }
+
+    /**
+     * 等待订单结果，最多等timeoutMillis毫秒，超时的结果是PENDING
+     */
+    public CompletableFuture<Status> await(Long orderId, long timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            return CompletableFuture.completedFuture(get(orderId));
+        }
+        CompletableFuture<Status> future = new CompletableFuture<>();
+        waiting.compute(orderId, (k, list) -> {
+            list = list == null ? new ArrayList<>() : list;
+            list.add(future);
+            return list;
+        });
+        // 超时或者完成之后都从等待列表里删掉
+        future.whenComplete((s, e) -> waiting.computeIfPresent(orderId, (k, list) -> {
+            list.remove(future);
+            return list.isEmpty() ? null : list;
+        }));
+        // 先登记再查，查询和登记之间刚好写入的结果也会唤醒它，每个请求只查一次
+        Status status = get(orderId);
+        if (status != Status.PENDING) {
+            future.complete(status);
+            return future;
+        }
+        return future.completeOnTimeout(Status.PENDING, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void complete(Long orderId, Status status) {
+        List<CompletableFuture<Status>> futures = waiting.remove(orderId);
+        if (futures != null) {
+            futures.forEach(future -> future.complete(status));
+        }
+    }
+
+    private void onMessage(String body) {
+        int index = body.indexOf(SEPARATOR);
+        if (index < 0 || NodeId.VALUE.equals(body.substring(0, index)) || waiting.isEmpty()) {
+            return;
+        }
+        for (String entry : body.substring(index + 1).split(",")) {
+            String[] parts = entry.split(":");
+            if (parts.length == 2) {
+                complete(Long.valueOf(parts[0]), Status.of(parts[1]));
+            }
+        }
+    }
+
+    private String bucketKey(Long orderId) {
+        long bucket = IdGenerators.createdAtMillis(orderId) / seckillProperties.getOrderStatus().getBucket().toMillis();
+        return SECKILL_ORDER_STATUS_KEY + bucket;
+    }
+}
@@ -0,0 +1,334 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.StringJoiner;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+
+/**
+ * Redis的秒杀库存、下单用户和数据库对账
+ * 消费者处理失败的订单(进了死信队列、库存不足、Redis主从切换丢了数据)会让两边不一致:
+ * 下单用户在Redis里但订单不在数据库，用户不能再抢，库存也少卖了；或者反过来，订单在数据库但Redis里没有，用户可以再抢一次
+ * 1. 数据库 -> Redis: 游标按user_id分页读订单，每页按分片SMISMEMBER，Redis里没有的补上
+ * 2. Redis -> 数据库: SSCAN逐批读下单用户，每批一次IN查询，数据库里没有的从Redis删掉，用户可以重新抢
+ * 3. 库存: 以上修复之后Redis的库存应该和数据库一样，差多少补多少；分片之间借库存中断的先补完，还有进行中的下次再核对
+ * 只在券的订单stream没有积压时对账，在途的订单两边本来就不一样；修复之前再确认一次没有新的订单进来
+ * 每次只核对几张券，从上次的位置接着往后，游标和SSCAN都是分批的，不会用SMEMBERS一次读出整个集合
+ */
+@Slf4j
+@Component
+public class SeckillReconciler {
+
+    public record Report(Long voucherId, long missingInRedis, long orphanedInRedis, long stockDrift, boolean skipped) {
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Resource
+    private SeckillStock seckillStock;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+    @Resource
+    private PlatformTransactionManager transactionManager;
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    // 下一次从这张券之后开始核对
+    private volatile long lastVoucherId;
+
+    private volatile List<Report> lastReports = List.of();
+    private volatile long lastRunAt;
+
+    private Counter missingInRedisCounter;
+    private Counter orphanedInRedisCounter;
+    private Counter stockDriftCounter;
+    private Counter skippedCounter;
+
+    @PostConstruct
+    private void init() {
+        missingInRedisCounter = Counter.builder("seckill.reconcile.missing-in-redis")
+                .description("persisted orders whose user was missing from the Redis order set")
+                .register(meterRegistry);
+        orphanedInRedisCounter = Counter.builder("seckill.reconcile.orphaned-in-redis")
+                .description("users in the Redis order set without a persisted order")
+                .register(meterRegistry);
+        stockDriftCounter = Counter.builder("seckill.reconcile.stock-drift")
+                .description("absolute difference between Redis and MySQL stock")
+                .register(meterRegistry);
+        skippedCounter = Counter.builder("seckill.reconcile.skipped")
+                .description("vouchers skipped because stream.orders had a backlog")
+                .register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.reconcile.interval:60000}")
+    public void reconcile() {
+        SeckillProperties.Reconcile config = seckillProperties.getReconcile();
+        if (!config.isEnabled()) {
+            return;
+        }
+        try {
+            // 1. 这一轮核对的券，核对到最后一张之后从头开始
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .select("voucher_id")
+                    .gt("voucher_id", lastVoucherId)
+                    .orderByAsc("voucher_id")
+                    .last("LIMIT " + config.getVouchersPerRun())
+                    .list();
+            if (vouchers.isEmpty()) {
+                lastVoucherId = 0;
+                return;
+            }
+            List<Report> reports = new ArrayList<>(vouchers.size());
+            for (SeckillVoucher voucher : vouchers) {
+                Report report = reconcile(voucher.getVoucherId());
+                reports.add(report);
+                if (report.skipped()) {
+                    // 有积压，后面的券也不用看了，下次从这张券重新开始
+                    break;
+                }
+                lastVoucherId = voucher.getVoucherId();
+            }
+            lastReports = reports;
+            lastRunAt = System.currentTimeMillis();
+        } catch (Exception e) {
+            // 异常不能抛出去，否则定时任务就停了
+            log.error("秒杀库存对账失败", e);
+        }
+    }
+
+    /**
+     * 核对一张券
+     */
+    public Report reconcile(Long voucherId) {
+        SeckillProperties.Reconcile config = seckillProperties.getReconcile();
+        int shards = seckillStock.shards(voucherId);
+        List<String> streams = SeckillStock.streamKeys(seckillProperties.getConsumer().getStream(), voucherId, shards);
+        String mark = quiescentMark(streams);
+        if (mark == null) {
+            skippedCounter.increment();
+            return new Report(voucherId, 0, 0, 0, true);
+        }
+        // 1. 数据库 -> Redis
+        long missing = addMissingUsers(voucherId, shards, config);
+        // 2. Redis -> 数据库
+        long orphaned = 0;
+        for (String key : orderKeys(voucherId, shards)) {
+            long n = removeOrphanedUsers(voucherId, key, streams, mark, config);
+            if (n < 0) {
+                skippedCounter.increment();
+                return new Report(voucherId, missing, orphaned, 0, true);
+            }
+            orphaned += n;
+        }
+        // 3. 库存，借库存中断的先补完，还有进行中的借库存时分片库存的合计不准
+        if (seckillStock.settleTransfers(voucherId, config.getTransferTimeout().toMillis(), config.isRepair()) > 0) {
+            skippedCounter.increment();
+            return new Report(voucherId, missing, orphaned, 0, true);
+        }
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        long drift = voucher == null ? 0 : voucher.getStock() - seckillStock.remaining(voucherId);
+        if (drift != 0) {
+            stockDriftCounter.increment(Math.abs(drift));
+            log.warn("秒杀库存不一致, voucherId: {}, 数据库 - Redis: {}", voucherId, drift);
+            if (config.isRepair()) {
+                if (!mark.equals(quiescentMark(streams))) {
+                    skippedCounter.increment();
+                    return new Report(voucherId, missing, orphaned, drift, true);
+                }
+                if (drift > 0) {
+                    // 补库存会清除所有节点的售罄标记
+                    seckillStock.addStock(voucherId, (int) drift);
+                } else {
+                    seckillStock.removeStock(voucherId, -drift);
+                }
+            }
+        }
+        return new Report(voucherId, missing, orphaned, drift, false);
+    }
+
+    private long addMissingUsers(Long voucherId, int shards, SeckillProperties.Reconcile config) {
+        TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+        transaction.setReadOnly(true);
+        long missing = 0;
+        long lastUserId = 0;
+        while (true) {
+            // 1. 游标只能在事务内读取，每页一个只读事务
+            long from = lastUserId;
+            List<Long> userIds = transaction.execute(status -> readPage(voucherId, from, config.getBatchSize()));
+            if (userIds == null || userIds.isEmpty()) {
+                return missing;
+            }
+            lastUserId = userIds.get(userIds.size() - 1);
+            // 2. 按分片分组，每个分片一次SMISMEMBER
+            Map<String, List<Object>> byKey = new HashMap<>();
+            for (Long userId : userIds) {
+                byKey.computeIfAbsent(SeckillStock.orderKey(voucherId, userId, shards), k -> new ArrayList<>())
+                        .add(userId.toString());
+            }
+            for (Map.Entry<String, List<Object>> entry : byKey.entrySet()) {
+                Map<Object, Boolean> members = stringRedisTemplate.opsForSet()
+                        .isMember(entry.getKey(), entry.getValue().toArray());
+                if (members == null) {
+                    continue;
+                }
+                String[] absent = members.entrySet().stream()
+                        .filter(member -> !Boolean.TRUE.equals(member.getValue()))
+                        .map(member -> member.getKey().toString())
+                        .toArray(String[]::new);
+                if (absent.length == 0) {
+                    continue;
+                }
+                missing += absent.length;
+                missingInRedisCounter.increment(absent.length);
+                log.warn("订单已落库但Redis里没有下单记录, voucherId: {}, 数量: {}", voucherId, absent.length);
+                if (config.isRepair()) {
+                    // 补上之后这些用户不能再抢一次
+                    stringRedisTemplate.opsForSet().add(entry.getKey(), absent);
+                }
+            }
+        }
+    }
+
+    /**
+     * SSCAN一个下单用户集合，返回删掉的用户数，中途有新订单进来返回-1
+     */
+    private long removeOrphanedUsers(Long voucherId, String key, List<String> streams, String mark,
+                                     SeckillProperties.Reconcile config) {
+        long orphaned = 0;
+        List<Long> batch = new ArrayList<>(config.getBatchSize());
+        ScanOptions options = ScanOptions.scanOptions().count(config.getBatchSize()).build();
+        try (Cursor<String> cursor = stringRedisTemplate.opsForSet().scan(key, options)) {
+            while (cursor.hasNext()) {
+                batch.add(Long.valueOf(cursor.next()));
+                if (batch.size() >= config.getBatchSize() || !cursor.hasNext()) {
+                    long n = removeOrphanedBatch(voucherId, key, batch, streams, mark, config);
+                    if (n < 0) {
+                        return -1;
+                    }
+                    orphaned += n;
+                    batch.clear();
+                }
+            }
+        }
+        return orphaned;
+    }
+
+    private long removeOrphanedBatch(Long voucherId, String key, List<Long> userIds, List<String> streams,
+                                     String mark, SeckillProperties.Reconcile config) {
+        Set<Long> persisted = new HashSet<>(voucherOrderMapper.selectUserIds(voucherId, userIds));
+        Object[] orphans = userIds.stream()
+                .filter(userId -> !persisted.contains(userId))
+                .map(String::valueOf)
+                .toArray();
+        if (orphans.length == 0) {
+            return 0;
+        }
+        log.warn("Redis里有下单记录但订单没有落库, voucherId: {}, 数量: {}", voucherId, orphans.length);
+        if (config.isRepair()) {
+            // 中途有新订单进来，它们可能还没落库，不能删
+            if (!mark.equals(quiescentMark(streams))) {
+                return -1;
+            }
+            stringRedisTemplate.opsForSet().remove(key, orphans);
+        }
+        orphanedInRedisCounter.increment(orphans.length);
+        return orphans.length;
+    }
+
+    private List<Long> readPage(Long voucherId, long lastUserId, int batchSize) {
+        List<Long> userIds = new ArrayList<>(batchSize);
+        try (org.apache.ibatis.cursor.Cursor<Long> cursor = voucherOrderMapper.scanUserIds(voucherId, lastUserId, batchSize)) {
+            cursor.forEach(userIds::add);
+        } catch (IOException e) {
+            throw new IllegalStateException("关闭游标失败", e);
+        }
+        return userIds;
+    }
+
+    /**
+     * 券的订单stream(分片的券是每个分片的stream)都没有积压时返回最后一条消息的id，修复前后比较，不一样说明中途有新订单
+     * 有积压(还有没读的或者没确认的消息)返回null
+     */
+    private String quiescentMark(List<String> streams) {
+        StringJoiner mark = new StringJoiner(",");
+        for (String stream : streams) {
+            String lastId = quiescentMark(stream);
+            if (lastId == null) {
+                return null;
+            }
+            mark.add(lastId);
+        }
+        return mark.toString();
+    }
+
+    private String quiescentMark(String stream) {
+        SeckillProperties.Consumer config = seckillProperties.getConsumer();
+        StreamInfo.XInfoStream info = stringRedisTemplate.opsForStream().info(stream);
+        String lastId = info.lastGeneratedId();
+        boolean delivered = stringRedisTemplate.opsForStream().groups(stream).stream()
+                .filter(group -> config.getGroup().equals(group.groupName()))
+                .anyMatch(group -> Objects.equals(lastId, group.lastDeliveredId()));
+        if (!delivered) {
+            return null;
+        }
+        PendingMessagesSummary pending = stringRedisTemplate.opsForStream().pending(stream, config.getGroup());
+        return pending.getTotalPendingMessages() == 0 ? lastId : null;
+    }
+
+    private static List<String> orderKeys(Long voucherId, int shards) {
+        if (shards == 1) {
+            return List.of(SECKILL_ORDER_KEY + voucherId);
+        }
+        List<String> keys = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            keys.add(SeckillStock.orderKey(voucherId, i));
+        }
+        return keys;
+    }
+
+    /**
+     * /actuator/seckill 的内容
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("lastRunAt", lastRunAt);
+        snapshot.put("nextVoucherAfter", lastVoucherId);
+        snapshot.put("missingInRedis", (long) missingInRedisCounter.count());
+        snapshot.put("orphanedInRedis", (long) orphanedInRedisCounter.count());
+        snapshot.put("stockDrift", (long) stockDriftCounter.count());
+        snapshot.put("skipped", (long) skippedCounter.count());
+        snapshot.put("lastReports", lastReports);
+        return snapshot;
+    }
+}
@@ -0,0 +1,489 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀库存
+ * 不分片: 和原来一样，一个 seckill:stock:{voucherId} 和一个 seckill:order:{voucherId}
+ * 分片: 库存拆成N份，seckill:stock:{voucherId:i} 和 seckill:order:{voucherId:i}，花括号是hash tag
+ * 1. 同一个分片的库存和下单用户在同一个slot，一次秒杀只在一个分片上执行脚本，不同分片可以落在不同的节点
+ * 2. 用户按userId的hash固定路由到一个分片，一人一单在分片内判断，仍然是精确的
+ * 3. 分片库存卖完后从其他分片借一半过来，全部分片都没有库存才算卖完
+ *    两个分片不在一个slot，借出时在捐出分片的slot记下在途转移，入账后删掉，中途宕机由对账补完
+ * 分片数在新增秒杀券时确定，记录在 seckill:shards:{voucherId}，所有节点按Redis里的分片数路由
+ * 分片的订单消息写进同一个slot的 stream.orders:{voucherId:i}，登记在 seckill:streams，消费者逐个读取
+ * 订单id在脚本里用当天的 icr:order: 序列号生成，只有抢到的请求才消耗序列号，一次秒杀只访问一次Redis
+ * 订单配置成snowflake时在本地生成订单id传给脚本，不访问Redis，被拒绝的请求浪费一个也没有关系
+ * 分片的券总是在本地生成订单id: 序列号key和分片的key不在一个slot，所有分片也会挤到这一个key上
+ * 开启号段模式(hmdp.id.segment)或者snowflake时不访问Redis，否则每次秒杀多一次INCR
+ * 售罄标记: 脚本返回库存不足后在本地标记并广播给其他节点，之后的请求在本地直接拒绝，补库存时清除
+ */
+@Slf4j
+@Component
+public class SeckillStock {
+
+    private static final String SEPARATOR = "|";
+
+    private static final String ORDER_ID_PREFIX = "order";
+
+    // 秒杀脚本返回 {结果} 或 {0, 序列号}
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> SECKILL_SCRIPT;
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> SECKILL_SHARD_SCRIPT;
+    private static final DefaultRedisScript<Long> BORROW_SCRIPT;
+    private static final DefaultRedisScript<Long> CREDIT_SCRIPT;
+
+    static {
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_SCRIPT.setResultType(List.class);
+        SECKILL_SHARD_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SHARD_SCRIPT.setLocation(new ClassPathResource("seckill_shard.lua"));
+        SECKILL_SHARD_SCRIPT.setResultType(List.class);
+        BORROW_SCRIPT = new DefaultRedisScript<>();
+        BORROW_SCRIPT.setLocation(new ClassPathResource("seckill_borrow.lua"));
+        BORROW_SCRIPT.setResultType(Long.class);
+        CREDIT_SCRIPT = new DefaultRedisScript<>();
+        CREDIT_SCRIPT.setLocation(new ClassPathResource("seckill_credit.lua"));
+        CREDIT_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Resource
+    private MeterRegistry meterRegistry;
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+    @Resource
+    private IdGenerators idGenerators;
+
+    // 券的分片数，秒杀券新增之后不会变，每个节点缓存一份
+    private final Map<Long, Integer> shardCounts = new ConcurrentHashMap<>();
+
+    // 已经卖完的券 -> 标记或上次去Redis确认的时间
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    // 转移id的序号，转移id = 开始时间:节点:序号
+    private final AtomicLong transferSequence = new AtomicLong();
+
+    private Counter borrowCounter;
+    private Counter soldOutRejectedCounter;
+
+    @PostConstruct
+    private void init() {
+        borrowCounter = Counter.builder("seckill.stock.borrow")
+                .description("times a sold-out shard borrowed stock from a sibling shard")
+                .register(meterRegistry);
+        soldOutRejectedCounter = Counter.builder("seckill.sold-out.rejected")
+                .description("seckill requests rejected locally because the voucher is sold out")
+                .register(meterRegistry);
+        meterRegistry.gauge("seckill.sold-out.vouchers", soldOut, Map::size);
+        // 其他节点的售罄和补库存
+        listenerContainer.addMessageListener(
+                (message, pattern) -> onSoldOut(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    /**
+     * 新增秒杀券时写入库存，按配置拆成分片
+     */
+    public void init(Long voucherId, int stock) {
+        SeckillProperties.Stock config = seckillProperties.getStock();
+        int shards = Math.max(1, Math.min(config.getShards(), stock / Math.max(1, config.getMinStockPerShard())));
+        Map<String, String> values = new HashMap<>(shards * 2);
+        if (shards == 1) {
+            values.put(SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+        } else {
+            // 平均分配，余数分给前面的分片
+            for (int i = 0; i < shards; i++) {
+                values.put(stockKey(voucherId, i), String.valueOf(stock / shards + (i < stock % shards ? 1 : 0)));
+            }
+        }
+        values.put(SECKILL_SHARDS_KEY + voucherId, String.valueOf(shards));
+        stringRedisTemplate.opsForValue().multiSet(values);
+        if (shards > 1) {
+            // 登记分片的stream，消费者刷新列表时创建消费者组
+            stringRedisTemplate.opsForSet().add(SECKILL_STREAMS_KEY,
+                    streamKeys(seckillProperties.getConsumer().getStream(), voucherId, shards).toArray(String[]::new));
+        }
+        shardCounts.put(voucherId, shards);
+    }
+
+    /**
+     * 补库存，分片的券平均加到每个分片，之后清除所有节点的售罄标记
+     */
+    public void addStock(Long voucherId, int amount) {
+        int shards = shards(voucherId);
+        if (shards == 1) {
+            stringRedisTemplate.opsForValue().increment(SECKILL_STOCK_KEY + voucherId, amount);
+        } else {
+            for (int i = 0; i < shards; i++) {
+                int n = amount / shards + (i < amount % shards ? 1 : 0);
+                if (n > 0) {
+                    stringRedisTemplate.opsForValue().increment(stockKey(voucherId, i), n);
+                }
+            }
+        }
+        clearSoldOut(voucherId);
+        broadcast(voucherId, false);
+    }
+
+    /**
+     * 减库存，对账发现Redis的库存比数据库多时调用
+     * 从前往后减每个分片现有的库存，不会减成负数，返回实际减掉的数量
+     */
+    public long removeStock(Long voucherId, long amount) {
+        int shards = shards(voucherId);
+        long removed = 0;
+        for (int i = 0; i < shards && removed < amount; i++) {
+            String key = shards == 1 ? SECKILL_STOCK_KEY + voucherId : stockKey(voucherId, i);
+            String value = stringRedisTemplate.opsForValue().get(key);
+            long n = Math.min(amount - removed, value == null ? 0 : Math.max(0, Long.parseLong(value)));
+            if (n > 0) {
+                stringRedisTemplate.opsForValue().decrement(key, n);
+                removed += n;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * 本地判断是否已经卖完
+     * 每隔soldOutRecheck放一个请求去Redis确认，补库存的广播丢了也能恢复
+     */
+    public boolean isSoldOut(Long voucherId) {
+        Long markedAt = soldOut.get(voucherId);
+        if (markedAt == null) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (now - markedAt >= seckillProperties.getStock().getSoldOutRecheck().toMillis()
+                && soldOut.replace(voucherId, markedAt, now)) {
+            // 抢到了确认的机会，这个请求照常执行脚本
+            return false;
+        }
+        soldOutRejectedCounter.increment();
+        return true;
+    }
+
+    /**
+     * 秒杀结果
+     * @param result 0: 成功; 1: 库存不足; 2: 重复下单; 3: 尚未开始; 4: 已经结束
+     * @param orderId 成功时的订单id
+     */
+    public record Purchase(int result, long orderId) {
+    }
+
+    /**
+     * 执行秒杀脚本，成功时在脚本里生成订单id
+     * 秒杀时间窗口一起传给脚本，脚本用Redis的时间再判断一次，本地缓存和节点时钟不准时也不会提前或者超时卖出
+     */
+    public Purchase tryPurchase(Long voucherId, Long userId, SeckillVoucherCache.Window window) {
+        Purchase purchase = doPurchase(voucherId, userId, window);
+        int result = purchase.result();
+        if (result == 1) {
+            // 卖完了，本地标记并通知其他节点
+            if (soldOut.putIfAbsent(voucherId, System.currentTimeMillis()) == null) {
+                log.info("秒杀券已售罄, voucherId: {}", voucherId);
+                broadcast(voucherId, true);
+            }
+        } else if (result == 0 && soldOut.containsKey(voucherId)) {
+            // 确认的请求买到了，说明补过库存
+            clearSoldOut(voucherId);
+            broadcast(voucherId, false);
+        }
+        return purchase;
+    }
+
+    private Purchase doPurchase(Long voucherId, Long userId, SeckillVoucherCache.Window window) {
+        // 订单id的时间戳在这里取，脚本只负责自增当天的序列号
+        LocalDateTime now = LocalDateTime.now();
+        long timestamp = RedisIdWorker.timestamp(now);
+        String counterKey = RedisIdWorker.counterKey(ORDER_ID_PREFIX, now);
+        List<String> args = new ArrayList<>(6);
+        args.add(voucherId.toString());
+        args.add(userId.toString());
+        args.add(String.valueOf(timestamp));
+        args.add(String.valueOf(window.beginMillis()));
+        args.add(String.valueOf(window.endMillis()));
+        IdGenerator idGenerator = idGenerators.forPrefix(ORDER_ID_PREFIX);
+        int shards = shards(voucherId);
+        long localOrderId = 0;
+        if (idGenerator.isLocal() || shards > 1) {
+            localOrderId = idGenerator.nextId(ORDER_ID_PREFIX);
+            args.add(String.valueOf(localOrderId));
+        }
+        Object[] argv = args.toArray();
+        if (shards == 1) {
+            return toPurchase(stringRedisTemplate.execute(SECKILL_SCRIPT, List.of(counterKey), argv),
+                    timestamp, localOrderId);
+        }
+        // 1. 固定路由到一个分片
+        int home = shard(userId, shards);
+        List<String> keys = List.of(stockKey(voucherId, home), orderKey(voucherId, home),
+                streamKey(seckillProperties.getConsumer().getStream(), voucherId, home));
+        int sibling = 0;
+        while (true) {
+            Purchase purchase = toPurchase(stringRedisTemplate.execute(SECKILL_SHARD_SCRIPT, keys, argv),
+                    timestamp, localOrderId);
+            if (purchase.result() != 1) {
+                return purchase;
+            }
+            // 2. 分片卖完了，依次从后面的分片借库存，借到之后回到自己的分片重新下单
+            long borrowed = 0;
+            while (borrowed == 0 && ++sibling < shards) {
+                borrowed = borrow(voucherId, (home + sibling) % shards, home);
+            }
+            if (borrowed == 0) {
+                // 3. 所有分片都没有库存了
+                return new Purchase(1, 0);
+            }
+            borrowCounter.increment();
+        }
+    }
+
+    /**
+     * 从donor分片借库存给home分片，返回借到的数量
+     * 1. 捐出分片扣库存，同时在同一个slot记下在途转移
+     * 2. 借库存的分片入账，同一个转移只入账一次
+     * 3. 删掉在途转移和入账记录
+     * 在途转移的库存不属于任何分片，只会少卖不会超卖；任何一步之后宕机，对账时settleTransfers补完
+     */
+    private long borrow(Long voucherId, int donor, int home) {
+        String transferId = System.currentTimeMillis() + ":" + NodeId.VALUE + ":" + transferSequence.incrementAndGet();
+        Long n = stringRedisTemplate.execute(BORROW_SCRIPT,
+                List.of(stockKey(voucherId, donor), transferKey(voucherId, donor)),
+                transferId, String.valueOf(home));
+        if (n == null || n == 0) {
+            return 0;
+        }
+        credit(voucherId, donor, home, transferId, n);
+        return n;
+    }
+
+    private void credit(Long voucherId, int donor, int home, String transferId, long n) {
+        stringRedisTemplate.execute(CREDIT_SCRIPT,
+                List.of(stockKey(voucherId, home), creditedKey(voucherId, home)),
+                transferId, String.valueOf(n), String.valueOf(donor));
+        // 先删在途转移再删入账记录，反过来在两次之间宕机，对账会再入账一次
+        stringRedisTemplate.opsForHash().delete(transferKey(voucherId, donor), transferId);
+        stringRedisTemplate.opsForHash().delete(creditedKey(voucherId, home), transferId);
+    }
+
+    /**
+     * 对账时补完中断的借库存，返回还在进行中的转移个数
+     * 超过timeoutMillis的在途转移认为借库存的节点已经宕机，替它入账再删掉；没超时的还在进行中
+     * 在途转移的库存不在任何分片上，有进行中的转移时分片库存的合计比实际少，不能拿来对账
+     * @param repair false只上报超时的转移，不入账
+     */
+    public int settleTransfers(Long voucherId, long timeoutMillis, boolean repair) {
+        int shards = shards(voucherId);
+        if (shards == 1) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        int inFlight = 0;
+        // 1. 超时的在途转移入账
+        for (int donor = 0; donor < shards; donor++) {
+            Map<Object, Object> transfers = stringRedisTemplate.opsForHash().entries(transferKey(voucherId, donor));
+            for (Map.Entry<Object, Object> transfer : transfers.entrySet()) {
+                String transferId = transfer.getKey().toString();
+                if (now - startedAt(transferId) < timeoutMillis) {
+                    inFlight++;
+                    continue;
+                }
+                String[] parts = transfer.getValue().toString().split(":");
+                int home = Integer.parseInt(parts[0]);
+                long n = Long.parseLong(parts[1]);
+                log.warn("借库存中断, voucherId: {}, 分片: {} -> {}, 数量: {}", voucherId, donor, home, n);
+                if (repair) {
+                    credit(voucherId, donor, home, transferId, n);
+                }
+            }
+        }
+        if (!repair) {
+            return inFlight;
+        }
+        // 2. 删掉在途转移之后宕机留下的入账记录，在途转移已经不在了才能删
+        for (int home = 0; home < shards; home++) {
+            String key = creditedKey(voucherId, home);
+            Map<Object, Object> credited = stringRedisTemplate.opsForHash().entries(key);
+            for (Map.Entry<Object, Object> entry : credited.entrySet()) {
+                String transferId = entry.getKey().toString();
+                int donor = Integer.parseInt(entry.getValue().toString());
+                if (now - startedAt(transferId) >= timeoutMillis
+                        && !stringRedisTemplate.opsForHash().hasKey(transferKey(voucherId, donor), transferId)) {
+                    stringRedisTemplate.opsForHash().delete(key, transferId);
+                }
+            }
+        }
+        return inFlight;
+    }
+
+    private static long startedAt(String transferId) {
+        return Long.parseLong(transferId.substring(0, transferId.indexOf(':')));
+    }
+
+    /**
+     * 所有分片剩余库存的合计
+     */
+    public long remaining(Long voucherId) {
+        int shards = shards(voucherId);
+        List<String> keys = new ArrayList<>(shards);
+        if (shards == 1) {
+            keys.add(SECKILL_STOCK_KEY + voucherId);
+        } else {
+            for (int i = 0; i < shards; i++) {
+                keys.add(stockKey(voucherId, i));
+            }
+        }
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+        long total = 0;
+        if (values != null) {
+            for (String value : values) {
+                total += value == null ? 0 : Long.parseLong(value);
+            }
+        }
+        return total;
+    }
+
+    private static Purchase toPurchase(List<?> reply, long timestamp, long localOrderId) {
+        int result = ((Long) reply.get(0)).intValue();
+        if (result != 0) {
+            return new Purchase(result, 0);
+        }
+        if (localOrderId != 0) {
+            return new Purchase(0, localOrderId);
+        }
+        // 和脚本写进消息里的订单id相同
+        return new Purchase(0, RedisIdWorker.compose(timestamp, (Long) reply.get(1)));
+    }
+
+    private void clearSoldOut(Long voucherId) {
+        if (soldOut.remove(voucherId) != null) {
+            log.info("秒杀券补充了库存, voucherId: {}", voucherId);
+        }
+    }
+
+    private void broadcast(Long voucherId, boolean isSoldOut) {
+        try {
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL,
+                    NodeId.VALUE + SEPARATOR + voucherId + SEPARATOR + (isSoldOut ? 1 : 0));
+        } catch (Exception e) {
+            // 其他节点收不到也没关系，会自己执行脚本发现卖完了
+            log.warn("广播售罄消息失败, voucherId: {}", voucherId, e);
+        }
+    }
+
+    private void onSoldOut(String body) {
+        String[] parts = body.split("\\|");
+        if (parts.length != 3 || NodeId.VALUE.equals(parts[0])) {
+            return;
+        }
+        Long voucherId = Long.valueOf(parts[1]);
+        if ("1".equals(parts[2])) {
+            soldOut.putIfAbsent(voucherId, System.currentTimeMillis());
+        } else {
+            clearSoldOut(voucherId);
+        }
+    }
+
+    public int shards(Long voucherId) {
+        Integer cached = shardCounts.get(voucherId);
+        if (cached != null) {
+            return cached;
+        }
+        String value = stringRedisTemplate.opsForValue().get(SECKILL_SHARDS_KEY + voucherId);
+        if (value != null) {
+            int shards = Integer.parseInt(value);
+            shardCounts.put(voucherId, shards);
+            return shards;
+        }
+        // 没有记录分片数的是分片之前新增的券，按不分片处理
+        // 券还不存在时不缓存，免得其他节点新增了分片的券之后这里还按不分片路由
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_STOCK_KEY + voucherId))) {
+            shardCounts.put(voucherId, 1);
+        }
+        return 1;
+    }
+
+    public static int shard(Long userId, int shards) {
+        // 打散连续的userId
+        return Math.floorMod(Long.hashCode(userId * 0x9E3779B97F4A7C15L), shards);
+    }
+
+    public static String stockKey(Long voucherId, int shard) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String orderKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 分片借出去还没入账的库存，hash: 转移id -> 借库存的分片:数量
+     */
+    public static String transferKey(Long voucherId, int shard) {
+        return SECKILL_TRANSFER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 分片已经入账的转移，hash: 转移id -> 捐出库存的分片
+     */
+    public static String creditedKey(Long voucherId, int shard) {
+        return SECKILL_CREDITED_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 分片的订单stream，hash tag和分片的库存相同: stream.orders:{voucherId:i}
+     */
+    public static String streamKey(String stream, Long voucherId, int shard) {
+        return stream + ":{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 券的订单消息所在的stream，不分片的券是stream.orders
+     */
+    public static List<String> streamKeys(String stream, Long voucherId, int shards) {
+        if (shards == 1) {
+            return List.of(stream);
+        }
+        List<String> keys = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            keys.add(streamKey(stream, voucherId, i));
+        }
+        return keys;
+    }
+
+    /**
+     * 用户所在分片的下单用户key，不分片的券是 seckill:order:{voucherId}
+     */
+    public static String orderKey(Long voucherId, Long userId, int shards) {
+        return shards == 1 ? SECKILL_ORDER_KEY + voucherId : orderKey(voucherId, shard(userId, shards));
+    }
+}
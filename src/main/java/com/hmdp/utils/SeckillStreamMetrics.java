@@ -0,0 +1,200 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * stream.orders的积压情况和订单落库延迟
+ * 1. 定时采样 XLEN、XINFO GROUPS、XINFO CONSUMERS、XPENDING，作为gauge发布
+ * 2. 端到端延迟: 消息id里的毫秒时间戳(XADD的时间)到订单事务提交，作为timer发布
+ * 指标通过 /actuator/metrics 查看，汇总通过 /actuator/seckill 查看
+ */
+@Slf4j
+@Component
+public class SeckillStreamMetrics {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private final AtomicLong length = new AtomicLong();
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicLong lag = new AtomicLong();
+    private final AtomicLong oldestPendingAge = new AtomicLong();
+    private final AtomicLong consumerCount = new AtomicLong();
+    private volatile String lastDeliveredId;
+    private volatile long sampledAt;
+
+    // 消费者名称 -> 采样值，消费者删除后对应的gauge一起删除
+    private final Map<String, ConsumerGauges> consumers = new ConcurrentHashMap<>();
+
+    private Timer latency;
+    private Counter persisted;
+
+    @PostConstruct
+    private void init() {
+        meterRegistry.gauge("seckill.stream.length", length);
+        meterRegistry.gauge("seckill.stream.pending", pending);
+        meterRegistry.gauge("seckill.stream.lag", lag);
+        meterRegistry.gauge("seckill.stream.oldest.pending.age", oldestPendingAge);
+        meterRegistry.gauge("seckill.stream.consumers", consumerCount);
+        latency = Timer.builder("seckill.order.latency")
+                .description("time from XADD in the seckill script to the order transaction commit")
+                .publishPercentiles(0.5, 0.99, 0.999)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        persisted = Counter.builder("seckill.order.persisted")
+                .description("orders committed to tb_voucher_order")
+                .register(meterRegistry);
+    }
+
+    /**
+     * 订单事务提交后调用，消息id的前半段是XADD时的毫秒时间戳
+     */
+    public void recordPersisted(Collection<RecordId> ids) {
+        long now = System.currentTimeMillis();
+        for (RecordId id : ids) {
+            Long timestamp = id.getTimestamp();
+            if (timestamp != null) {
+                latency.record(Math.max(0, now - timestamp), TimeUnit.MILLISECONDS);
+            }
+        }
+        persisted.increment(ids.size());
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.metrics.interval:5000}")
+    public void sample() {
+        SeckillProperties.Consumer config = seckillProperties.getConsumer();
+        String stream = config.getStream();
+        try {
+            // 1. XLEN
+            Long size = stringRedisTemplate.opsForStream().size(stream);
+            length.set(size == null ? 0 : size);
+            // 2. XINFO GROUPS，lag是Redis 7才有的字段
+            stringRedisTemplate.opsForStream().groups(stream).stream()
+                    .filter(group -> config.getGroup().equals(group.groupName()))
+                    .findFirst()
+                    .ifPresent(group -> {
+                        consumerCount.set(group.consumerCount());
+                        lastDeliveredId = group.lastDeliveredId();
+                        Object groupLag = group.getRaw().get("lag");
+                        lag.set(groupLag instanceof Number number ? number.longValue() : -1);
+                    });
+            // 3. XPENDING，最早的一条待确认消息等了多久
+            PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(stream, config.getGroup());
+            pending.set(summary.getTotalPendingMessages());
+            RecordId oldest = summary.getTotalPendingMessages() > 0 ? summary.minRecordId() : null;
+            oldestPendingAge.set(oldest == null || oldest.getTimestamp() == null
+                    ? 0 : Math.max(0, System.currentTimeMillis() - oldest.getTimestamp()));
+            // 4. XINFO CONSUMERS，每个消费者的待确认数量和空闲时间
+            Set<String> seen = new HashSet<>();
+            for (StreamInfo.XInfoConsumer consumer : stringRedisTemplate.opsForStream().consumers(stream, config.getGroup())) {
+                seen.add(consumer.consumerName());
+                ConsumerGauges gauges = consumers.computeIfAbsent(consumer.consumerName(), ConsumerGauges::new);
+                gauges.pending.set(consumer.pendingCount());
+                gauges.idle.set(consumer.idleTimeMs());
+            }
+            consumers.entrySet().removeIf(entry -> {
+                if (seen.contains(entry.getKey())) {
+                    return false;
+                }
+                entry.getValue().remove();
+                return true;
+            });
+            sampledAt = System.currentTimeMillis();
+        } catch (Exception e) {
+            log.warn("采样{}失败", stream, e);
+        }
+    }
+
+    /**
+     * /actuator/seckill 的内容
+     */
+    public Map<String, Object> snapshot() {
+        SeckillProperties.Consumer config = seckillProperties.getConsumer();
+        Map<String, Object> stream = new LinkedHashMap<>();
+        stream.put("name", config.getStream());
+        stream.put("group", config.getGroup());
+        stream.put("length", length.get());
+        stream.put("pending", pending.get());
+        stream.put("lag", lag.get());
+        stream.put("oldestPendingAgeMillis", oldestPendingAge.get());
+        stream.put("lastDeliveredId", lastDeliveredId);
+        stream.put("sampledAt", sampledAt);
+        List<Map<String, Object>> consumerList = new ArrayList<>();
+        consumers.forEach((name, gauges) -> {
+            Map<String, Object> consumer = new LinkedHashMap<>();
+            consumer.put("name", name);
+            consumer.put("pending", gauges.pending.get());
+            consumer.put("idleMillis", gauges.idle.get());
+            consumerList.add(consumer);
+        });
+        stream.put("consumers", consumerList);
+
+        Map<String, Object> orders = new LinkedHashMap<>();
+        orders.put("persisted", (long) persisted.count());
+        HistogramSnapshot histogram = latency.takeSnapshot();
+        Map<String, Object> latencyMillis = new LinkedHashMap<>();
+        latencyMillis.put("count", histogram.count());
+        latencyMillis.put("mean", histogram.mean(TimeUnit.MILLISECONDS));
+        latencyMillis.put("max", histogram.max(TimeUnit.MILLISECONDS));
+        for (ValueAtPercentile percentile : histogram.percentileValues()) {
+            // p50 p99 p99.9
+            String name = "p" + String.valueOf(percentile.percentile() * 100).replaceAll("\\.0$", "");
+            latencyMillis.put(name, percentile.value(TimeUnit.MILLISECONDS));
+        }
+        orders.put("latencyMillis", latencyMillis);
+
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("stream", stream);
+        snapshot.put("orders", orders);
+        return snapshot;
+    }
+
+    private class ConsumerGauges {
+        private final AtomicLong pending = new AtomicLong();
+        private final AtomicLong idle = new AtomicLong();
+        private final Gauge pendingGauge;
+        private final Gauge idleGauge;
+
+        ConsumerGauges(String name) {
+            pendingGauge = Gauge.builder("seckill.stream.consumer.pending", pending, AtomicLong::get)
+                    .tag("consumer", name).register(meterRegistry);
+            idleGauge = Gauge.builder("seckill.stream.consumer.idle", idle, AtomicLong::get)
+                    .tag("consumer", name).baseUnit("milliseconds").register(meterRegistry);
+        }
+
+        void remove() {
+            meterRegistry.remove(pendingGauge);
+            meterRegistry.remove(idleGauge);
+        }
+    }
+}
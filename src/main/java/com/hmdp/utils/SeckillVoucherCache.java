@@ -0,0 +1,137 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_CHANNEL;
+
+/**
+ * 秒杀券的时间窗口，常驻内存，秒杀请求判断是否在秒杀时间内不用查数据库
+ * 1. 启动时从tb_seckill_voucher加载全部秒杀券的开始和结束时间
+ * 2. 新增秒杀券时写入本地并广播，其他节点直接用消息里的时间，不用等事务提交后再查库
+ * 3. 内存里的窗口就是全部秒杀券，不认识的券直接当作不存在，不查数据库，编造的券id打不到数据库
+ *    广播的消息可能丢，定时从数据库补上加载之后新增的券
+ */
+@Slf4j
+@Component
+public class SeckillVoucherCache {
+
+    private static final String SEPARATOR = "|";
+
+    /**
+     * 秒杀时间窗口 [beginMillis, endMillis)，毫秒时间戳
+     */
+    public record Window(long beginMillis, long endMillis) {
+
+        public boolean notStarted(long now) {
+            return now < beginMillis;
+        }
+
+        public boolean ended(long now) {
+            return now >= endMillis;
+        }
+    }
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    private final Map<Long, Window> windows = new ConcurrentHashMap<>();
+
+    // 从数据库加载到的最大券id，定时补齐从这里往后查
+    private volatile long loadedId;
+
+    @PostConstruct
+    private void init() {
+        load();
+        log.info("加载秒杀券时间窗口, 数量: {}", windows.size());
+        listenerContainer.addMessageListener(
+                (message, pattern) -> onMessage(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(SECKILL_VOUCHER_CHANNEL));
+    }
+
+    /**
+     * 新增秒杀券后调用，更新本地并通知其他节点
+     */
+    public void put(SeckillVoucher voucher) {
+        Window window = toWindow(voucher);
+        windows.put(voucher.getVoucherId(), window);
+        try {
+            stringRedisTemplate.convertAndSend(SECKILL_VOUCHER_CHANNEL, NodeId.VALUE + SEPARATOR
+                    + voucher.getVoucherId() + SEPARATOR + window.beginMillis() + SEPARATOR + window.endMillis());
+        } catch (Exception e) {
+            // 其他节点收不到时，等定时补齐从数据库加载
+            log.warn("广播秒杀券时间窗口失败, voucherId: {}", voucher.getVoucherId(), e);
+        }
+    }
+
+    /**
+     * 券的秒杀时间窗口，不存在返回null，只查内存
+     */
+    public Window get(Long voucherId) {
+        return windows.get(voucherId);
+    }
+
+    /**
+     * 定时从数据库补上加载之后新增的券，修复丢掉的广播
+     * voucher_id跟着tb_voucher的自增id，只需要查比上次加载到的更大的，没有新增时只有一次走主键索引的空查询
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.voucher-resync-interval:10000}")
+    public void resync() {
+        try {
+            load();
+        } catch (Exception e) {
+            log.error("补齐秒杀券时间窗口失败", e);
+        }
+    }
+
+    private void load() {
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .select("voucher_id", "begin_time", "end_time")
+                .gt("voucher_id", loadedId)
+                .orderByAsc("voucher_id")
+                .list();
+        for (SeckillVoucher voucher : vouchers) {
+            windows.put(voucher.getVoucherId(), toWindow(voucher));
+        }
+        if (!vouchers.isEmpty()) {
+            loadedId = vouchers.get(vouchers.size() - 1).getVoucherId();
+        }
+    }
+
+    private void onMessage(String body) {
+        String[] parts = body.split("\\|");
+        if (parts.length != 4 || NodeId.VALUE.equals(parts[0])) {
+            return;
+        }
+        Long voucherId = Long.valueOf(parts[1]);
+        windows.put(voucherId, new Window(Long.parseLong(parts[2]), Long.parseLong(parts[3])));
+    }
+
+    private static Window toWindow(SeckillVoucher voucher) {
+        return new Window(toMillis(voucher.getBeginTime(), Long.MIN_VALUE),
+                toMillis(voucher.getEndTime(), Long.MAX_VALUE));
+    }
+
+    private static long toMillis(LocalDateTime time, long absent) {
+        return time == null ? absent : time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,211 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ibatis.cursor.Cursor;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 启动时预热店铺缓存
+ * 1. 按id分页，每页用MyBatis游标逐条读取，不会一次把整张表读进内存
+ * 2. 每页的店铺缓存和GEO数据各用一次pipeline写入Redis
+ * 3. 按配置的速率限流，避免预热把Redis和数据库打满
+ * 4. 加载的比例达到readyFraction之前，readiness探针返回OUT_OF_SERVICE，不接流量
+ * 5. 失败后退避重试，从上次加载到的id继续；重试用完算降级，readiness照样UP，缓存未命中时会查数据库
+ * 进度通过 /actuator/warmup 查看
+ */
+@Slf4j
+@Component
+public class ShopCacheWarmUp implements HealthIndicator {
+
+    public enum State {
+        PENDING, RUNNING, COMPLETED, FAILED, DISABLED
+    }
+
+    @Resource
+    private ShopMapper shopMapper;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private PlatformTransactionManager transactionManager;
+    @Resource
+    private CacheProperties cacheProperties;
+
+    private volatile State state = State.PENDING;
+    private volatile long total;
+    private volatile long loaded;
+    // 已经写入的最大店铺id，重试从这里继续
+    private volatile long lastId;
+    private volatile int retries;
+    private volatile long startTime;
+    private volatile long endTime;
+    private volatile String error;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        if (!cacheProperties.getWarmUp().isEnabled()) {
+            state = State.DISABLED;
+            return;
+        }
+        Thread.ofPlatform().name("shop-cache-warmup").daemon().start(() -> {
+            state = State.RUNNING;
+            startTime = System.currentTimeMillis();
+            try {
+                loadWithRetry();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                state = State.FAILED;
+            } finally {
+                endTime = System.currentTimeMillis();
+            }
+        });
+    }
+
+    private void loadWithRetry() throws InterruptedException {
+        CacheProperties.WarmUp config = cacheProperties.getWarmUp();
+        long backoff = config.getRetryBackoff().toMillis();
+        while (true) {
+            try {
+                load();
+                state = State.COMPLETED;
+                log.info("店铺缓存预热完成, 数量: {}, 耗时: {}ms", loaded, System.currentTimeMillis() - startTime);
+                return;
+            } catch (Exception e) {
+                error = e.getMessage();
+                if (retries >= config.getMaxRetries()) {
+                    // 降级: 不再预热，readiness照样UP，没预热到的店铺第一次访问时查数据库
+                    state = State.FAILED;
+                    log.error("店铺缓存预热失败, 不再重试, 已加载: {}/{}", loaded, total, e);
+                    return;
+                }
+                retries++;
+                log.warn("店铺缓存预热失败, {}ms后从id {}之后继续, 第{}次重试, 已加载: {}/{}",
+                        backoff, lastId, retries, loaded, total, e);
+            }
+            Thread.sleep(backoff);
+            backoff = Math.min(backoff * 2, config.getMaxRetryBackoff().toMillis());
+        }
+    }
+
+    private void load() throws InterruptedException {
+        CacheProperties.WarmUp config = cacheProperties.getWarmUp();
+        total = shopMapper.selectCount(null);
+        TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+        transaction.setReadOnly(true);
+        while (true) {
+            long begin = System.currentTimeMillis();
+            // 1. 游标只能在事务内读取，每页一个只读事务
+            long from = lastId;
+            List<Shop> shops = transaction.execute(status -> readPage(from, config.getBatchSize()));
+            if (shops == null || shops.isEmpty()) {
+                return;
+            }
+            // 2. 写入Redis
+            writePage(shops);
+            loaded += shops.size();
+            lastId = shops.get(shops.size() - 1).getId();
+            // 3. 限流，这一页按速率应该花的时间减去实际花的时间
+            if (config.getRate() > 0) {
+                long expected = shops.size() * 1000L / config.getRate();
+                long sleep = expected - (System.currentTimeMillis() - begin);
+                if (sleep > 0) {
+                    Thread.sleep(sleep);
+                }
+            }
+        }
+    }
+
+    private List<Shop> readPage(long lastId, int batchSize) {
+        List<Shop> shops = new ArrayList<>(batchSize);
+        try (Cursor<Shop> cursor = shopMapper.scanAfterId(lastId, batchSize)) {
+            cursor.forEach(shops::add);
+        } catch (IOException e) {
+            throw new IllegalStateException("关闭游标失败", e);
+        }
+        return shops;
+    }
+
+    private void writePage(List<Shop> shops) {
+        // 1. 店铺缓存，逻辑过期，一次pipeline
+        Map<String, Shop> values = new LinkedHashMap<>(shops.size() * 2);
+        // 2. 按类型分组的GEO数据
+        Map<Long, List<RedisGeoCommands.GeoLocation<byte[]>>> locations = new HashMap<>();
+        for (Shop shop : shops) {
+            values.put(CACHE_SHOP_KEY + shop.getId(), shop);
+            if (shop.getTypeId() != null && shop.getX() != null && shop.getY() != null) {
+                locations.computeIfAbsent(shop.getTypeId(), k -> new ArrayList<>()).add(new RedisGeoCommands.GeoLocation<>(
+                        shop.getId().toString().getBytes(StandardCharsets.UTF_8), new Point(shop.getX(), shop.getY())));
+            }
+        }
+        cacheClient.setWithLogicalExpire(values, CACHE_SHOP_LOGICAL_TTL, TimeUnit.SECONDS);
+        if (!locations.isEmpty()) {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                locations.forEach((typeId, list) -> connection.geoCommands()
+                        .geoAdd((SHOP_GEO_KEY + typeId).getBytes(StandardCharsets.UTF_8), list));
+                return null;
+            });
+        }
+    }
+
+    /**
+     * 已加载的比例，没有店铺算作全部加载完成
+     */
+    public double fraction() {
+        return total == 0 ? (state == State.COMPLETED ? 1 : 0) : Math.min(1, (double) loaded / total);
+    }
+
+    public Map<String, Object> progress() {
+        Map<String, Object> progress = new LinkedHashMap<>();
+        progress.put("state", state);
+        progress.put("total", total);
+        progress.put("loaded", loaded);
+        progress.put("fraction", fraction());
+        progress.put("retries", retries);
+        if (startTime > 0) {
+            progress.put("elapsedMillis", (endTime > 0 ? endTime : System.currentTimeMillis()) - startTime);
+        }
+        if (error != null) {
+            progress.put("error", error);
+        }
+        return progress;
+    }
+
+    /**
+     * 加入readiness分组，预热到一定比例之前不接流量
+     * 重试用完的预热只是降级，不能让readiness一直DOWN，否则这个节点永远不接流量
+     */
+    @Override
+    public Health health() {
+        if (state == State.DISABLED || state == State.COMPLETED || state == State.FAILED
+                || fraction() >= cacheProperties.getWarmUp().getReadyFraction()) {
+            return Health.up().withDetails(progress()).build();
+        }
+        return Health.outOfService().withDetails(progress()).build();
+    }
+}
@@ -0,0 +1,81 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+
+/**
+ * 请求合并
+ * 同一个key的并发加载只有第一个线程真正去执行，其余线程等待同一个CompletableFuture的结果
+ * 只在当前JVM内生效，跨节点还要配合Redis互斥锁
+ */
+@Slf4j
+public class SingleFlight {
+
+    private final ConcurrentHashMap<String, Call> calls = new ConcurrentHashMap<>();
+
+    private final LongAdder loadCount = new LongAdder();
+    private final LongAdder coalescedCount = new LongAdder();
+
+    // 每次加载结束后回调本次合并了多少个调用者
+    private final IntConsumer coalescedRecorder;
+
+    public SingleFlight(IntConsumer coalescedRecorder) {
+        this.coalescedRecorder = coalescedRecorder;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Supplier<T> loader) {
+        Call call = new Call();
+        Call inFlight = calls.putIfAbsent(key, call);
+        if (inFlight != null) {
+            // 已经有线程在加载了，等它的结果
+            inFlight.waiters.incrementAndGet();
+            coalescedCount.increment();
+            try {
+                return (T) inFlight.future.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof Error error) {
+                    throw error;
+                }
+                throw e.getCause() instanceof RuntimeException re ? re : e;
+            }
+        }
+        try {
+            T value = loader.get();
+            call.future.complete(value);
+            return value;
+        } catch (Throwable e) {
+            // Error(比如OOM、StackOverflow)也要通知等待的线程，否则它们会一直阻塞
+            call.future.completeExceptionally(e);
+            throw e;
+        } finally {
+            calls.remove(key, call);
+            loadCount.increment();
+            int waiters = call.waiters.get();
+            coalescedRecorder.accept(waiters);
+            if (waiters > 0) {
+                log.debug("key: {} 加载完成，合并了{}个请求", key, waiters);
+            }
+        }
+    }
+
+    public long loadCount() {
+        return loadCount.sum();
+    }
+
+    public long coalescedCount() {
+        return coalescedCount.sum();
+    }
+
+    private static class Call {
+        private final CompletableFuture<Object> future = new CompletableFuture<>();
+        private final AtomicInteger waiters = new AtomicInteger();
+    }
+}
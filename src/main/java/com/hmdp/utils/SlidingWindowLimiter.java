@@ -0,0 +1,14 @@
+package com.hmdp.utils;
+
+/**
+ * 全局限流，所有节点共享同一个窗口
+ * 滑动窗口计数: 当前窗口的计数 + 上一个窗口的计数 × 上一个窗口还在滑动窗口里的比例
+ * 每个key只需要记三个数，不用像有序集合那样每个请求记一条
+ */
+public interface SlidingWindowLimiter {
+
+    /**
+     * 最近windowMillis毫秒内放行的请求不到limit个时放行，并计入窗口
+     */
+    boolean tryAcquire(String key, long limit, long windowMillis);
+}
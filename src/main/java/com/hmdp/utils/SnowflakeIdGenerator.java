@@ -0,0 +1,209 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import com.hmdp.config.IdProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
+
+/**
+ * snowflake算法，ID完全在本地生成
+ * ID构造: 0 | 1(标记位) | 40位毫秒时间戳 | 10位workerId | 12位序列号
+ * 标记位让snowflake的ID和RedisIdWorker的ID(时间戳 << 32 | 计数器，第62位要到2058年才会是1)不会重复，同一个业务可以随时切换
+ * 1. workerId启动时从Redis租用，id:worker:{n} SET NX带过期时间，定时续约，只有租用和续约需要Redis
+ * 2. 时间戳和序列号放在一个AtomicLong里CAS更新，无锁
+ * 3. 同一毫秒序列号用完了，或者时钟回拨了，接着上一次的时间戳往后生成；回拨超过maxBackward拒绝生成
+ * 4. 续约一直失败时，租约在Redis里可能已经过期被别人占了，最后一次成功续约之后过了leaseTtl - leaseMargin拒绝生成
+ */
+@Slf4j
+public class SnowflakeIdGenerator implements IdGenerator {
+
+    /**
+     * 开始时间戳 2024-01-01，和RedisIdWorker一样
+     */
+    private static final long BEGIN_MILLIS = 1704067200000L;
+    private static final int SEQUENCE_BITS = 12;
+    private static final int WORKER_BITS = 10;
+    private static final int TIMESTAMP_BITS = 40;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final long TIMESTAMP_MASK = (1L << TIMESTAMP_BITS) - 1;
+    public static final int MAX_WORKERS = 1 << WORKER_BITS;
+    private static final long FLAG = 1L << (SEQUENCE_BITS + WORKER_BITS + TIMESTAMP_BITS);
+
+    // 续约: 还是自己的就续期，已经过期了就重新占上，被别人占了返回0
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT = new DefaultRedisScript<>(
+            "local owner = redis.call('get', KEYS[1]) "
+                    + "if owner == ARGV[1] then return redis.call('pexpire', KEYS[1], ARGV[2]) end "
+                    + "if not owner then redis.call('set', KEYS[1], ARGV[1], 'PX', ARGV[2]) return 1 end "
+                    + "return 0", Long.class);
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+
+    static {
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final IdProperties.Snowflake config;
+    private final ScheduledExecutorService heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(
+            ThreadFactoryBuilder.create().setNamePrefix("id-worker-heartbeat-").setDaemon(true).build());
+
+    // 上一次的 时间戳 << SEQUENCE_BITS | 序列号
+    private final AtomicLong state = new AtomicLong();
+    // 租约丢失时是-1，不能生成ID
+    private volatile long workerId = -1;
+    // 租约在这个时间(毫秒时间戳)之前肯定还是自己的，按发起租用/续约之前的时间算，宁可早过期
+    private volatile long leaseValidUntil;
+
+    public SnowflakeIdGenerator(StringRedisTemplate stringRedisTemplate, IdProperties.Snowflake config) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.config = config;
+    }
+
+    /**
+     * 租用workerId并开始续约
+     */
+    public void start() {
+        long begin = System.currentTimeMillis();
+        workerId = lease();
+        leaseRenewed(begin);
+        log.info("snowflake workerId: {}", workerId);
+        long interval = config.getHeartbeat().toMillis();
+        heartbeatExecutor.scheduleWithFixedDelay(this::renew, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        heartbeatExecutor.shutdownNow();
+        long id = workerId;
+        workerId = -1;
+        if (id >= 0) {
+            try {
+                // 主动释放，重启后不用等租约过期
+                stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(ID_WORKER_KEY + id), NodeId.VALUE);
+            } catch (Exception e) {
+                log.warn("释放workerId失败: {}", id, e);
+            }
+        }
+    }
+
+    @Override
+    public long nextId(String keyPrefix) {
+        long worker = workerId;
+        if (worker < 0) {
+            throw new IllegalStateException("snowflake workerId租约已丢失");
+        }
+        if (System.currentTimeMillis() >= leaseValidUntil) {
+            // Redis长时间不可用(或者重启丢了数据)，其他节点可能已经租到了同一个workerId
+            throw new IllegalStateException("snowflake workerId租约太久没有续约成功，可能已经过期");
+        }
+        while (true) {
+            long prev = state.get();
+            long lastMillis = prev >>> SEQUENCE_BITS;
+            long now = System.currentTimeMillis() - BEGIN_MILLIS;
+            long millis;
+            long sequence;
+            if (now > lastMillis) {
+                // 1. 新的一毫秒
+                millis = now;
+                sequence = 0;
+            } else {
+                // 2. 同一毫秒，或者时钟回拨了，接着上一次的时间戳
+                if (lastMillis - now > config.getMaxBackward().toMillis()) {
+                    throw new IllegalStateException("时钟回拨了" + (lastMillis - now) + "ms, 拒绝生成ID");
+                }
+                millis = lastMillis;
+                sequence = (prev & SEQUENCE_MASK) + 1;
+                if (sequence > SEQUENCE_MASK) {
+                    // 这一毫秒的序列号用完了，借用下一毫秒
+                    millis++;
+                    sequence = 0;
+                }
+            }
+            if (state.compareAndSet(prev, millis << SEQUENCE_BITS | sequence)) {
+                return FLAG | (millis & TIMESTAMP_MASK) << (WORKER_BITS + SEQUENCE_BITS)
+                        | worker << SEQUENCE_BITS | sequence;
+            }
+        }
+    }
+
+    @Override
+    public boolean isLocal() {
+        return true;
+    }
+
+    public long workerId() {
+        return workerId;
+    }
+
+    /**
+     * 是不是snowflake生成的ID
+     */
+    public static boolean isSnowflake(long id) {
+        return (id & FLAG) != 0;
+    }
+
+    /**
+     * ID生成的时间(毫秒时间戳)
+     */
+    public static long createdAtMillis(long id) {
+        return (id >>> (WORKER_BITS + SEQUENCE_BITS) & TIMESTAMP_MASK) + BEGIN_MILLIS;
+    }
+
+    /**
+     * 从随机位置开始找一个空闲的workerId，节点同时启动时不会都去抢0
+     */
+    private long lease() {
+        int offset = ThreadLocalRandom.current().nextInt(MAX_WORKERS);
+        for (int i = 0; i < MAX_WORKERS; i++) {
+            int id = (offset + i) % MAX_WORKERS;
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(ID_WORKER_KEY + id, NodeId.VALUE, config.getLeaseTtl().toMillis(), TimeUnit.MILLISECONDS);
+            if (Boolean.TRUE.equals(success)) {
+                return id;
+            }
+        }
+        throw new IllegalStateException("没有空闲的snowflake workerId");
+    }
+
+    private void leaseRenewed(long begin) {
+        leaseValidUntil = begin + config.getLeaseTtl().toMillis() - config.getLeaseMargin().toMillis();
+    }
+
+    private void renew() {
+        long id = workerId;
+        long begin = System.currentTimeMillis();
+        try {
+            if (id < 0) {
+                // 之前的租约丢了，重新租一个
+                long leased = lease();
+                leaseRenewed(begin);
+                workerId = leased;
+                log.info("重新租用snowflake workerId: {}", leased);
+                return;
+            }
+            Long result = stringRedisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(ID_WORKER_KEY + id),
+                    NodeId.VALUE, String.valueOf(config.getLeaseTtl().toMillis()));
+            if (result == null || result == 0) {
+                // 被其他节点占用了，继续用会生成重复的ID
+                workerId = -1;
+                log.error("snowflake workerId租约已被其他节点占用: {}", id);
+                return;
+            }
+            leaseRenewed(begin);
+        } catch (Exception e) {
+            // Redis短暂不可用时继续用当前的workerId，直到leaseValidUntil，nextId会检查
+            log.warn("snowflake workerId续约失败: {}", id, e);
+        }
+    }
+}
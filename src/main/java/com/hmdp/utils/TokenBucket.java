@@ -0,0 +1,39 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单机令牌桶，每秒补充permitsPerSecond个令牌，最多攒burst个
+ * 用GCRA实现: 只记录下一个令牌的理论到达时间(TAT)，一个AtomicLong CAS更新，没有锁也没有定时补充
+ * 1. TAT比现在早，说明桶是满的，从现在开始算
+ * 2. 取一个令牌TAT往后推一个间隔，推完之后超出现在burst个间隔就说明桶空了，拒绝
+ */
+public class TokenBucket {
+
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final AtomicLong tat;
+
+    public TokenBucket(double permitsPerSecond, int burst) {
+        if (permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("permitsPerSecond必须大于0");
+        }
+        this.intervalNanos = Math.max(1, (long) (1_000_000_000L / permitsPerSecond));
+        this.toleranceNanos = intervalNanos * Math.max(1, burst);
+        this.tat = new AtomicLong(System.nanoTime());
+    }
+
+    public boolean tryAcquire() {
+        while (true) {
+            long now = System.nanoTime();
+            long prev = tat.get();
+            long next = Math.max(prev, now) + intervalNanos;
+            if (next - now > toleranceNanos) {
+                return false;
+            }
+            if (tat.compareAndSet(prev, next)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.hmdp.utils;
+
+import jakarta.annotation.Resource;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+
+/**
+ * 缓存预热进度 /actuator/warmup
+ */
+@Component
+@Endpoint(id = "warmup")
+public class WarmUpEndpoint {
+
+    @Resource
+    private ShopCacheWarmUp shopCacheWarmUp;
+
+    @ReadOperation
+    public Map<String, Object> progress() {
+        return Map.of("shop", shopCacheWarmUp.progress());
+    }
+}
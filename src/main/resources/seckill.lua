@@ -3,8 +3,15 @@
 local voucherId = ARGV[1]
 -- 1.2. 用户id
 local userId = ARGV[2]
--- 1.3. 订单id
-local orderId = ARGV[3]
+-- 1.3. 时间戳，订单id = 时间戳 << 32 | 当天的序列号
+local timestamp = tonumber(ARGV[3])
+-- 1.4. 序列号key icr:order:yyyy:MM:dd
+local counterKey = KEYS[1]
+-- 1.5. 秒杀时间窗口 [beginMillis, endMillis)，毫秒时间戳
+local beginMillis = tonumber(ARGV[4])
+local endMillis = tonumber(ARGV[5])
+-- 1.6. 本地生成的订单id(snowflake)，有的话不再用序列号生成
+local localOrderId = ARGV[6]
 
 -- 2. 数据key
 -- 2.1. 库存key
@@ -13,20 +20,42 @@ local stockKey = 'seckill:stock:' .. voucherId
 local orderKey = 'seckill:order:' .. voucherId
 
 -- 3. 脚本业务
+-- 3.0. 判断是否在秒杀时间内
+local t = redis.call('time')
+local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000)
+if (now < beginMillis) then
+    -- 尚未开始，返回3
+    return {3}
+end
+if (now >= endMillis) then
+    -- 已经结束，返回4
+    return {4}
+end
 -- 3.1. 判断库存是否充足get stockKey
 if (tonumber(redis.call('get', stockKey)) <= 0) then
     -- 3.2. 库存不足，返回1
-    return 1
+    return {1}
 end
 -- 3.2. 判断用户是否下单 SISMEMBER orderKey userId
 if (redis.call('sismember', orderKey, userId) == 1) then
     -- 3.3. 存在，说明是重复下单，返回2
-    return 2
+    return {2}
 end
 -- 3.4. 扣库存 incrby stockKey -1
 redis.call('incrby', stockKey, -1)
 -- 3.5. 下单(保存用户) sadd orderKey userId
 redis.call('sadd', orderKey, userId)
--- 3.6. 发送消息到队列中，XADD stream.orders * k1 v1 k2 v2 ...
+-- 3.6. 有资格下单才生成订单id，被拒绝的请求不消耗序列号
+local count = 0
+local orderId = localOrderId
+if (not orderId) then
+    count = redis.call('incr', counterKey)
+    -- Lua的数字是double，时间戳 << 32 超过了2^53，分两段算再拼成字符串: 2^32 = 42949 * 100000 + 67296
+    local low = timestamp * 67296 + count
+    local high = timestamp * 42949 + math.floor(low / 100000)
+    orderId = string.format('%.0f%05d', high, low % 100000)
+end
+-- 3.7. 发送消息到队列中，XADD stream.orders * k1 v1 k2 v2 ...
 redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
-return 0
\ No newline at end of file
+-- 返回序列号，调用者用同一个时间戳拼出订单id，本地生成的订单id返回0
+return {0, count}
\ No newline at end of file
@@ -0,0 +1,13 @@
+-- 从一个分片取走一半库存(至少1个)，返回取走的数量，没有库存返回0
+-- KEYS[1] 捐出分片的库存 KEYS[2] 捐出分片的在途转移 seckill:transfer:{voucherId:i}，和库存在同一个slot
+-- ARGV[1] 转移id ARGV[2] 借库存的分片
+-- 两个分片不在一个slot，借出和入账不能在一个脚本里完成，取走的库存先记成在途转移
+-- 调用者用seckill_credit.lua加到自己的分片上之后删掉；调用者中途宕机，对账时按在途转移补完
+local stock = tonumber(redis.call('get', KEYS[1])) or 0
+if (stock <= 0) then
+    return 0
+end
+local n = math.max(1, math.floor(stock / 2))
+redis.call('decrby', KEYS[1], n)
+redis.call('hset', KEYS[2], ARGV[1], ARGV[2] .. ':' .. n)
+return n
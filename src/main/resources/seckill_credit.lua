@@ -0,0 +1,9 @@
+-- 借来的库存加到借库存的分片上，同一个转移只入账一次，对账补完中断的转移时可以重复调用
+-- KEYS[1] 借库存分片的库存 KEYS[2] 借库存分片已经入账的转移 seckill:credited:{voucherId:i}
+-- ARGV[1] 转移id ARGV[2] 数量 ARGV[3] 捐出库存的分片
+-- 返回1: 入账; 0: 之前已经入账过
+if (redis.call('hsetnx', KEYS[2], ARGV[1], ARGV[3]) == 0) then
+    return 0
+end
+redis.call('incrby', KEYS[1], ARGV[2])
+return 1
@@ -0,0 +1,29 @@
+-- 滑动窗口计数，KEYS[1]是一个hash: start 当前窗口开始时间，cur 当前窗口计数，prev 上一个窗口计数
+-- ARGV[1] 窗口内最多放行多少个请求，ARGV[2] 窗口大小(ms)
+-- 放行返回1，拒绝返回0
+local limit = tonumber(ARGV[1])
+local window = tonumber(ARGV[2])
+local t = redis.call('time')
+local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000)
+local start = math.floor(now / window) * window
+
+local data = redis.call('hmget', KEYS[1], 'start', 'cur', 'prev')
+local s = tonumber(data[1]) or start
+local cur = tonumber(data[2]) or 0
+local prev = tonumber(data[3]) or 0
+if (s ~= start) then
+    -- 窗口滑过去了，只有紧挨着的上一个窗口还有一部分在滑动窗口里
+    if (start - s == window) then
+        prev = cur
+    else
+        prev = 0
+    end
+    cur = 0
+end
+
+if (prev * (window - (now - start)) / window + cur + 1 > limit) then
+    return 0
+end
+redis.call('hset', KEYS[1], 'start', start, 'cur', cur + 1, 'prev', prev)
+redis.call('pexpire', KEYS[1], window * 2)
+return 1
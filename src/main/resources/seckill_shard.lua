@@ -0,0 +1,49 @@
+-- 分片库存的秒杀脚本，用户按userId固定路由到一个分片，只操作这个分片的key(同一个hash tag，同一个slot)
+-- 1. 参数列表
+-- 1.1. 分片库存key
+local stockKey = KEYS[1]
+-- 1.2. 分片订单key
+local orderKey = KEYS[2]
+-- 1.3. 分片的订单stream stream.orders:{voucherId:i}，和分片库存在同一个slot
+local streamKey = KEYS[3]
+-- 1.4. 优惠券id
+local voucherId = ARGV[1]
+-- 1.5. 用户id
+local userId = ARGV[2]
+-- 1.6. ARGV[3]是seckill.lua拼订单id用的时间戳，这里不用，参数位置和seckill.lua保持一致
+-- 1.7. 秒杀时间窗口 [beginMillis, endMillis)，毫秒时间戳
+local beginMillis = tonumber(ARGV[4])
+local endMillis = tonumber(ARGV[5])
+-- 1.8. 订单id，调用者在本地生成(snowflake或号段)
+-- 不在脚本里INCR当天的序列号key: 它和分片的key不在一个slot，所有分片也会重新挤到这一个key上
+local orderId = ARGV[6]
+
+-- 2. 脚本业务
+-- 2.0. 判断是否在秒杀时间内，用Redis的时间，和节点的时钟无关
+local t = redis.call('time')
+local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000)
+if (now < beginMillis) then
+    -- 尚未开始，返回3
+    return {3}
+end
+if (now >= endMillis) then
+    -- 已经结束，返回4
+    return {4}
+end
+-- 2.1. 判断用户是否下单，同一个用户总是落在同一个分片，所以去重是精确的
+if (redis.call('sismember', orderKey, userId) == 1) then
+    -- 重复下单，返回2
+    return {2}
+end
+-- 2.2. 判断分片库存是否充足
+if ((tonumber(redis.call('get', stockKey)) or 0) <= 0) then
+    -- 分片库存不足，返回1，由调用者去其他分片借库存
+    return {1}
+end
+-- 2.3. 扣库存
+redis.call('incrby', stockKey, -1)
+-- 2.4. 下单(保存用户)
+redis.call('sadd', orderKey, userId)
+-- 2.5. 发送消息到分片的队列中
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+return {0, 0}
@@ -0,0 +1,19 @@
+-- 虚拟排队: 领取排队号，同一个用户重复领取返回原来的号
+-- KEYS[1] 用户的排队号 seckill:ticket:{voucherId}:userId，KEYS[2] 队列 seckill:queue:{voucherId}
+-- ARGV[1] 排队号的有效期(ms)
+-- 排队号保存成 "排队号:openedAt"，队列过期后重新编号时openedAt也跟着变，各节点不需要缓存openedAt
+-- 返回 {排队号, 第一个排队号发出的时间(ms)}
+local t = redis.call('time')
+local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000)
+redis.call('hsetnx', KEYS[2], 'openedAt', now)
+
+local ticket = redis.call('get', KEYS[1])
+if (not ticket) then
+    local number = redis.call('hincrby', KEYS[2], 'last', 1)
+    ticket = number .. ':' .. redis.call('hget', KEYS[2], 'openedAt')
+    redis.call('set', KEYS[1], ticket, 'PX', ARGV[1])
+    -- 队列比最后一个排队号活得久，过期之后重新从1开始编号
+    redis.call('pexpire', KEYS[2], ARGV[1])
+end
+local number, openedAt = string.match(ticket, '(%d+):(%d+)')
+return {tonumber(number), tonumber(openedAt)}
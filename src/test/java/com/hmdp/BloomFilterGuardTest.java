@@ -0,0 +1,118 @@
+package com.hmdp;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.config.CacheProperties;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.UserMapper;
+import com.hmdp.utils.BloomFilterGuard;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.redisson.api.RBloomFilter;
+import org.redisson.api.RedissonClient;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_SHOP_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * 布隆过滤器的镜像，数据库里的id由测试指定
+ */
+class BloomFilterGuardTest {
+
+    private final NavigableSet<Long> shopIds = new ConcurrentSkipListSet<>(List.of(1L, 2L, 3L));
+    private final StringRedisTemplate redis = mock(StringRedisTemplate.class);
+    private final RedissonClient redissonClient = mock(RedissonClient.class);
+    private BloomFilterGuard guard;
+
+    @BeforeEach
+    void setUp() {
+        ShopMapper shopMapper = mock(ShopMapper.class);
+        when(shopMapper.selectObjs(any())).thenAnswer(this::selectShopIds);
+        guard = new BloomFilterGuard();
+        ReflectionTestUtils.setField(guard, "shopMapper", shopMapper);
+        ReflectionTestUtils.setField(guard, "blogMapper", mock(BlogMapper.class));
+        ReflectionTestUtils.setField(guard, "userMapper", mock(UserMapper.class));
+        ReflectionTestUtils.setField(guard, "redissonClient", redissonClient);
+        ReflectionTestUtils.setField(guard, "stringRedisTemplate", redis);
+        ReflectionTestUtils.setField(guard, "listenerContainer", mock(RedisMessageListenerContainer.class));
+        ReflectionTestUtils.setField(guard, "cacheProperties", new CacheProperties());
+        ReflectionTestUtils.invokeMethod(guard, "init");
+    }
+
+    @Test
+    void mirrorAnswersWithoutRedis() {
+        loadMirror();
+
+        assertTrue(guard.mightContain(BLOOM_SHOP_KEY, 2L));
+        assertFalse(guard.mightContain(BLOOM_SHOP_KEY, 100L));
+        // 镜像准备好之后，不存在的id也不访问Redis
+        verifyNoInteractions(redis, redissonClient);
+    }
+
+    @Test
+    void resyncRepairsLostAdd() {
+        loadMirror();
+        // 其他节点新增了id 100，发布订阅的消息丢了
+        shopIds.add(100L);
+        assertFalse(guard.mightContain(BLOOM_SHOP_KEY, 100L));
+
+        guard.resyncMirrors();
+        assertTrue(guard.mightContain(BLOOM_SHOP_KEY, 100L));
+        // 重复收到的id不重复计数
+        guard.resyncMirrors();
+        ReflectionTestUtils.invokeMethod(guard, "onAdd", "other|" + BLOOM_SHOP_KEY + "|100");
+        assertEquals(4L, (Long) ReflectionTestUtils.invokeMethod(mirror(), "insertions"));
+    }
+
+    @Test
+    void redisAnswersWhileMirrorLoading() {
+        @SuppressWarnings("unchecked")
+        RBloomFilter<Long> redisFilter = mock(RBloomFilter.class);
+        when(redissonClient.<Long>getBloomFilter(any(String.class), any())).thenReturn(redisFilter);
+        when(redis.hasKey(BLOOM_SHOP_KEY + ":ready")).thenReturn(true);
+        when(redisFilter.contains(anyLong())).thenAnswer(invocation -> shopIds.contains((Long) invocation.getArgument(0)));
+
+        assertTrue(guard.mightContain(BLOOM_SHOP_KEY, 2L));
+        assertFalse(guard.mightContain(BLOOM_SHOP_KEY, 100L));
+    }
+
+    private void loadMirror() {
+        ReflectionTestUtils.invokeMethod(guard, "rebuildMirror", filter(), 1000L);
+    }
+
+    private Object filter() {
+        Map<?, ?> filters = (Map<?, ?>) ReflectionTestUtils.getField(guard, "filters");
+        return filters.get(BLOOM_SHOP_KEY);
+    }
+
+    private Object mirror() {
+        return ReflectionTestUtils.getField(filter(), "mirror");
+    }
+
+    /**
+     * SELECT id FROM tb_shop WHERE id > ? ORDER BY id LIMIT n，这里不分页，一次返回全部
+     */
+    private List<Object> selectShopIds(InvocationOnMock invocation) {
+        QueryWrapper<?> wrapper = invocation.getArgument(0);
+        // 参数在生成SQL片段时才绑定
+        wrapper.getSqlSegment();
+        long lastId = (Long) wrapper.getParamNameValuePairs().values().iterator().next();
+        return List.copyOf(shopIds.tailSet(lastId, false));
+    }
+}
@@ -0,0 +1,263 @@
+package com.hmdp;
+
+import com.hmdp.config.CacheProperties;
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.BloomFilterGuard;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheInvalidationBus;
+import com.hmdp.utils.CacheRebuildExecutor;
+import com.hmdp.utils.CacheSerializer;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.KryoCacheCodec;
+import com.hmdp.utils.LocalCache;
+import com.hmdp.utils.LocalCacheInvalidationBus;
+import com.hmdp.utils.SingleFlight;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 不依赖Redis的CacheClient测试，Redis用内存里的Map代替
+ * 同一个JVM里创建多个CacheClient，共用同一个"Redis"，相当于多个节点
+ */
+class CacheClientTest {
+
+    private static final String KEY_PREFIX = "cache:shop:";
+
+    // 模拟Redis里的缓存值和锁
+    private final Map<String, byte[]> values = new ConcurrentHashMap<>();
+    private final Map<String, String> locks = new ConcurrentHashMap<>();
+
+    private final CacheInvalidationBus bus = new LocalCacheInvalidationBus();
+    private final List<CacheRebuildExecutor> executors = new ArrayList<>();
+
+    private ExecutorService es;
+
+    @BeforeEach
+    void setUp() {
+        es = Executors.newFixedThreadPool(64);
+    }
+
+    @AfterEach
+    void tearDown() {
+        es.shutdownNow();
+        executors.forEach(CacheRebuildExecutor::shutdown);
+    }
+
+    @Test
+    void coldLogicalMissLoadsOnce() throws Exception {
+        CacheClient cacheClient = newNode();
+        AtomicInteger dbLoads = new AtomicInteger();
+        Function<Long, Shop> dbFallback = id -> {
+            dbLoads.incrementAndGet();
+            sleep(50);
+            return new Shop().setId(id).setName("shop-" + id);
+        };
+
+        List<Shop> shops = queryConcurrently(List.of(cacheClient), 200, 1L, dbFallback);
+
+        assertEquals(1, dbLoads.get());
+        shops.forEach(shop -> assertEquals("shop-1", shop.getName()));
+        // 加载后按逻辑过期写入，再查不会访问数据库
+        assertNotNull(cacheClient.queryWithLogicalExpire(KEY_PREFIX, 1L, Shop.class, dbFallback, 20L, TimeUnit.SECONDS));
+        assertEquals(1, dbLoads.get());
+    }
+
+    @Test
+    void coldLogicalMissLoadsOnceAcrossNodes() throws Exception {
+        List<CacheClient> nodes = List.of(newNode(), newNode(), newNode());
+        AtomicInteger dbLoads = new AtomicInteger();
+        Function<Long, Shop> dbFallback = id -> {
+            dbLoads.incrementAndGet();
+            sleep(50);
+            return new Shop().setId(id).setName("shop-" + id);
+        };
+
+        List<Shop> shops = queryConcurrently(nodes, 300, 2L, dbFallback);
+
+        // 节点内靠SingleFlight合并，节点之间靠互斥锁
+        assertEquals(1, dbLoads.get());
+        assertEquals(300, shops.size());
+        shops.forEach(shop -> assertEquals("shop-2", shop.getName()));
+    }
+
+    @Test
+    void coldLogicalMissOfMissingIdCachesNull() throws Exception {
+        CacheClient cacheClient = newNode();
+        AtomicInteger dbLoads = new AtomicInteger();
+        Function<Long, Shop> dbFallback = id -> {
+            dbLoads.incrementAndGet();
+            sleep(20);
+            return null;
+        };
+
+        queryConcurrently(List.of(cacheClient), 100, 3L, dbFallback);
+        assertNull(cacheClient.queryWithLogicalExpire(KEY_PREFIX, 3L, Shop.class, dbFallback, 20L, TimeUnit.SECONDS));
+
+        // 空值写入后不会再查数据库
+        assertEquals(1, dbLoads.get());
+    }
+
+    @Test
+    void expiredEntryOfDeletedRowIsReplacedByNull() throws Exception {
+        CacheClient cacheClient = newNode();
+        String key = KEY_PREFIX + 4L;
+        // 已经逻辑过期的旧数据，数据库里这条记录已经删掉了
+        cacheClient.setWithLogicalExpire(key, new Shop().setId(4L).setName("shop-4"), 0L, TimeUnit.SECONDS);
+        AtomicInteger dbLoads = new AtomicInteger();
+        Function<Long, Shop> dbFallback = id -> {
+            dbLoads.incrementAndGet();
+            return null;
+        };
+
+        // 过期了先返回旧数据，后台重建
+        assertEquals("shop-4", cacheClient.queryWithLogicalExpire(
+                KEY_PREFIX, 4L, Shop.class, dbFallback, 20L, TimeUnit.SECONDS).getName());
+        long deadline = System.currentTimeMillis() + 2000;
+        while (values.get(key).length != 0 && System.currentTimeMillis() < deadline) {
+            sleep(10);
+        }
+
+        // 重建写入了空值，之后不再返回旧数据，也不再查数据库
+        assertEquals(0, values.get(key).length);
+        assertNull(cacheClient.queryWithLogicalExpire(KEY_PREFIX, 4L, Shop.class, dbFallback, 20L, TimeUnit.SECONDS));
+        assertEquals(1, dbLoads.get());
+    }
+
+    @Test
+    void waiterIsWokenByLocalRebuild() throws Exception {
+        // 失效广播收不到自己发的消息，和RedisCacheInvalidationBus一样
+        CacheClient cacheClient = newNode(new CacheInvalidationBus() {
+            @Override
+            public void publish(Collection<String> keys) {
+            }
+
+            @Override
+            public void subscribe(Consumer<Collection<String>> listener) {
+            }
+        });
+        String key = KEY_PREFIX + 5L;
+        cacheClient.setWithLogicalExpire(key, new Shop().setId(5L).setName("old"), 0L, TimeUnit.SECONDS);
+        AtomicLong rebuiltAt = new AtomicLong();
+        Function<Long, Shop> dbFallback = id -> {
+            sleep(250);
+            rebuiltAt.set(System.currentTimeMillis());
+            return new Shop().setId(id).setName("new");
+        };
+
+        // 1. 过期触发后台重建，重建线程持有互斥锁
+        assertEquals("old", cacheClient.queryWithLogicalExpire(
+                KEY_PREFIX, 5L, Shop.class, dbFallback, 20L, TimeUnit.SECONDS).getName());
+        // 2. 重建期间缓存被淘汰，未命中的请求等本节点的重建线程
+        values.remove(key);
+        Shop shop = cacheClient.queryWithLogicalExpire(KEY_PREFIX, 5L, Shop.class, dbFallback, 20L, TimeUnit.SECONDS);
+        long returnedAt = System.currentTimeMillis();
+
+        // 重建完成就被唤醒，不用等到超时
+        assertEquals("new", shop.getName());
+        assertTrue(returnedAt - rebuiltAt.get() < 100, "重建完成" + (returnedAt - rebuiltAt.get()) + "ms后才返回");
+    }
+
+    private List<Shop> queryConcurrently(List<CacheClient> nodes, int requests, Long id,
+                                         Function<Long, Shop> dbFallback) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Shop>> futures = new ArrayList<>(requests);
+        for (int i = 0; i < requests; i++) {
+            CacheClient node = nodes.get(i % nodes.size());
+            futures.add(es.submit(() -> {
+                start.await();
+                return node.queryWithLogicalExpire(KEY_PREFIX, id, Shop.class, dbFallback, 20L, TimeUnit.SECONDS);
+            }));
+        }
+        start.countDown();
+        List<Shop> shops = new ArrayList<>(requests);
+        for (Future<Shop> future : futures) {
+            Shop shop = future.get(10, TimeUnit.SECONDS);
+            if (shop != null) {
+                shops.add(shop);
+            }
+        }
+        return shops;
+    }
+
+    private CacheClient newNode() {
+        return newNode(bus);
+    }
+
+    @SuppressWarnings("unchecked")
+    private CacheClient newNode(CacheInvalidationBus bus) {
+        // 缓存值
+        RedisTemplate<String, byte[]> cacheRedisTemplate = mock(RedisTemplate.class);
+        ValueOperations<String, byte[]> cacheOps = mock(ValueOperations.class);
+        when(cacheRedisTemplate.opsForValue()).thenReturn(cacheOps);
+        when(cacheOps.get(anyString())).thenAnswer(inv -> values.get(inv.<String>getArgument(0)));
+        doAnswer(inv -> values.put(inv.getArgument(0), inv.getArgument(1)))
+                .when(cacheOps).set(anyString(), any(byte[].class));
+        doAnswer(inv -> values.put(inv.getArgument(0), inv.getArgument(1)))
+                .when(cacheOps).set(anyString(), any(byte[].class), anyLong(), any(TimeUnit.class));
+
+        // 互斥锁
+        StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+        ValueOperations<String, String> stringOps = mock(ValueOperations.class);
+        when(stringRedisTemplate.opsForValue()).thenReturn(stringOps);
+        when(stringOps.setIfAbsent(anyString(), anyString(), anyLong(), eq(TimeUnit.SECONDS)))
+                .thenAnswer(inv -> locks.putIfAbsent(inv.getArgument(0), inv.getArgument(1)) == null);
+        when(stringRedisTemplate.delete(anyString())).thenAnswer(inv -> {
+            String key = inv.getArgument(0);
+            return locks.remove(key) != null | values.remove(key) != null;
+        });
+        when(stringRedisTemplate.hasKey(anyString())).thenAnswer(inv -> values.containsKey(inv.<String>getArgument(0)));
+
+        BloomFilterGuard bloomFilterGuard = mock(BloomFilterGuard.class);
+        when(bloomFilterGuard.mightContainForCache(anyString(), any())).thenReturn(true);
+
+        CacheProperties cacheProperties = new CacheProperties();
+        CacheSerializer serializer = new CacheSerializer(
+                List.of(new JsonCacheCodec(), new KryoCacheCodec()), new KryoCacheCodec(), 1024);
+        CacheRebuildExecutor rebuildExecutor = new CacheRebuildExecutor(
+                2, 100, 5000, false, CacheRebuildExecutor.Overflow.DROP, 50, nanos -> {
+        });
+        executors.add(rebuildExecutor);
+        return new CacheClient(stringRedisTemplate, cacheRedisTemplate, serializer, new LocalCache(1000, 1 << 20),
+                cacheProperties, bus, new SingleFlight(waiters -> {
+        }), bloomFilterGuard, rebuildExecutor);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
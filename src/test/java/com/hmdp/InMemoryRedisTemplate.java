@@ -0,0 +1,429 @@
+package com.hmdp;
+
+import com.hmdp.utils.RedisIdWorker;
+import org.mockito.invocation.InvocationOnMock;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.SetOperations;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.LongConsumer;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * 进程内的Redis，只实现秒杀下单和消费订单用到的命令，秒杀脚本的Java移植都在这里
+ * 1. 脚本按sha1找到对应的ScriptPort，逻辑和lua脚本一一对应，在一把锁里执行，同一时刻只有一个脚本在跑
+ *    KEYS和ARGV的个数和lua脚本不一致直接报错，InMemoryRedisTemplateTest把声明的个数和lua脚本对上
+ * 2. stream是内存队列，XREADGROUP读走的消息等XACK，XADD的时间记在消息上，用来算落库延迟
+ *    消费者组不需要创建，也没有pending-list: 读走没确认的消息不会再投递
+ * 3. roundTripNanos模拟网络往返，在锁外等待，不占用"Redis"的执行时间
+ */
+@SuppressWarnings("unchecked")
+class InMemoryRedisTemplate extends StringRedisTemplate {
+
+    /**
+     * 一个lua脚本的Java移植: 脚本文件，KEYS的个数，ARGV最多几个
+     */
+    record ScriptPort(String script, int keys, int argv, BiFunction<List<String>, String[], Object> command) {
+    }
+
+    private record Entry(RecordId id, Map<String, String> fields, long addedAt) {
+    }
+
+    private final long roundTripNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, String> strings = new HashMap<>();
+    private final Map<String, Set<String>> sets = new HashMap<>();
+    private final Map<String, Map<String, String>> hashes = new HashMap<>();
+    private final Map<String, BlockingQueue<Entry>> streams = new ConcurrentHashMap<>();
+    // 读走还没有确认的消息 -> XADD的时间
+    private final Map<RecordId, Long> delivered = new ConcurrentHashMap<>();
+    private final AtomicLong added = new AtomicLong();
+    private final AtomicLong acknowledged = new AtomicLong();
+    private volatile LongConsumer ackListener = nanos -> {
+    };
+    private final List<ScriptPort> ports = List.of(
+            new ScriptPort("seckill.lua", 1, 6, this::seckill),
+            new ScriptPort("seckill_shard.lua", 3, 6, this::seckillShard),
+            new ScriptPort("seckill_borrow.lua", 2, 2, this::borrow),
+            new ScriptPort("seckill_credit.lua", 2, 3, this::credit));
+    private final Map<String, ScriptPort> portsBySha1 = new HashMap<>();
+    private final ValueOperations<String, String> valueOps =
+            mock(ValueOperations.class, withSettings().stubOnly().defaultAnswer(this::valueCommand));
+    private final SetOperations<String, String> setOps =
+            mock(SetOperations.class, withSettings().stubOnly().defaultAnswer(this::setCommand));
+    private final HashOperations<String, Object, Object> hashOps =
+            mock(HashOperations.class, withSettings().stubOnly().defaultAnswer(this::hashCommand));
+    private final StreamOperations<String, Object, Object> streamOps =
+            mock(StreamOperations.class, withSettings().stubOnly().defaultAnswer(this::streamCommand));
+
+    InMemoryRedisTemplate(long roundTripNanos) {
+        this.roundTripNanos = roundTripNanos;
+        for (ScriptPort port : ports) {
+            portsBySha1.put(sha1(port.script()), port);
+        }
+    }
+
+    List<ScriptPort> scriptPorts() {
+        return ports;
+    }
+
+    /**
+     * 每条消息被确认时回调，参数是从XADD到XACK的纳秒数
+     */
+    void onAcknowledge(LongConsumer listener) {
+        this.ackListener = listener;
+    }
+
+    long added() {
+        return added.get();
+    }
+
+    long acknowledged() {
+        return acknowledged.get();
+    }
+
+    /**
+     * stream里还没有被读走的消息，按XADD的顺序
+     */
+    List<Map<String, String>> entries(String stream) {
+        return streams.getOrDefault(stream, new LinkedBlockingQueue<>()).stream().map(Entry::fields).toList();
+    }
+
+    @Override
+    public <T> T execute(RedisScript<T> script, List<String> keys, Object... args) {
+        ScriptPort port = portsBySha1.get(script.getSha1());
+        if (port == null) {
+            throw new UnsupportedOperationException("不支持的脚本: " + script.getSha1());
+        }
+        if (keys.size() != port.keys() || args.length > port.argv()) {
+            throw new IllegalArgumentException(String.format("%s需要%d个KEYS、最多%d个ARGV, 实际: %d个KEYS、%d个ARGV",
+                    port.script(), port.keys(), port.argv(), keys.size(), args.length));
+        }
+        String[] argv = new String[args.length];
+        for (int i = 0; i < args.length; i++) {
+            argv[i] = String.valueOf(args[i]);
+        }
+        roundTrip();
+        lock.lock();
+        try {
+            return (T) port.command().apply(keys, argv);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 只有XGROUP CREATE走这里，内存里的stream不需要消费者组
+     */
+    @Override
+    public <T> T execute(RedisCallback<T> action) {
+        roundTrip();
+        return null;
+    }
+
+    @Override
+    public ValueOperations<String, String> opsForValue() {
+        return valueOps;
+    }
+
+    @Override
+    public SetOperations<String, String> opsForSet() {
+        return setOps;
+    }
+
+    @Override
+    public <HK, HV> HashOperations<String, HK, HV> opsForHash() {
+        return (HashOperations<String, HK, HV>) (HashOperations<String, ?, ?>) hashOps;
+    }
+
+    @Override
+    public <HK, HV> StreamOperations<String, HK, HV> opsForStream() {
+        return (StreamOperations<String, HK, HV>) (StreamOperations<String, ?, ?>) streamOps;
+    }
+
+    @Override
+    public Boolean hasKey(String key) {
+        roundTrip();
+        lock.lock();
+        try {
+            return strings.containsKey(key) || sets.containsKey(key) || hashes.containsKey(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Long convertAndSend(String channel, Object message) {
+        roundTrip();
+        return 0L;
+    }
+
+    // seckill.lua
+    private Object seckill(List<String> keys, String[] argv) {
+        String voucherId = argv[0];
+        // 订单统一写进stream.orders，和脚本里一样是写死的
+        return purchase(SECKILL_STOCK_KEY + voucherId, SECKILL_ORDER_KEY + voucherId, "stream.orders",
+                keys.get(0), argv, false);
+    }
+
+    // seckill_shard.lua
+    private Object seckillShard(List<String> keys, String[] argv) {
+        return purchase(keys.get(0), keys.get(1), keys.get(2), null, argv, true);
+    }
+
+    private List<Long> purchase(String stockKey, String orderKey, String streamKey, String counterKey,
+                                String[] argv, boolean shard) {
+        String voucherId = argv[0];
+        String userId = argv[1];
+        // 1. 秒杀时间窗口
+        long now = System.currentTimeMillis();
+        if (now < Long.parseLong(argv[3])) {
+            return List.of(3L);
+        }
+        if (now >= Long.parseLong(argv[4])) {
+            return List.of(4L);
+        }
+        // 2. 库存和一人一单，seckill.lua先判断库存，分片脚本先判断重复下单
+        long stock = Long.parseLong(strings.getOrDefault(stockKey, "0"));
+        Set<String> users = sets.computeIfAbsent(orderKey, k -> new HashSet<>());
+        if (!shard && stock <= 0) {
+            return List.of(1L);
+        }
+        if (users.contains(userId)) {
+            return List.of(2L);
+        }
+        if (stock <= 0) {
+            return List.of(1L);
+        }
+        // 3. 扣库存、记录用户、生成订单id、XADD
+        strings.put(stockKey, String.valueOf(stock - 1));
+        users.add(userId);
+        long count = 0;
+        String orderId;
+        if (shard || argv.length > 5) {
+            // 分片脚本的订单id必须由调用者传进来
+            orderId = argv[5];
+        } else {
+            count = incrBy(counterKey, 1);
+            orderId = String.valueOf(RedisIdWorker.compose(Long.parseLong(argv[2]), count));
+        }
+        xadd(streamKey, Map.of("userId", userId, "voucherId", voucherId, "id", orderId));
+        return List.of(0L, count);
+    }
+
+    // seckill_borrow.lua
+    private Object borrow(List<String> keys, String[] argv) {
+        long stock = Long.parseLong(strings.getOrDefault(keys.get(0), "0"));
+        if (stock <= 0) {
+            return 0L;
+        }
+        long n = Math.max(1, stock / 2);
+        strings.put(keys.get(0), String.valueOf(stock - n));
+        hashes.computeIfAbsent(keys.get(1), k -> new HashMap<>()).put(argv[0], argv[1] + ":" + n);
+        return n;
+    }
+
+    // seckill_credit.lua
+    private Object credit(List<String> keys, String[] argv) {
+        if (hashes.computeIfAbsent(keys.get(1), k -> new HashMap<>()).putIfAbsent(argv[0], argv[2]) != null) {
+            return 0L;
+        }
+        incrBy(keys.get(0), Long.parseLong(argv[1]));
+        return 1L;
+    }
+
+    private void xadd(String stream, Map<String, String> fields) {
+        RecordId id = RecordId.of(System.currentTimeMillis(), added.incrementAndGet());
+        streams.computeIfAbsent(stream, k -> new LinkedBlockingQueue<>()).add(new Entry(id, fields, System.nanoTime()));
+    }
+
+    private Object valueCommand(InvocationOnMock invocation) {
+        Object[] args = invocation.getArguments();
+        roundTrip();
+        lock.lock();
+        try {
+            return switch (invocation.getMethod().getName()) {
+                case "get" -> strings.get((String) args[0]);
+                case "multiGet" -> ((Collection<String>) args[0]).stream().map(strings::get).toList();
+                case "multiSet" -> {
+                    strings.putAll((Map<String, String>) args[0]);
+                    yield null;
+                }
+                case "increment" -> incrBy((String) args[0], args.length > 1 ? ((Number) args[1]).longValue() : 1);
+                case "decrement" -> incrBy((String) args[0], args.length > 1 ? -((Number) args[1]).longValue() : -1);
+                default -> throw new UnsupportedOperationException("不支持的命令: " + invocation.getMethod());
+            };
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Object setCommand(InvocationOnMock invocation) {
+        Object[] args = invocation.getRawArguments();
+        roundTrip();
+        lock.lock();
+        try {
+            return switch (invocation.getMethod().getName()) {
+                case "add" -> {
+                    Set<String> members = sets.computeIfAbsent((String) args[0], k -> new HashSet<>());
+                    long count = 0;
+                    for (Object member : (Object[]) args[1]) {
+                        count += members.add((String) member) ? 1 : 0;
+                    }
+                    yield count;
+                }
+                case "members" -> new HashSet<>(sets.getOrDefault((String) args[0], Set.of()));
+                default -> throw new UnsupportedOperationException("不支持的命令: " + invocation.getMethod());
+            };
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Object hashCommand(InvocationOnMock invocation) {
+        Object[] args = invocation.getRawArguments();
+        roundTrip();
+        lock.lock();
+        try {
+            Map<String, String> hash = hashes.getOrDefault((String) args[0], new HashMap<>());
+            return switch (invocation.getMethod().getName()) {
+                case "entries" -> new HashMap<Object, Object>(hash);
+                case "hasKey" -> hash.containsKey((String) args[1]);
+                case "delete" -> {
+                    long count = 0;
+                    for (Object field : (Object[]) args[1]) {
+                        count += hash.remove((String) field) != null ? 1 : 0;
+                    }
+                    if (hash.isEmpty()) {
+                        hashes.remove((String) args[0]);
+                    }
+                    yield count;
+                }
+                default -> throw new UnsupportedOperationException("不支持的命令: " + invocation.getMethod());
+            };
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 哈希的内容，测试用来检查在途转移
+     */
+    Map<String, String> hash(String key) {
+        lock.lock();
+        try {
+            return new HashMap<>(hashes.getOrDefault(key, Map.of()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Object streamCommand(InvocationOnMock invocation) {
+        Object[] args = invocation.getRawArguments();
+        roundTrip();
+        String name = invocation.getMethod().getName();
+        if ("read".equals(name) && args.length == 3 && args[0] instanceof Consumer) {
+            // XREADGROUP GROUP g1 c1 COUNT n [BLOCK ms] STREAMS stream offset
+            StreamOffset<String>[] offsets = (StreamOffset<String>[]) args[2];
+            if (offsets.length != 1) {
+                throw new UnsupportedOperationException("一次只能读一个stream");
+            }
+            return read(offsets[0], (StreamReadOptions) args[1]);
+        }
+        if ("acknowledge".equals(name) && args.length == 3 && args[2] instanceof RecordId[] ids) {
+            long now = System.nanoTime();
+            long count = 0;
+            for (RecordId id : ids) {
+                Long addedAt = delivered.remove(id);
+                if (addedAt != null) {
+                    count++;
+                    ackListener.accept(now - addedAt);
+                }
+            }
+            acknowledged.addAndGet(count);
+            return count;
+        }
+        throw new UnsupportedOperationException("不支持的命令: " + invocation.getMethod());
+    }
+
+    /**
+     * 只有新消息(>)，没有pending-list，读的是pending-list返回空
+     */
+    private List<MapRecord<String, Object, Object>> read(StreamOffset<String> offset, StreamReadOptions options) {
+        if (!">".equals(offset.getOffset().getOffset())) {
+            return List.of();
+        }
+        BlockingQueue<Entry> stream = streams.computeIfAbsent(offset.getKey(), k -> new LinkedBlockingQueue<>());
+        Long block = options.getBlock();
+        Entry first;
+        try {
+            first = block == null ? stream.poll() : stream.poll(block, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            // 消费线程池关闭
+            Thread.currentThread().interrupt();
+            return List.of();
+        }
+        if (first == null) {
+            return List.of();
+        }
+        int count = options.getCount() == null ? Integer.MAX_VALUE : options.getCount().intValue();
+        List<Entry> batch = new ArrayList<>();
+        batch.add(first);
+        stream.drainTo(batch, count - 1);
+        List<MapRecord<String, Object, Object>> records = new ArrayList<>(batch.size());
+        for (Entry entry : batch) {
+            delivered.put(entry.id(), entry.addedAt());
+            records.add(MapRecord.create(offset.getKey(), new HashMap<Object, Object>(entry.fields()))
+                    .withId(entry.id()));
+        }
+        return records;
+    }
+
+    private long incrBy(String key, long delta) {
+        long value = Long.parseLong(strings.getOrDefault(key, "0")) + delta;
+        strings.put(key, String.valueOf(value));
+        return value;
+    }
+
+    private void roundTrip() {
+        if (roundTripNanos > 0) {
+            LockSupport.parkNanos(roundTripNanos);
+        }
+    }
+
+    private static String sha1(String script) {
+        DefaultRedisScript<Object> redisScript = new DefaultRedisScript<>();
+        redisScript.setLocation(new ClassPathResource(script));
+        return redisScript.getSha1();
+    }
+}
@@ -0,0 +1,163 @@
+package com.hmdp;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.utils.IdGenerators;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillStock;
+import com.hmdp.utils.SeckillVoucherCache;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 压测用的InMemoryRedisTemplate里移植的脚本要和lua脚本保持一致
+ * 1. 每个移植声明的KEYS、ARGV个数和lua脚本里用到的最大下标一样
+ * 2. 真实的SeckillStock调用移植的脚本，返回值和写进的stream和lua脚本的约定一样
+ */
+class InMemoryRedisTemplateTest {
+
+    private static final Long VOUCHER_ID = 1L;
+    private static final SeckillVoucherCache.Window WINDOW = new SeckillVoucherCache.Window(0, Long.MAX_VALUE);
+
+    private final InMemoryRedisTemplate redis = new InMemoryRedisTemplate(0);
+
+    @Test
+    void portsMatchScriptArguments() throws Exception {
+        for (InMemoryRedisTemplate.ScriptPort port : redis.scriptPorts()) {
+            String script = new ClassPathResource(port.script()).getContentAsString(StandardCharsets.UTF_8);
+            assertEquals(maxIndex(script, "KEYS"), port.keys(), port.script() + "的KEYS");
+            assertEquals(maxIndex(script, "ARGV"), port.argv(), port.script() + "的ARGV");
+        }
+    }
+
+    @Test
+    void singleKeyPurchase() {
+        SeckillStock seckillStock = seckillStock(1, 2);
+
+        SeckillStock.Purchase purchase = seckillStock.tryPurchase(VOUCHER_ID, 1L, WINDOW);
+        assertEquals(0, purchase.result());
+        // 订单id用脚本返回的序列号拼出来，和写进stream.orders的一样
+        List<Map<String, String>> entries = redis.entries("stream.orders");
+        assertEquals(1, entries.size());
+        assertEquals(String.valueOf(purchase.orderId()), entries.get(0).get("id"));
+        assertEquals("1", entries.get(0).get("userId"));
+
+        assertEquals(2, seckillStock.tryPurchase(VOUCHER_ID, 1L, WINDOW).result());
+        assertEquals(0, seckillStock.tryPurchase(VOUCHER_ID, 2L, WINDOW).result());
+        // seckill.lua先判断库存，卖完之后重复下单也返回库存不足
+        assertEquals(1, seckillStock.tryPurchase(VOUCHER_ID, 1L, WINDOW).result());
+        long now = System.currentTimeMillis();
+        assertEquals(3, seckillStock.tryPurchase(VOUCHER_ID, 3L,
+                new SeckillVoucherCache.Window(now + 60_000, now + 120_000)).result());
+        assertEquals(4, seckillStock.tryPurchase(VOUCHER_ID, 3L,
+                new SeckillVoucherCache.Window(now - 120_000, now - 60_000)).result());
+    }
+
+    @Test
+    void shardPurchaseWritesToShardStream() {
+        SeckillStock seckillStock = seckillStock(2, 4);
+
+        SeckillStock.Purchase purchase = seckillStock.tryPurchase(VOUCHER_ID, 1L, WINDOW);
+        assertEquals(0, purchase.result());
+        // 订单id在本地生成，写进用户所在分片的stream
+        String stream = SeckillStock.streamKey("stream.orders", VOUCHER_ID, SeckillStock.shard(1L, 2));
+        List<Map<String, String>> entries = redis.entries(stream);
+        assertEquals(1, entries.size());
+        assertEquals(String.valueOf(purchase.orderId()), entries.get(0).get("id"));
+        assertTrue(redis.entries("stream.orders").isEmpty());
+
+        assertEquals(2, seckillStock.tryPurchase(VOUCHER_ID, 1L, WINDOW).result());
+    }
+
+    @Test
+    void borrowLeavesNoTransferBehind() {
+        SeckillStock seckillStock = seckillStock(2, 2);
+        // 找两个路由到同一个分片的用户，第二个用户要去另一个分片借库存
+        long first = 1;
+        long second = 2;
+        while (SeckillStock.shard(second, 2) != SeckillStock.shard(first, 2)) {
+            second++;
+        }
+        int home = SeckillStock.shard(first, 2);
+
+        assertEquals(0, seckillStock.tryPurchase(VOUCHER_ID, first, WINDOW).result());
+        assertEquals(0, seckillStock.tryPurchase(VOUCHER_ID, second, WINDOW).result());
+        assertEquals(0, seckillStock.remaining(VOUCHER_ID));
+        assertTrue(redis.hash(SeckillStock.transferKey(VOUCHER_ID, 1 - home)).isEmpty());
+        assertTrue(redis.hash(SeckillStock.creditedKey(VOUCHER_ID, home)).isEmpty());
+    }
+
+    @Test
+    void settleTransfersCreditsInterruptedBorrow() {
+        SeckillStock seckillStock = seckillStock(2, 4);
+        // 借库存的节点执行完seckill_borrow.lua就宕机了，借走的1个库存不在任何分片上
+        DefaultRedisScript<Long> borrow = new DefaultRedisScript<>();
+        borrow.setLocation(new ClassPathResource("seckill_borrow.lua"));
+        borrow.setResultType(Long.class);
+        String transferId = (System.currentTimeMillis() - 120_000) + ":node:1";
+        assertEquals(1L, redis.execute(borrow,
+                List.of(SeckillStock.stockKey(VOUCHER_ID, 1), SeckillStock.transferKey(VOUCHER_ID, 1)), transferId, "0"));
+        assertEquals(3, seckillStock.remaining(VOUCHER_ID));
+
+        // 没超时的算进行中，不入账
+        assertEquals(1, seckillStock.settleTransfers(VOUCHER_ID, 600_000, true));
+        assertEquals(3, seckillStock.remaining(VOUCHER_ID));
+
+        assertEquals(0, seckillStock.settleTransfers(VOUCHER_ID, 60_000, true));
+        assertEquals(4, seckillStock.remaining(VOUCHER_ID));
+        assertEquals("3", redis.opsForValue().get(SeckillStock.stockKey(VOUCHER_ID, 0)));
+        assertTrue(redis.hash(SeckillStock.transferKey(VOUCHER_ID, 1)).isEmpty());
+        assertTrue(redis.hash(SeckillStock.creditedKey(VOUCHER_ID, 0)).isEmpty());
+        // 再补一次不会重复入账
+        assertEquals(0, seckillStock.settleTransfers(VOUCHER_ID, 60_000, true));
+        assertEquals(4, seckillStock.remaining(VOUCHER_ID));
+    }
+
+    private SeckillStock seckillStock(int shards, int stock) {
+        SeckillProperties properties = new SeckillProperties();
+        properties.getStock().setShards(shards);
+        properties.getStock().setMinStockPerShard(1);
+        AtomicLong sequence = new AtomicLong();
+        IdGenerators idGenerators = mock(IdGenerators.class);
+        when(idGenerators.forPrefix("order")).thenReturn(keyPrefix ->
+                RedisIdWorker.compose(RedisIdWorker.timestamp(LocalDateTime.now()), sequence.incrementAndGet()));
+
+        SeckillStock seckillStock = new SeckillStock();
+        ReflectionTestUtils.setField(seckillStock, "stringRedisTemplate", redis);
+        ReflectionTestUtils.setField(seckillStock, "seckillProperties", properties);
+        ReflectionTestUtils.setField(seckillStock, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(seckillStock, "listenerContainer", mock(RedisMessageListenerContainer.class));
+        ReflectionTestUtils.setField(seckillStock, "idGenerators", idGenerators);
+        ReflectionTestUtils.invokeMethod(seckillStock, "init");
+        seckillStock.init(VOUCHER_ID, stock);
+        return seckillStock;
+    }
+
+    /**
+     * 脚本里KEYS[n]或ARGV[n]的最大下标，注释里提到的也算，参数位置要保留
+     */
+    private static int maxIndex(String script, String name) {
+        Matcher matcher = Pattern.compile(name + "\\[(\\d+)]").matcher(script);
+        int max = 0;
+        while (matcher.find()) {
+            max = Math.max(max, Integer.parseInt(matcher.group(1)));
+        }
+        return max;
+    }
+}
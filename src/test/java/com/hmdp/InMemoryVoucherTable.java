@@ -0,0 +1,95 @@
+package com.hmdp;
+
+import com.baomidou.mybatisplus.core.conditions.update.UpdateWrapper;
+import com.hmdp.entity.VoucherOrder;
+import org.mockito.invocation.InvocationOnMock;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 代替tb_seckill_voucher的库存和tb_voucher_order，只支持createVoucherOrders和createVoucherOrder2用到的语句
+ * 1. UPDATE tb_seckill_voucher SET stock = stock ± k WHERE voucher_id = ? [AND stock >= k | stock > 0]
+ * 2. INSERT IGNORE INTO tb_voucher_order，(user_id, voucher_id)唯一，返回实际写入的条数
+ * 3. SELECT user_id FROM tb_voucher_order WHERE voucher_id = ? AND user_id IN (...)
+ * 只有一张券，一把锁就是一条语句的原子性
+ */
+class InMemoryVoucherTable {
+
+    private static final Pattern SET_STOCK = Pattern.compile("stock = stock\\s*([+-])\\s*(\\d+)");
+    private static final Pattern STOCK_CONDITION =
+            Pattern.compile("stock (>=|>) #\\{ew\\.paramNameValuePairs\\.(\\w+)}");
+
+    private long stock;
+    private final Set<Long> users = new HashSet<>();
+
+    InMemoryVoucherTable(long stock) {
+        this.stock = stock;
+    }
+
+    /**
+     * SeckillVoucherMapper的defaultAnswer
+     */
+    synchronized Object update(InvocationOnMock invocation) {
+        if (!"update".equals(invocation.getMethod().getName())
+                || !(invocation.getArgument(1) instanceof UpdateWrapper<?> wrapper)) {
+            throw new UnsupportedOperationException("不支持的语句: " + invocation.getMethod());
+        }
+        Matcher set = SET_STOCK.matcher(wrapper.getSqlSet());
+        if (!set.matches()) {
+            throw new UnsupportedOperationException("不支持的SET: " + wrapper.getSqlSet());
+        }
+        long delta = Long.parseLong(set.group(2)) * ("-".equals(set.group(1)) ? -1 : 1);
+        Matcher condition = STOCK_CONDITION.matcher(wrapper.getSqlSegment());
+        if (condition.find()) {
+            long bound = ((Number) wrapper.getParamNameValuePairs().get(condition.group(2))).longValue();
+            boolean matched = ">=".equals(condition.group(1)) ? stock >= bound : stock > bound;
+            if (!matched) {
+                return 0;
+            }
+        }
+        stock += delta;
+        return 1;
+    }
+
+    /**
+     * VoucherOrderMapper的defaultAnswer
+     */
+    @SuppressWarnings("unchecked")
+    synchronized Object orders(InvocationOnMock invocation) {
+        switch (invocation.getMethod().getName()) {
+            case "insertBatch" -> {
+                int inserted = 0;
+                for (VoucherOrder order : (List<VoucherOrder>) invocation.getArgument(0)) {
+                    if (users.add(order.getUserId())) {
+                        inserted++;
+                    }
+                }
+                return inserted;
+            }
+            case "selectUserIds" -> {
+                List<Long> existing = new ArrayList<>();
+                for (Long userId : (Collection<Long>) invocation.getArgument(1)) {
+                    if (users.contains(userId)) {
+                        existing.add(userId);
+                    }
+                }
+                return existing;
+            }
+            default -> throw new UnsupportedOperationException("不支持的语句: " + invocation.getMethod());
+        }
+    }
+
+    synchronized long stock() {
+        return stock;
+    }
+
+    synchronized long persisted() {
+        return users.size();
+    }
+}
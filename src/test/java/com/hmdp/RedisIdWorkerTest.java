@@ -0,0 +1,144 @@
+package com.hmdp;
+
+import com.hmdp.config.IdProperties;
+import com.hmdp.utils.RedisIdWorker;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * RedisIdWorker的号段模式，Redis用内存里的计数器代替，每次访问模拟一次网络往返
+ * 最后一个测试对比两种模式每秒生成的ID数量，依赖机器的速度，默认不跑: mvn test -Pbenchmark -Dtest=RedisIdWorkerTest
+ */
+class RedisIdWorkerTest {
+
+    // 模拟一次Redis往返的耗时
+    private static final long ROUND_TRIP_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final AtomicInteger roundTrips = new AtomicInteger();
+    private final List<RedisIdWorker> workers = new ArrayList<>();
+    private final ExecutorService es = Executors.newFixedThreadPool(16);
+
+    @AfterEach
+    void tearDown() {
+        es.shutdownNow();
+        workers.forEach(RedisIdWorker::shutdown);
+    }
+
+    @Test
+    void segmentIdsAreUniqueAcrossNodes() throws Exception {
+        // 两个节点共用一个Redis
+        RedisIdWorker node1 = newWorker(true, 1000);
+        RedisIdWorker node2 = newWorker(true, 1000);
+
+        Set<Long> ids = generate(List.of(node1, node2), 16, 5000);
+
+        assertEquals(16 * 5000, ids.size());
+        // 序列号都来自租用的号段，不会超过Redis里的计数
+        long max = counters.values().stream().mapToLong(AtomicLong::get).max().orElse(0);
+        ids.forEach(id -> assertTrue((id & 0xFFFFFFFFL) <= max));
+        // 8万个ID只访问了几十次Redis
+        assertTrue(roundTrips.get() <= 16 * 5000 / 1000 + 4, "round trips: " + roundTrips.get());
+    }
+
+    @Test
+    void prefetchesNextSegmentBeforeExhausted() throws Exception {
+        RedisIdWorker worker = newWorker(true, 100);
+        for (int i = 0; i < 80; i++) {
+            worker.nextId("order");
+        }
+        // 用到80%后异步租用下一段
+        long deadline = System.currentTimeMillis() + 2000;
+        while (roundTrips.get() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(2, roundTrips.get());
+        assertEquals(200, counters.values().iterator().next().get());
+        // 用完第一段，切换到预取的号段不需要再访问Redis
+        for (int i = 0; i < 20 + 50; i++) {
+            worker.nextId("order");
+        }
+        assertEquals(2, roundTrips.get());
+    }
+
+    @Test
+    @Tag("benchmark")
+    void compareThroughput() throws Exception {
+        int threads = 16;
+        int perThread = 2000;
+        RedisIdWorker incr = newWorker(false, 1000);
+        long begin = System.nanoTime();
+        generate(List.of(incr), threads, perThread);
+        double incrRate = threads * perThread / ((System.nanoTime() - begin) / 1e9);
+
+        RedisIdWorker segment = newWorker(true, 1000);
+        begin = System.nanoTime();
+        generate(List.of(segment), threads, perThread);
+        double segmentRate = threads * perThread / ((System.nanoTime() - begin) / 1e9);
+
+        System.out.printf("INCR: %.0f ids/s, 号段: %.0f ids/s%n", incrRate, segmentRate);
+        assertTrue(segmentRate > incrRate);
+    }
+
+    private Set<Long> generate(List<RedisIdWorker> nodes, int threads, int perThread) throws Exception {
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            RedisIdWorker worker = nodes.get(t % nodes.size());
+            futures.add(es.submit(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    ids.add(worker.nextId("order"));
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        return ids;
+    }
+
+    @SuppressWarnings("unchecked")
+    private RedisIdWorker newWorker(boolean segment, int step) {
+        StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+        ValueOperations<String, String> ops = mock(ValueOperations.class);
+        when(stringRedisTemplate.opsForValue()).thenReturn(ops);
+        when(ops.increment(anyString())).thenAnswer(inv -> incrBy(inv.getArgument(0), 1));
+        when(ops.increment(anyString(), anyLong())).thenAnswer(inv -> incrBy(inv.getArgument(0), inv.getArgument(1)));
+
+        IdProperties idProperties = new IdProperties();
+        idProperties.getSegment().setEnabled(segment);
+        idProperties.getSegment().setStep(step);
+        RedisIdWorker worker = new RedisIdWorker(stringRedisTemplate, idProperties);
+        workers.add(worker);
+        return worker;
+    }
+
+    private long incrBy(String key, long delta) {
+        roundTrips.incrementAndGet();
+        LockSupport.parkNanos(ROUND_TRIP_NANOS);
+        return counters.computeIfAbsent(key, k -> new AtomicLong()).addAndGet(delta);
+    }
+}
@@ -0,0 +1,88 @@
+package com.hmdp;
+
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.utils.LoginInterceptor;
+import com.hmdp.utils.RefreshTokenInterceptor;
+import com.hmdp.utils.UserHolder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import static org.springframework.test.web.servlet.setup.MockMvcBuilders.standaloneSetup;
+
+/**
+ * 拦截器在异步请求之后要清掉线程上的用户，MockMvc在测试线程上执行请求，相当于同一个Tomcat线程
+ */
+class RefreshTokenInterceptorTest {
+
+    @RestController
+    static class TestController {
+
+        @GetMapping("/poll")
+        public DeferredResult<Result> poll() {
+            // 一直没有结果，相当于还在等待的长轮询
+            return new DeferredResult<>();
+        }
+
+        @GetMapping("/me")
+        public Result me() {
+            return Result.ok(UserHolder.getUser().getId());
+        }
+    }
+
+    private MockMvc mockMvc;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        StringRedisTemplate redis = mock(StringRedisTemplate.class);
+        HashOperations<String, Object, Object> hashes = mock(HashOperations.class);
+        when(redis.opsForHash()).thenReturn(hashes);
+        when(hashes.entries(anyString())).thenReturn(Map.of());
+        when(hashes.entries(LOGIN_USER_KEY + "t1")).thenReturn(Map.of("id", "1", "nickName", "u1"));
+        mockMvc = standaloneSetup(new TestController())
+                .addInterceptors(new RefreshTokenInterceptor(redis), new LoginInterceptor())
+                .build();
+    }
+
+    @AfterEach
+    void tearDown() {
+        UserHolder.removeUser();
+    }
+
+    @Test
+    void longPollDoesNotLeakUserToNextRequest() throws Exception {
+        mockMvc.perform(get("/poll").header("authorization", "t1"))
+                .andExpect(request().asyncStarted());
+        assertNull(UserHolder.getUser());
+
+        // 同一个线程上的下一个请求没有token，不能被当成上一个用户
+        mockMvc.perform(get("/me")).andExpect(status().isUnauthorized());
+    }
+
+    @Test
+    void staleUserIsClearedBeforeHandling() throws Exception {
+        // 线程上残留了用户(比如之前的请求没有走到清除)
+        mockMvc.perform(get("/me").header("authorization", "t1")).andExpect(status().isOk());
+        UserHolder.saveUser(new UserDTO());
+
+        mockMvc.perform(get("/me").header("authorization", "expired")).andExpect(status().isUnauthorized());
+    }
+}
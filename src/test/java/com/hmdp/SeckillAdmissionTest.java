@@ -0,0 +1,142 @@
+package com.hmdp;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.utils.LocalSlidingWindowLimiter;
+import com.hmdp.utils.SeckillAdmission;
+import com.hmdp.utils.SeckillAdmission.Decision;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * 准入控制，全局窗口用进程内的实现代替，排队号由测试指定
+ */
+class SeckillAdmissionTest {
+
+    private static final Long VOUCHER_ID = 10L;
+
+    private final SeckillProperties properties = new SeckillProperties();
+    private final StringRedisTemplate redis = mock(StringRedisTemplate.class);
+    private SeckillAdmission admission;
+
+    @BeforeEach
+    void setUp() {
+        admission = new SeckillAdmission();
+        ReflectionTestUtils.setField(admission, "seckillProperties", properties);
+        ReflectionTestUtils.setField(admission, "slidingWindowLimiter", new LocalSlidingWindowLimiter());
+        ReflectionTestUtils.setField(admission, "stringRedisTemplate", redis);
+        ReflectionTestUtils.setField(admission, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.invokeMethod(admission, "init");
+    }
+
+    @Test
+    void localBucketRejectsWithoutRedis() {
+        SeckillProperties.Limit limit = properties.getAdmission().getDefaults();
+        limit.setLocalRate(1);
+        limit.setLocalBurst(10);
+
+        int admitted = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (admission.admit(VOUCHER_ID, (long) i) == Decision.ADMITTED) {
+                admitted++;
+            }
+        }
+
+        // 桶里攒了burst个令牌，一瞬间的1000个请求只放行这么多
+        assertEquals(10, admitted);
+        verifyNoInteractions(redis);
+    }
+
+    @Test
+    void localBucketFollowsConfigChanges() {
+        SeckillProperties.Limit limit = properties.getAdmission().getDefaults();
+        limit.setLocalRate(1);
+        limit.setLocalBurst(10);
+        assertEquals(10, admitBurst());
+
+        // 调大突发量之后按新的参数重建桶
+        limit.setLocalBurst(20);
+        assertEquals(20, admitBurst());
+    }
+
+    private int admitBurst() {
+        int admitted = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (admission.admit(VOUCHER_ID, (long) i) == Decision.ADMITTED) {
+                admitted++;
+            }
+        }
+        return admitted;
+    }
+
+    @Test
+    void globalWindowIsSharedAcrossUsers() {
+        SeckillProperties.Limit limit = new SeckillProperties.Limit();
+        limit.setLocalRate(0);
+        limit.setGlobalLimit(5);
+        properties.getAdmission().getVouchers().put(VOUCHER_ID, limit);
+        // 窗口足够大，测试过程中不会滑动
+        properties.getAdmission().setGlobalWindow(Duration.ofMinutes(10));
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(Decision.ADMITTED, admission.admit(VOUCHER_ID, (long) i));
+        }
+        assertEquals(Decision.GLOBAL_LIMITED, admission.admit(VOUCHER_ID, 100L));
+        // 其他券用defaults，不受影响
+        assertEquals(Decision.ADMITTED, admission.admit(11L, 100L));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void waitingRoomAdmitsReleasedTickets() {
+        SeckillProperties.Limit limit = properties.getAdmission().getDefaults();
+        limit.setWaitingRoom(true);
+        limit.setReleaseRate(500);
+        ValueOperations<String, String> values = mock(ValueOperations.class);
+        when(redis.opsForValue()).thenReturn(values);
+        // 开始发号的时间比本机时钟晚一点(节点和Redis的时钟差)，测试过程中一直只放行第一批
+        String opened = String.valueOf(System.currentTimeMillis() + 60_000);
+
+        when(values.get(anyString())).thenReturn(null);
+        assertEquals(Decision.NO_TICKET, admission.admit(VOUCHER_ID, 1L));
+
+        // 刚开始发号，只放行了前500个
+        when(values.get(anyString())).thenReturn("3:" + opened);
+        assertEquals(Decision.ADMITTED, admission.admit(VOUCHER_ID, 1L));
+        when(values.get(anyString())).thenReturn("700:" + opened);
+        assertEquals(Decision.NOT_YOUR_TURN, admission.admit(VOUCHER_ID, 2L));
+
+        SeckillAdmission.Ticket ticket = admission.queryTicket(VOUCHER_ID, 2L);
+        assertEquals(700, ticket.number());
+        assertEquals(200, ticket.ahead());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void restartedQueueUsesItsOwnOpenedAt() {
+        SeckillProperties.Limit limit = properties.getAdmission().getDefaults();
+        limit.setWaitingRoom(true);
+        limit.setReleaseRate(500);
+        ValueOperations<String, String> values = mock(ValueOperations.class);
+        when(redis.opsForValue()).thenReturn(values);
+
+        // 上一轮队列一小时前开始发号，已经全部放行
+        when(values.get(anyString())).thenReturn("700:" + (System.currentTimeMillis() - 3_600_000));
+        assertEquals(Decision.ADMITTED, admission.admit(VOUCHER_ID, 1L));
+
+        // 队列过期后重新编号，同样的号要按新的开始时间排队
+        when(values.get(anyString())).thenReturn("700:" + (System.currentTimeMillis() + 60_000));
+        assertEquals(Decision.NOT_YOUR_TURN, admission.admit(VOUCHER_ID, 2L));
+    }
+}
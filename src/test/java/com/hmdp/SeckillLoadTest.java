@@ -0,0 +1,304 @@
+package com.hmdp;
+
+import com.baomidou.mybatisplus.extension.conditions.update.UpdateChainWrapper;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.controller.VoucherOrderController;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.impl.VoucherOrderServiceImpl;
+import com.hmdp.utils.IdGenerators;
+import com.hmdp.utils.LocalSlidingWindowLimiter;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillAdmission;
+import com.hmdp.utils.SeckillOrderStatus;
+import com.hmdp.utils.SeckillStock;
+import com.hmdp.utils.SeckillStreamMetrics;
+import com.hmdp.utils.SeckillVoucherCache;
+import com.hmdp.utils.UserHolder;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * 秒杀压测，不需要MySQL和Redis，同一台机器上对比秒杀改动前后的延迟、吞吐和库存是否准确
+ * 1. Redis用进程内的InMemoryRedisTemplate代替，秒杀脚本的Java移植也在那里
+ * 2. 数据库用InMemoryVoucherTable代替，只执行createVoucherOrders发出的语句，下单逻辑是真实的
+ * 3. 虚拟用户并发调用VoucherOrderController.seckillVoucher，VoucherOrderServiceImpl自己的消费线程按批下单、XACK
+ * 报告请求延迟的p50/p99/p99.9、请求吞吐、订单落库速度，以及超卖、少卖和一人多单的数量
+ * 默认的测试不跑压测，参数通过系统属性调整，比如:
+ * mvn test -Pbenchmark -Dtest=SeckillLoadTest -Dseckill.bench.users=200000 -Dseckill.bench.concurrency=256 -Dseckill.bench.stock=10000
+ */
+@Tag("benchmark")
+class SeckillLoadTest {
+
+    private static final Long VOUCHER_ID = 1L;
+
+    // 虚拟用户数，每个用户请求requests次，第一次之后的请求都是重复下单
+    private static final int USERS = Integer.getInteger("seckill.bench.users", 5000);
+    private static final int REQUESTS = Integer.getInteger("seckill.bench.requests", 2);
+    // 同时在发请求的虚拟用户数
+    private static final int CONCURRENCY = Integer.getInteger("seckill.bench.concurrency", 64);
+    private static final int STOCK = Integer.getInteger("seckill.bench.stock", 500);
+    private static final int SHARDS = Integer.getInteger("seckill.bench.shards", 8);
+    // 模拟一次Redis往返的网络延迟(微秒)，默认0只测本机的开销
+    private static final long ROUND_TRIP_MICROS = Long.getLong("seckill.bench.round-trip-micros", 0);
+    // 是否经过准入控制，默认关闭，被本机令牌桶挡掉的请求测不到脚本和落库
+    private static final boolean ADMISSION = Boolean.getBoolean("seckill.bench.admission");
+    // 正式压测前完整跑几轮不报告，第一轮的延迟主要是类加载和JIT
+    private static final int WARMUP = Integer.getInteger("seckill.bench.warmup", 1);
+
+    private record Report(long requests, long succeeded, long persisted, long oversold, long undersold,
+                          long duplicated) {
+    }
+
+    @Test
+    void singleKey() throws Exception {
+        Report report = warmUpAndRun(1);
+
+        assertEquals(0, report.oversold());
+        assertEquals(0, report.duplicated());
+        // 不分片时只有库存真的扣完才会返回库存不足，不会少卖
+        assertEquals(0, report.undersold());
+        assertEquals(report.succeeded(), report.persisted());
+    }
+
+    @Test
+    void sharded() throws Exception {
+        Report report = warmUpAndRun(SHARDS);
+
+        assertEquals(0, report.oversold());
+        assertEquals(0, report.duplicated());
+        // 借库存时可能所有分片都暂时是0，这时的请求按卖完处理，少卖只报告不断言
+        assertEquals(report.succeeded(), report.persisted());
+    }
+
+    private Report warmUpAndRun(int shards) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            run(shards, false);
+        }
+        return run(shards, true);
+    }
+
+    private Report run(int shards, boolean print) throws Exception {
+        SeckillProperties properties = new SeckillProperties();
+        properties.getStock().setShards(shards);
+        properties.getStock().setMinStockPerShard(1);
+        properties.getAdmission().setEnabled(ADMISSION);
+        properties.getAdmission().setGlobalMode("local");
+        properties.getConsumer().setName("bench");
+        // 内存里的stream没有pending-list，不需要接管
+        properties.getReclaim().setEnabled(false);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        InMemoryRedisTemplate redis = new InMemoryRedisTemplate(TimeUnit.MICROSECONDS.toNanos(ROUND_TRIP_MICROS));
+        InMemoryVoucherTable table = new InMemoryVoucherTable(STOCK);
+        LongAdder soldOut = new LongAdder();
+
+        Timer latency = Timer.builder("seckill.bench.latency")
+                .publishPercentiles(0.5, 0.99, 0.999)
+                .register(meterRegistry);
+        Timer orderLatency = Timer.builder("seckill.bench.order.latency")
+                .publishPercentiles(0.5, 0.99, 0.999)
+                .register(meterRegistry);
+        AtomicLong lastCommit = new AtomicLong();
+        redis.onAcknowledge(nanos -> {
+            orderLatency.record(nanos, TimeUnit.NANOSECONDS);
+            lastCommit.accumulateAndGet(System.nanoTime(), Math::max);
+        });
+
+        // 1. 组装秒杀入口和消费线程，init之后消费线程就开始读stream
+        VoucherOrderServiceImpl voucherOrderService = voucherOrderService(properties, meterRegistry, redis, table,
+                soldOut);
+        VoucherOrderController controller = new VoucherOrderController();
+        ReflectionTestUtils.setField(controller, "voucherOrderService", voucherOrderService);
+
+        // 2. 虚拟用户，先每个用户请求一次，再来一轮重复请求
+        Map<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+        Map<Long, LongAdder> wins = new ConcurrentHashMap<>();
+        AtomicInteger next = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService clients = Executors.newFixedThreadPool(CONCURRENCY);
+        List<Future<?>> clientTasks = new ArrayList<>();
+        for (int c = 0; c < CONCURRENCY; c++) {
+            clientTasks.add(clients.submit((Callable<Void>) () -> {
+                start.await();
+                UserDTO user = new UserDTO();
+                UserHolder.saveUser(user);
+                int i;
+                while ((i = next.getAndIncrement()) < USERS * REQUESTS) {
+                    user.setId((long) (i % USERS) + 1);
+                    long begin = System.nanoTime();
+                    Result result = controller.seckillVoucher(VOUCHER_ID);
+                    latency.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+                    boolean success = Boolean.TRUE.equals(result.getSuccess());
+                    outcomes.computeIfAbsent(success ? "成功" : result.getErrorMsg(), k -> new LongAdder()).increment();
+                    if (success) {
+                        wins.computeIfAbsent(user.getId(), k -> new LongAdder()).increment();
+                    }
+                }
+                UserHolder.removeUser();
+                return null;
+            }));
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Future<?> task : clientTasks) {
+            task.get();
+        }
+        long requestNanos = System.nanoTime() - begin;
+        clients.shutdown();
+
+        // 3. 等消费线程把stream里的订单全部写完并确认
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (redis.acknowledged() < redis.added() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        ReflectionTestUtils.invokeMethod(voucherOrderService, "destroy");
+
+        // 4. 汇总
+        long requests = (long) USERS * REQUESTS;
+        long succeeded = outcomes.getOrDefault("成功", new LongAdder()).sum();
+        long persisted = table.persisted();
+        long oversold = Math.max(0, Math.max(succeeded, persisted) - STOCK);
+        long undersold = Math.max(0, Math.min(USERS, STOCK) - persisted);
+        long duplicated = wins.values().stream().filter(n -> n.sum() > 1).count();
+        long orderNanos = Math.max(1, lastCommit.get() - begin);
+
+        if (!print) {
+            return new Report(requests, succeeded, persisted, oversold, undersold, duplicated);
+        }
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%n秒杀压测 分片=%d 用户=%d 每人请求=%d 并发=%d 库存=%d Redis往返=%dus 准入控制=%s%n",
+                shards, USERS, REQUESTS, CONCURRENCY, STOCK, ROUND_TRIP_MICROS, ADMISSION));
+        report.append(String.format("请求: %d, 耗时 %dms, %.0f 次/秒%n", requests,
+                TimeUnit.NANOSECONDS.toMillis(requestNanos), requests * 1e9 / requestNanos));
+        report.append("结果:");
+        outcomes.forEach((outcome, n) -> report.append(' ').append(outcome).append('=').append(n.sum()));
+        report.append(System.lineSeparator());
+        report.append("请求延迟(us):").append(percentiles(latency)).append(System.lineSeparator());
+        report.append("落库延迟(us):").append(percentiles(orderLatency)).append(System.lineSeparator());
+        report.append(String.format("订单: 落库 %d, 库存不足 %d, %.0f 单/秒%n", persisted, soldOut.sum(),
+                persisted * 1e9 / orderNanos));
+        report.append(String.format("超卖: %d, 少卖: %d, 一人多单: %d, 抢到但未落库: %d%n",
+                oversold, undersold, duplicated, Math.max(0, succeeded - persisted)));
+        System.out.println(report);
+        return new Report(requests, succeeded, persisted, oversold, undersold, duplicated);
+    }
+
+    /**
+     * 和应用里一样组装秒杀入口和消费线程，只是Redis换成InMemoryRedisTemplate，数据库换成InMemoryVoucherTable
+     * 没有事务: InMemoryVoucherTable的每条语句是原子的，消息不会重复投递，不需要回滚
+     */
+    private static VoucherOrderServiceImpl voucherOrderService(SeckillProperties properties,
+                                                               SimpleMeterRegistry meterRegistry,
+                                                               InMemoryRedisTemplate redis, InMemoryVoucherTable table,
+                                                               LongAdder soldOut) {
+        RedisMessageListenerContainer listenerContainer = mock(RedisMessageListenerContainer.class);
+        // 不分片的券订单id在脚本里用序列号生成，分片的券在本地生成，相当于号段模式
+        // stubOnly不记录调用，压测时不会越积越多
+        AtomicLong sequence = new AtomicLong();
+        IdGenerators idGenerators = mock(IdGenerators.class, withSettings().stubOnly());
+        when(idGenerators.forPrefix("order")).thenReturn(keyPrefix ->
+                RedisIdWorker.compose(RedisIdWorker.timestamp(LocalDateTime.now()), sequence.incrementAndGet()));
+
+        SeckillStock seckillStock = new SeckillStock();
+        ReflectionTestUtils.setField(seckillStock, "stringRedisTemplate", redis);
+        ReflectionTestUtils.setField(seckillStock, "seckillProperties", properties);
+        ReflectionTestUtils.setField(seckillStock, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(seckillStock, "listenerContainer", listenerContainer);
+        ReflectionTestUtils.setField(seckillStock, "idGenerators", idGenerators);
+        ReflectionTestUtils.invokeMethod(seckillStock, "init");
+        seckillStock.init(VOUCHER_ID, STOCK);
+
+        SeckillVoucherCache seckillVoucherCache = new SeckillVoucherCache();
+        ReflectionTestUtils.setField(seckillVoucherCache, "stringRedisTemplate", redis);
+        ReflectionTestUtils.setField(seckillVoucherCache, "listenerContainer", listenerContainer);
+        LocalDateTime now = LocalDateTime.now();
+        seckillVoucherCache.put(new SeckillVoucher()
+                .setVoucherId(VOUCHER_ID)
+                .setStock(STOCK)
+                .setBeginTime(now.minusMinutes(1))
+                .setEndTime(now.plusHours(1)));
+
+        SeckillAdmission seckillAdmission = new SeckillAdmission();
+        ReflectionTestUtils.setField(seckillAdmission, "seckillProperties", properties);
+        ReflectionTestUtils.setField(seckillAdmission, "slidingWindowLimiter", new LocalSlidingWindowLimiter());
+        ReflectionTestUtils.setField(seckillAdmission, "stringRedisTemplate", redis);
+        ReflectionTestUtils.setField(seckillAdmission, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.invokeMethod(seckillAdmission, "init");
+
+        // 数据库
+        SeckillVoucherMapper seckillVoucherMapper = mock(SeckillVoucherMapper.class,
+                withSettings().stubOnly().defaultAnswer(table::update));
+        ISeckillVoucherService seckillVoucherService = mock(ISeckillVoucherService.class, withSettings().stubOnly());
+        when(seckillVoucherService.update()).thenAnswer(invocation -> new UpdateChainWrapper<>(seckillVoucherMapper));
+        VoucherOrderMapper voucherOrderMapper = mock(VoucherOrderMapper.class,
+                withSettings().stubOnly().defaultAnswer(table::orders));
+        // 订单结果只统计库存不足的数量
+        SeckillOrderStatus seckillOrderStatus = mock(SeckillOrderStatus.class, withSettings().stubOnly()
+                .defaultAnswer(invocation -> {
+                    if (invocation.getArgument(0) instanceof Map<?, ?> statuses) {
+                        statuses.values().stream().filter(SeckillOrderStatus.Status.SOLD_OUT::equals)
+                                .forEach(status -> soldOut.increment());
+                    }
+                    return null;
+                }));
+
+        VoucherOrderServiceImpl voucherOrderService = new VoucherOrderServiceImpl();
+        ReflectionTestUtils.setField(voucherOrderService, "stringRedisTemplate", redis);
+        ReflectionTestUtils.setField(voucherOrderService, "seckillStock", seckillStock);
+        ReflectionTestUtils.setField(voucherOrderService, "seckillVoucherCache", seckillVoucherCache);
+        ReflectionTestUtils.setField(voucherOrderService, "seckillAdmission", seckillAdmission);
+        ReflectionTestUtils.setField(voucherOrderService, "seckillProperties", properties);
+        ReflectionTestUtils.setField(voucherOrderService, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(voucherOrderService, "seckillStreamMetrics",
+                mock(SeckillStreamMetrics.class, withSettings().stubOnly()));
+        ReflectionTestUtils.setField(voucherOrderService, "seckillOrderStatus", seckillOrderStatus);
+        ReflectionTestUtils.setField(voucherOrderService, "seckillVoucherService", seckillVoucherService);
+        ReflectionTestUtils.setField(voucherOrderService, "baseMapper", voucherOrderMapper);
+        ReflectionTestUtils.setField(voucherOrderService, "proxy", voucherOrderService);
+        ReflectionTestUtils.invokeMethod(voucherOrderService, "init");
+        return voucherOrderService;
+    }
+
+    private static String percentiles(Timer timer) {
+        HistogramSnapshot snapshot = timer.takeSnapshot();
+        StringBuilder sb = new StringBuilder();
+        for (ValueAtPercentile percentile : snapshot.percentileValues()) {
+            // p50 p99 p99.9
+            String name = "p" + String.valueOf(percentile.percentile() * 100).replaceAll("\\.0$", "");
+            sb.append(String.format(" %s=%.0f", name, percentile.value(TimeUnit.MICROSECONDS)));
+        }
+        sb.append(String.format(" max=%.0f", snapshot.max(TimeUnit.MICROSECONDS)));
+        return sb.toString();
+    }
+}
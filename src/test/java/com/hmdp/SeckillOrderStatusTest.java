@@ -0,0 +1,121 @@
+package com.hmdp;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.utils.IdGenerators;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillOrderStatus;
+import com.hmdp.utils.SeckillOrderStatus.Status;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * 订单结果的长轮询，Redis里的结果由测试指定
+ */
+class SeckillOrderStatusTest {
+
+    private final StringRedisTemplate redis = mock(StringRedisTemplate.class);
+    @SuppressWarnings("unchecked")
+    private final HashOperations<String, Object, Object> hashes = mock(HashOperations.class);
+    private final VoucherOrderMapper voucherOrderMapper = mock(VoucherOrderMapper.class);
+    private SeckillOrderStatus orderStatus;
+    private long orderId;
+
+    @BeforeEach
+    void setUp() {
+        when(redis.<Object, Object>opsForHash()).thenReturn(hashes);
+        when(redis.executePipelined(any(RedisCallback.class))).thenReturn(null);
+        orderStatus = new SeckillOrderStatus();
+        ReflectionTestUtils.setField(orderStatus, "stringRedisTemplate", redis);
+        ReflectionTestUtils.setField(orderStatus, "seckillProperties", new SeckillProperties());
+        ReflectionTestUtils.setField(orderStatus, "listenerContainer", mock(RedisMessageListenerContainer.class));
+        ReflectionTestUtils.setField(orderStatus, "voucherOrderMapper", voucherOrderMapper);
+        ReflectionTestUtils.invokeMethod(orderStatus, "init");
+        orderId = RedisIdWorker.compose(RedisIdWorker.timestamp(LocalDateTime.now()), 1);
+    }
+
+    @Test
+    void knownResultReturnsImmediately() {
+        when(hashes.get(anyString(), anyString())).thenReturn("2");
+
+        CompletableFuture<Status> future = orderStatus.await(orderId, 10_000);
+
+        assertTrue(future.isDone());
+        assertEquals(Status.SOLD_OUT, future.join());
+    }
+
+    @Test
+    void waiterWakesUpWhenResultIsRecorded() throws Exception {
+        CompletableFuture<Status> future = orderStatus.await(orderId, 10_000);
+        assertFalse(future.isDone());
+
+        orderStatus.record(Map.of(orderId, Status.SUCCESS));
+
+        assertEquals(Status.SUCCESS, future.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void waiterTimesOutAsPending() throws Exception {
+        CompletableFuture<Status> future = orderStatus.await(orderId, 50);
+
+        assertEquals(Status.PENDING, future.get(1, TimeUnit.SECONDS));
+        // 超时之后的结果不会再唤醒它
+        orderStatus.record(orderId, Status.SUCCESS);
+        assertEquals(Status.PENDING, future.join());
+    }
+
+    @Test
+    void pendingWaiterQueriesOnce() {
+        orderStatus.await(orderId, 10_000);
+
+        verify(hashes, times(1)).get(anyString(), anyString());
+        verifyNoInteractions(voucherOrderMapper);
+    }
+
+    @Test
+    void expiredUnknownOrderIsCachedAsFailed() {
+        // 超过保存时间的订单，Redis里已经没有了，数据库里也没有(比如编造的订单id)
+        long oldOrderId = RedisIdWorker.compose(RedisIdWorker.timestamp(LocalDateTime.now().minusHours(1)), 1);
+        Map<Object, Object> bucket = new HashMap<>();
+        when(hashes.get(anyString(), anyString())).thenAnswer(invocation -> bucket.get(invocation.getArgument(1)));
+        doAnswer(invocation -> bucket.put(invocation.getArgument(1), invocation.getArgument(2)))
+                .when(hashes).put(anyString(), anyString(), any());
+
+        assertEquals(Status.FAILED, orderStatus.await(oldOrderId, 10_000).join());
+        assertEquals(Status.FAILED, orderStatus.await(oldOrderId, 10_000).join());
+        // 第二次从桶里拿到结果，不再查数据库
+        verify(voucherOrderMapper, times(1)).selectById(oldOrderId);
+    }
+
+    @Test
+    void bothIdKindsCarryTheirCreationTime() {
+        long now = System.currentTimeMillis();
+        // Redis的ID精确到秒
+        assertTrue(Math.abs(IdGenerators.createdAtMillis(orderId) - now) < 2000);
+        long snowflake = 1L << 62 | (now - 1704067200000L) << 22 | 5L << 12 | 7;
+        assertEquals(now, IdGenerators.createdAtMillis(snowflake));
+    }
+}
@@ -0,0 +1,182 @@
+package com.hmdp;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.utils.SeckillReconciler;
+import com.hmdp.utils.SeckillStock;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.SetOperations;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doCallRealMethod;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * 对账，Redis的下单用户集合和数据库的订单都由测试指定
+ * 数据库: 用户1 2 3 下过单，Redis: 用户2 3 4，库存数据库5 Redis 4
+ */
+class SeckillReconcilerTest {
+
+    private static final Long VOUCHER_ID = 10L;
+    private static final String ORDER_KEY = "seckill:order:10";
+
+    private final StringRedisTemplate redis = mock(StringRedisTemplate.class);
+    @SuppressWarnings("unchecked")
+    private final StreamOperations<String, Object, Object> streams = mock(StreamOperations.class);
+    @SuppressWarnings("unchecked")
+    private final SetOperations<String, String> sets = mock(SetOperations.class);
+    private final SeckillStock seckillStock = mock(SeckillStock.class);
+    private final ISeckillVoucherService seckillVoucherService = mock(ISeckillVoucherService.class);
+    private final VoucherOrderMapper voucherOrderMapper = mock(VoucherOrderMapper.class);
+    private final SeckillProperties properties = new SeckillProperties();
+
+    private final Set<String> redisUsers = new TreeSet<>(List.of("2", "3", "4"));
+    private final TreeSet<Long> dbUsers = new TreeSet<>(List.of(1L, 2L, 3L));
+    private SeckillReconciler reconciler;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        properties.getReconcile().setBatchSize(2);
+        when(redis.<Object, Object>opsForStream()).thenReturn(streams);
+        when(redis.opsForSet()).thenReturn(sets);
+        quiescent("5-0", "5-0", 0);
+
+        when(voucherOrderMapper.scanUserIds(eq(VOUCHER_ID), anyLong(), any(Integer.class))).thenAnswer(invocation -> {
+            long lastUserId = invocation.getArgument(1);
+            int limit = invocation.getArgument(2);
+            List<Long> page = dbUsers.tailSet(lastUserId, false).stream().limit(limit).toList();
+            org.apache.ibatis.cursor.Cursor<Long> cursor = mock(org.apache.ibatis.cursor.Cursor.class);
+            when(cursor.iterator()).thenReturn(page.iterator());
+            doCallRealMethod().when(cursor).forEach(any());
+            return cursor;
+        });
+        when(voucherOrderMapper.selectUserIds(eq(VOUCHER_ID), any())).thenAnswer(invocation ->
+                ((Collection<Long>) invocation.getArgument(1)).stream().filter(dbUsers::contains).toList());
+        when(sets.isMember(eq(ORDER_KEY), any(Object[].class))).thenAnswer(invocation -> {
+            Map<Object, Boolean> result = new LinkedHashMap<>();
+            for (Object member : (Object[]) invocation.getRawArguments()[1]) {
+                result.put(member, redisUsers.contains(member.toString()));
+            }
+            return result;
+        });
+        when(sets.scan(eq(ORDER_KEY), any())).thenAnswer(invocation -> cursorOf(new ArrayList<>(redisUsers)));
+
+        when(seckillStock.shards(VOUCHER_ID)).thenReturn(1);
+        when(seckillStock.remaining(VOUCHER_ID)).thenReturn(4L);
+        SeckillVoucher voucher = new SeckillVoucher();
+        voucher.setVoucherId(VOUCHER_ID);
+        voucher.setStock(5);
+        when(seckillVoucherService.getById(VOUCHER_ID)).thenReturn(voucher);
+
+        reconciler = new SeckillReconciler();
+        ReflectionTestUtils.setField(reconciler, "stringRedisTemplate", redis);
+        ReflectionTestUtils.setField(reconciler, "seckillProperties", properties);
+        ReflectionTestUtils.setField(reconciler, "seckillStock", seckillStock);
+        ReflectionTestUtils.setField(reconciler, "seckillVoucherService", seckillVoucherService);
+        ReflectionTestUtils.setField(reconciler, "voucherOrderMapper", voucherOrderMapper);
+        ReflectionTestUtils.setField(reconciler, "transactionManager", mock(PlatformTransactionManager.class));
+        ReflectionTestUtils.setField(reconciler, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.invokeMethod(reconciler, "init");
+    }
+
+    @Test
+    void repairsMembershipAndStock() {
+        SeckillReconciler.Report report = reconciler.reconcile(VOUCHER_ID);
+
+        assertFalse(report.skipped());
+        // 用户1落库了但Redis里没有，补上
+        assertEquals(1, report.missingInRedis());
+        verify(sets).add(ORDER_KEY, "1");
+        // 用户4在Redis里但没有落库，删掉
+        assertEquals(1, report.orphanedInRedis());
+        verify(sets).remove(ORDER_KEY, "4");
+        // 数据库比Redis多1个库存
+        assertEquals(1, report.stockDrift());
+        verify(seckillStock).addStock(VOUCHER_ID, 1);
+    }
+
+    @Test
+    void reportOnlyDoesNotTouchRedis() {
+        properties.getReconcile().setRepair(false);
+
+        SeckillReconciler.Report report = reconciler.reconcile(VOUCHER_ID);
+
+        assertEquals(1, report.missingInRedis());
+        assertEquals(1, report.orphanedInRedis());
+        verify(sets, never()).add(anyString(), any(String[].class));
+        verify(sets, never()).remove(anyString(), any(Object[].class));
+        verify(seckillStock, never()).addStock(any(), any(Integer.class));
+    }
+
+    @Test
+    void skipsWhileOrdersAreInFlight() {
+        // 还有没确认的消息
+        quiescent("5-0", "5-0", 3);
+
+        SeckillReconciler.Report report = reconciler.reconcile(VOUCHER_ID);
+
+        assertTrue(report.skipped());
+        verify(sets, never()).remove(anyString(), any(Object[].class));
+        verify(seckillStock, never()).addStock(any(), any(Integer.class));
+    }
+
+    @Test
+    void skipsStockWhileBorrowIsInFlight() {
+        // 分片之间还有进行中的借库存，分片库存的合计比实际少
+        when(seckillStock.settleTransfers(eq(VOUCHER_ID), anyLong(), eq(true))).thenReturn(1);
+
+        SeckillReconciler.Report report = reconciler.reconcile(VOUCHER_ID);
+
+        assertTrue(report.skipped());
+        verify(seckillStock, never()).addStock(any(), any(Integer.class));
+    }
+
+    private void quiescent(String lastGenerated, String lastDelivered, long pending) {
+        when(streams.info("stream.orders")).thenReturn(
+                StreamInfo.XInfoStream.fromList(List.of("last-generated-id", lastGenerated)));
+        when(streams.groups("stream.orders")).thenReturn(StreamInfo.XInfoGroups.fromList(
+                List.of(List.of("name", "g1", "last-delivered-id", lastDelivered))));
+        when(streams.pending("stream.orders", "g1")).thenReturn(
+                new PendingMessagesSummary("g1", pending, Range.unbounded(), Map.of()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Cursor<String> cursorOf(List<String> values) {
+        Iterator<String> iterator = values.iterator();
+        Cursor<String> cursor = mock(Cursor.class);
+        when(cursor.hasNext()).thenAnswer(invocation -> iterator.hasNext());
+        when(cursor.next()).thenAnswer(invocation -> iterator.next());
+        return cursor;
+    }
+}
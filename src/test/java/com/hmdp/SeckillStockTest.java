@@ -0,0 +1,204 @@
+package com.hmdp;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.utils.IdGenerator;
+import com.hmdp.utils.IdGenerators;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillStock;
+import com.hmdp.utils.SeckillVoucherCache;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.SetOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 秒杀路径访问Redis的次数，Redis用计数的StringRedisTemplate代替，脚本的返回值由测试指定
+ */
+class SeckillStockTest {
+
+    private static final Long VOUCHER_ID = 10L;
+
+    private static final SeckillVoucherCache.Window WINDOW = new SeckillVoucherCache.Window(0, Long.MAX_VALUE);
+
+    private final CountingRedisTemplate redis = new CountingRedisTemplate();
+    private final IdGenerators idGenerators = mock(IdGenerators.class);
+    private SeckillStock seckillStock;
+
+    @BeforeEach
+    void setUp() {
+        seckillStock = new SeckillStock();
+        ReflectionTestUtils.setField(seckillStock, "stringRedisTemplate", redis);
+        ReflectionTestUtils.setField(seckillStock, "seckillProperties", new SeckillProperties());
+        ReflectionTestUtils.setField(seckillStock, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(seckillStock, "listenerContainer", mock(RedisMessageListenerContainer.class));
+        ReflectionTestUtils.setField(seckillStock, "idGenerators", idGenerators);
+        // 默认订单id在脚本里生成
+        when(idGenerators.forPrefix("order")).thenReturn(keyPrefix -> {
+            throw new AssertionError("订单id应该在脚本里生成");
+        });
+        ReflectionTestUtils.invokeMethod(seckillStock, "init");
+        seckillStock.init(VOUCHER_ID, 100);
+        redis.roundTrips.set(0);
+    }
+
+    @Test
+    void winnerNeedsOneRoundTrip() {
+        redis.reply = List.of(0L, 7L);
+        long before = RedisIdWorker.timestamp(LocalDateTime.now());
+
+        SeckillStock.Purchase purchase = seckillStock.tryPurchase(VOUCHER_ID, 1L, WINDOW);
+
+        assertEquals(0, purchase.result());
+        assertEquals(1, redis.roundTrips.get());
+        // 订单id由调用前的时间戳和脚本返回的序列号拼成
+        assertEquals(7L, purchase.orderId() & 0xFFFFFFFFL);
+        assertTrue((purchase.orderId() >>> 32) >= before);
+    }
+
+    @Test
+    void windowIsPassedToScript() {
+        redis.reply = List.of(3L);
+        SeckillVoucherCache.Window window = new SeckillVoucherCache.Window(1000L, 2000L);
+
+        // 本地时钟认为已经开始，Redis的时间还没到
+        assertEquals(3, seckillStock.tryPurchase(VOUCHER_ID, 1L, window).result());
+        assertEquals("1000", redis.lastArgs[3]);
+        assertEquals("2000", redis.lastArgs[4]);
+        // 不算卖完
+        assertFalse(seckillStock.isSoldOut(VOUCHER_ID));
+    }
+
+    @Test
+    void localOrderIdIsPassedToScript() {
+        IdGenerator local = new IdGenerator() {
+            @Override
+            public long nextId(String keyPrefix) {
+                return 42L;
+            }
+
+            @Override
+            public boolean isLocal() {
+                return true;
+            }
+        };
+        when(idGenerators.forPrefix("order")).thenReturn(local);
+        redis.reply = List.of(0L, 0L);
+
+        SeckillStock.Purchase purchase = seckillStock.tryPurchase(VOUCHER_ID, 1L, WINDOW);
+
+        assertEquals(42L, purchase.orderId());
+        assertEquals("42", redis.lastArgs[5]);
+        assertEquals(1, redis.roundTrips.get());
+    }
+
+    @Test
+    void rejectedRequestsNeedOneRoundTripAndNoOrderId() {
+        redis.reply = List.of(2L);
+        assertEquals(2, seckillStock.tryPurchase(VOUCHER_ID, 1L, WINDOW).result());
+        assertEquals(1, redis.roundTrips.get());
+
+        redis.reply = List.of(1L);
+        assertEquals(1, seckillStock.tryPurchase(VOUCHER_ID, 2L, WINDOW).result());
+        // 库存不足: 一次脚本，一次售罄广播
+        assertEquals(3, redis.roundTrips.get());
+
+        // 卖完之后本地直接拒绝
+        assertTrue(seckillStock.isSoldOut(VOUCHER_ID));
+        assertEquals(3, redis.roundTrips.get());
+        assertEquals(0, redis.counterIncrements.get());
+    }
+
+    @Test
+    void shardScriptOnlyTouchesOneSlot() {
+        SeckillProperties properties = new SeckillProperties();
+        properties.getStock().setShards(4);
+        properties.getStock().setMinStockPerShard(1);
+        ReflectionTestUtils.setField(seckillStock, "seckillProperties", properties);
+        seckillStock.init(20L, 100);
+        // 分片的券订单id在本地生成，即使配置的是Redis计数器
+        when(idGenerators.forPrefix("order")).thenReturn(keyPrefix -> 99L);
+        redis.reply = List.of(0L, 0L);
+
+        SeckillStock.Purchase purchase = seckillStock.tryPurchase(20L, 1L, WINDOW);
+
+        // 脚本只访问这个分片的key: 库存、下单用户、订单stream是同一个hash tag，没有共享的序列号key
+        String tag = "{20:" + SeckillStock.shard(1L, 4) + "}";
+        assertEquals(3, redis.lastKeys.size());
+        assertTrue(redis.lastKeys.stream().allMatch(key -> key.endsWith(tag)));
+        assertEquals("stream.orders:" + tag, redis.lastKeys.get(2));
+        assertEquals("99", redis.lastArgs[5]);
+        assertEquals(99L, purchase.orderId());
+    }
+
+    @Test
+    void replenishClearsSoldOut() {
+        redis.reply = List.of(1L);
+        seckillStock.tryPurchase(VOUCHER_ID, 1L, WINDOW);
+        assertTrue(seckillStock.isSoldOut(VOUCHER_ID));
+
+        seckillStock.addStock(VOUCHER_ID, 10);
+
+        assertFalse(seckillStock.isSoldOut(VOUCHER_ID));
+    }
+
+    /**
+     * 记录访问Redis的次数
+     */
+    @SuppressWarnings("unchecked")
+    private static class CountingRedisTemplate extends StringRedisTemplate {
+
+        final AtomicInteger roundTrips = new AtomicInteger();
+        final AtomicLong counterIncrements = new AtomicLong();
+        volatile List<Long> reply;
+        volatile Object[] lastArgs;
+        volatile List<String> lastKeys;
+
+        private final ValueOperations<String, String> valueOps = mock(ValueOperations.class);
+        private final SetOperations<String, String> setOps = mock(SetOperations.class);
+
+        @Override
+        public <T> T execute(RedisScript<T> script, List<String> keys, Object... args) {
+            roundTrips.incrementAndGet();
+            lastArgs = args;
+            lastKeys = keys;
+            if (reply.get(0) == 0L) {
+                counterIncrements.incrementAndGet();
+            }
+            return (T) reply;
+        }
+
+        @Override
+        public ValueOperations<String, String> opsForValue() {
+            roundTrips.incrementAndGet();
+            return valueOps;
+        }
+
+        @Override
+        public SetOperations<String, String> opsForSet() {
+            roundTrips.incrementAndGet();
+            return setOps;
+        }
+
+        @Override
+        public Long convertAndSend(String channel, Object message) {
+            roundTrips.incrementAndGet();
+            return 0L;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.hmdp;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.extension.conditions.query.QueryChainWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.utils.SeckillVoucherCache;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * 秒杀券的时间窗口，数据库里的秒杀券由测试指定
+ */
+class SeckillVoucherCacheTest {
+
+    private final ConcurrentSkipListMap<Long, SeckillVoucher> vouchers = new ConcurrentSkipListMap<>();
+    private final SeckillVoucherMapper seckillVoucherMapper = mock(SeckillVoucherMapper.class);
+    private final ISeckillVoucherService seckillVoucherService = mock(ISeckillVoucherService.class);
+    private SeckillVoucherCache cache;
+
+    @BeforeEach
+    void setUp() {
+        vouchers.put(1L, voucher(1L));
+        when(seckillVoucherMapper.selectList(any())).thenAnswer(this::selectVouchers);
+        when(seckillVoucherService.query()).thenAnswer(invocation -> new QueryChainWrapper<>(seckillVoucherMapper));
+        cache = new SeckillVoucherCache();
+        ReflectionTestUtils.setField(cache, "seckillVoucherService", seckillVoucherService);
+        ReflectionTestUtils.setField(cache, "stringRedisTemplate", mock(StringRedisTemplate.class));
+        ReflectionTestUtils.setField(cache, "listenerContainer", mock(RedisMessageListenerContainer.class));
+        ReflectionTestUtils.invokeMethod(cache, "init");
+    }
+
+    @Test
+    void unknownVoucherDoesNotHitDatabase() {
+        assertNotNull(cache.get(1L));
+        for (long id = 100; id < 200; id++) {
+            assertNull(cache.get(id));
+        }
+        // 只有启动时加载的一次
+        verify(seckillVoucherMapper, times(1)).selectList(any());
+        verify(seckillVoucherService, never()).getById(any());
+    }
+
+    @Test
+    void resyncPicksUpLostBroadcast() {
+        // 其他节点新增了券2，广播丢了
+        vouchers.put(2L, voucher(2L));
+        assertNull(cache.get(2L));
+
+        cache.resync();
+        assertNotNull(cache.get(2L));
+    }
+
+    private static SeckillVoucher voucher(Long voucherId) {
+        return new SeckillVoucher()
+                .setVoucherId(voucherId)
+                .setBeginTime(LocalDateTime.now().minusMinutes(1))
+                .setEndTime(LocalDateTime.now().plusHours(1));
+    }
+
+    /**
+     * SELECT voucher_id, begin_time, end_time FROM tb_seckill_voucher WHERE voucher_id > ? ORDER BY voucher_id
+     */
+    private List<SeckillVoucher> selectVouchers(InvocationOnMock invocation) {
+        QueryWrapper<?> wrapper = invocation.getArgument(0);
+        // 参数在生成SQL片段时才绑定
+        wrapper.getSqlSegment();
+        Map<String, Object> params = wrapper.getParamNameValuePairs();
+        long lastId = ((Number) params.values().iterator().next()).longValue();
+        return List.copyOf(vouchers.tailMap(lastId, false).values());
+    }
+}
@@ -0,0 +1,138 @@
+package com.hmdp;
+
+import com.hmdp.config.CacheProperties;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.ShopCacheWarmUp;
+import com.hmdp.utils.ShopCacheWarmUp.State;
+import org.apache.ibatis.cursor.Cursor;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_LOGICAL_TTL;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 店铺缓存预热的重试，数据库里的店铺和故障由测试指定
+ */
+class ShopCacheWarmUpTest {
+
+    private final ShopMapper shopMapper = mock(ShopMapper.class);
+    private final CacheClient cacheClient = mock(CacheClient.class);
+    private final CacheProperties cacheProperties = new CacheProperties();
+    private final List<Long> written = new ArrayList<>();
+    private ShopCacheWarmUp warmUp;
+
+    @BeforeEach
+    void setUp() {
+        when(shopMapper.selectCount(null)).thenReturn(5L);
+        doAnswer(invocation -> {
+            Map<?, ?> values = invocation.getArgument(0);
+            values.values().forEach(shop -> written.add(((Shop) shop).getId()));
+            return null;
+        }).when(cacheClient).setWithLogicalExpire(anyMap(), eq(CACHE_SHOP_LOGICAL_TTL), eq(TimeUnit.SECONDS));
+        cacheProperties.getWarmUp().setBatchSize(2);
+        cacheProperties.getWarmUp().setRate(0);
+        cacheProperties.getWarmUp().setRetryBackoff(Duration.ofMillis(1));
+        warmUp = new ShopCacheWarmUp();
+        ReflectionTestUtils.setField(warmUp, "shopMapper", shopMapper);
+        ReflectionTestUtils.setField(warmUp, "cacheClient", cacheClient);
+        ReflectionTestUtils.setField(warmUp, "transactionManager", mock(PlatformTransactionManager.class));
+        ReflectionTestUtils.setField(warmUp, "cacheProperties", cacheProperties);
+    }
+
+    @Test
+    void retryResumesFromLastId() throws InterruptedException {
+        AtomicInteger calls = new AtomicInteger();
+        when(shopMapper.scanAfterId(anyLong(), anyInt())).thenAnswer(invocation -> {
+            // 第二页失败一次
+            if (calls.incrementAndGet() == 2) {
+                throw new IllegalStateException("数据库连接断开");
+            }
+            return page(invocation.getArgument(0), invocation.getArgument(1));
+        });
+
+        assertEquals(State.COMPLETED, run());
+        // 重试从id 2之后继续，每个店铺只写一次
+        assertEquals(List.of(1L, 2L, 3L, 4L, 5L), written);
+        assertEquals(1, warmUp.progress().get("retries"));
+        assertEquals(Status.UP, warmUp.health().getStatus());
+    }
+
+    @Test
+    void exhaustedRetriesAreDegradedButReady() throws InterruptedException {
+        cacheProperties.getWarmUp().setMaxRetries(2);
+        when(shopMapper.scanAfterId(anyLong(), anyInt())).thenThrow(new IllegalStateException("数据库连接断开"));
+
+        assertEquals(State.FAILED, run());
+        assertEquals(2, warmUp.progress().get("retries"));
+        assertEquals(Status.UP, warmUp.health().getStatus());
+    }
+
+    private State run() throws InterruptedException {
+        warmUp.warmUp();
+        long deadline = System.currentTimeMillis() + 5000;
+        State state;
+        while ((state = (State) warmUp.progress().get("state")) == State.PENDING || state == State.RUNNING) {
+            if (System.currentTimeMillis() > deadline) {
+                break;
+            }
+            Thread.sleep(5);
+        }
+        return state;
+    }
+
+    /**
+     * id为1到5的店铺，SELECT * FROM tb_shop WHERE id > ? ORDER BY id LIMIT n
+     */
+    private static Cursor<Shop> page(long lastId, int limit) {
+        List<Shop> shops = new ArrayList<>();
+        for (long id = lastId + 1; id <= 5 && shops.size() < limit; id++) {
+            shops.add(new Shop().setId(id));
+        }
+        return new Cursor<>() {
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public boolean isConsumed() {
+                return false;
+            }
+
+            @Override
+            public int getCurrentIndex() {
+                return -1;
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public Iterator<Shop> iterator() {
+                return shops.iterator();
+            }
+        };
+    }
+}
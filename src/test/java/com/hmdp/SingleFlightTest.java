@@ -0,0 +1,56 @@
+package com.hmdp;
+
+import com.hmdp.utils.SingleFlight;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 请求合并，加载失败时等待的线程也要拿到结果
+ */
+class SingleFlightTest {
+
+    @Test
+    void errorInLoaderIsPropagatedToWaiters() throws Exception {
+        SingleFlight singleFlight = new SingleFlight(waiters -> {
+        });
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService es = Executors.newFixedThreadPool(2);
+        try {
+            Future<Object> leader = es.submit(() -> singleFlight.execute("k", () -> {
+                loading.countDown();
+                await(release);
+                throw new StackOverflowError();
+            }));
+            assertTrue(loading.await(5, TimeUnit.SECONDS));
+            Future<Object> waiter = es.submit(() -> singleFlight.execute("k", () -> "unused"));
+            // 等第二个线程加入等待
+            Thread.sleep(100);
+            release.countDown();
+
+            Throwable leaderError = assertThrows(Exception.class, () -> leader.get(5, TimeUnit.SECONDS)).getCause();
+            Throwable waiterError = assertThrows(Exception.class, () -> waiter.get(5, TimeUnit.SECONDS)).getCause();
+            assertInstanceOf(StackOverflowError.class, leaderError);
+            assertInstanceOf(StackOverflowError.class, waiterError);
+        } finally {
+            es.shutdownNow();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
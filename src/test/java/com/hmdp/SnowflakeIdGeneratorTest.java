@@ -0,0 +1,140 @@
+package com.hmdp;
+
+import com.hmdp.config.IdProperties;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SnowflakeIdGenerator;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * snowflake生成器，workerId租约用内存里的Map代替Redis
+ */
+class SnowflakeIdGeneratorTest {
+
+    private final Map<String, String> leases = new ConcurrentHashMap<>();
+    private final List<SnowflakeIdGenerator> generators = new ArrayList<>();
+    private final ExecutorService es = Executors.newFixedThreadPool(8);
+
+    @AfterEach
+    void tearDown() {
+        es.shutdownNow();
+        generators.forEach(SnowflakeIdGenerator::shutdown);
+    }
+
+    @Test
+    void nodesLeaseDifferentWorkerIds() {
+        SnowflakeIdGenerator node1 = newGenerator();
+        SnowflakeIdGenerator node2 = newGenerator();
+
+        assertNotEquals(node1.workerId(), node2.workerId());
+        assertEquals(2, leases.size());
+    }
+
+    @Test
+    void idsAreUniqueAndIncreasingPerThread() throws Exception {
+        SnowflakeIdGenerator node1 = newGenerator();
+        SnowflakeIdGenerator node2 = newGenerator();
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            SnowflakeIdGenerator generator = t % 2 == 0 ? node1 : node2;
+            futures.add(es.submit(() -> {
+                long last = 0;
+                for (int i = 0; i < 50000; i++) {
+                    long id = generator.nextId("order");
+                    assertTrue(id > last);
+                    last = id;
+                    ids.add(id);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        assertEquals(8 * 50000, ids.size());
+    }
+
+    @Test
+    void idsDoNotOverlapRedisIdWorker() {
+        SnowflakeIdGenerator generator = newGenerator();
+        long snowflakeId = generator.nextId("order");
+        // RedisIdWorker的ID最大也就是当前时间戳 << 32 | 2^32 - 1
+        long redisIdBound = RedisIdWorker.compose(RedisIdWorker.timestamp(LocalDateTime.now().plusYears(30)), 0xFFFFFFFFL);
+        assertTrue(snowflakeId > redisIdBound);
+        assertTrue(snowflakeId > 0);
+    }
+
+    @Test
+    void refusesIdsOnceLeaseCannotBeRenewed() throws Exception {
+        IdProperties.Snowflake config = new IdProperties.Snowflake();
+        config.setLeaseTtl(Duration.ofMillis(600));
+        config.setLeaseMargin(Duration.ofMillis(200));
+        config.setHeartbeat(Duration.ofMillis(50));
+        AtomicBoolean redisDown = new AtomicBoolean();
+        SnowflakeIdGenerator generator = newGenerator(config, redisDown);
+        generator.nextId("order");
+
+        // Redis不可用，租约在lease-ttl - lease-margin之内还能用
+        redisDown.set(true);
+        generator.nextId("order");
+        Thread.sleep(600);
+        assertThrows(IllegalStateException.class, () -> generator.nextId("order"));
+
+        // Redis恢复，续约成功后又能生成
+        redisDown.set(false);
+        Thread.sleep(200);
+        assertTrue(generator.nextId("order") > 0);
+    }
+
+    private SnowflakeIdGenerator newGenerator() {
+        return newGenerator(new IdProperties.Snowflake(), new AtomicBoolean());
+    }
+
+    @SuppressWarnings("unchecked")
+    private SnowflakeIdGenerator newGenerator(IdProperties.Snowflake config, AtomicBoolean redisDown) {
+        StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+        when(stringRedisTemplate.execute(any(RedisScript.class), anyList(), any(Object[].class))).thenAnswer(inv -> {
+            if (redisDown.get()) {
+                throw new RedisConnectionFailureException("redis down");
+            }
+            return 1L;
+        });
+        ValueOperations<String, String> ops = mock(ValueOperations.class);
+        when(stringRedisTemplate.opsForValue()).thenReturn(ops);
+        when(ops.setIfAbsent(anyString(), anyString(), anyLong(), eq(TimeUnit.MILLISECONDS)))
+                .thenAnswer(inv -> leases.putIfAbsent(inv.getArgument(0), inv.getArgument(1)) == null);
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(stringRedisTemplate, config);
+        generator.start();
+        generators.add(generator);
+        return generator;
+    }
+}
@@ -0,0 +1,75 @@
+package com.hmdp;
+
+import com.baomidou.mybatisplus.extension.conditions.update.UpdateChainWrapper;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.impl.VoucherOrderServiceImpl;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * 消费者写订单，数据库用InMemoryVoucherTable代替
+ */
+class VoucherOrderServiceImplTest {
+
+    private static final Long VOUCHER_ID = 1L;
+
+    private final InMemoryVoucherTable table = new InMemoryVoucherTable(2);
+    private final VoucherOrderServiceImpl voucherOrderService = voucherOrderService(table);
+
+    @Test
+    void redeliveredOrderAfterSoldOutIsNotSoldOut() {
+        assertTrue(voucherOrderService.createVoucherOrders(List.of(order(1, 1L), order(2, 2L))).isEmpty());
+        assertEquals(0, table.stock());
+
+        // 卖完之后订单1重复投递，和一个新订单一起，只有新订单库存不足
+        VoucherOrder late = order(3, 3L);
+        assertEquals(List.of(late), voucherOrderService.createVoucherOrders(List.of(order(1, 1L), late)));
+        assertEquals(0, table.stock());
+        assertEquals(2, table.persisted());
+    }
+
+    @Test
+    void redeliveredSingleOrderAfterSoldOutIsCreated() {
+        assertTrue(voucherOrderService.createVoucherOrder2(order(1, 1L)));
+        assertTrue(voucherOrderService.createVoucherOrder2(order(2, 2L)));
+
+        assertTrue(voucherOrderService.createVoucherOrder2(order(1, 1L)));
+        assertFalse(voucherOrderService.createVoucherOrder2(order(3, 3L)));
+        assertEquals(0, table.stock());
+        assertEquals(2, table.persisted());
+    }
+
+    private static VoucherOrder order(long id, Long userId) {
+        VoucherOrder order = new VoucherOrder();
+        order.setId(id);
+        order.setUserId(userId);
+        order.setVoucherId(VOUCHER_ID);
+        return order;
+    }
+
+    private static VoucherOrderServiceImpl voucherOrderService(InMemoryVoucherTable table) {
+        SeckillVoucherMapper seckillVoucherMapper = mock(SeckillVoucherMapper.class,
+                withSettings().defaultAnswer(table::update));
+        ISeckillVoucherService seckillVoucherService = mock(ISeckillVoucherService.class);
+        when(seckillVoucherService.update()).thenAnswer(invocation -> new UpdateChainWrapper<>(seckillVoucherMapper));
+        VoucherOrderMapper voucherOrderMapper = mock(VoucherOrderMapper.class,
+                withSettings().defaultAnswer(table::orders));
+
+        VoucherOrderServiceImpl voucherOrderService = new VoucherOrderServiceImpl();
+        ReflectionTestUtils.setField(voucherOrderService, "seckillVoucherService", seckillVoucherService);
+        ReflectionTestUtils.setField(voucherOrderService, "baseMapper", voucherOrderMapper);
+        return voucherOrderService;
+    }
+}
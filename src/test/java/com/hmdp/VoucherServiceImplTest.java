@@ -0,0 +1,65 @@
+package com.hmdp;
+
+import com.baomidou.mybatisplus.extension.conditions.update.UpdateChainWrapper;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.impl.VoucherServiceImpl;
+import com.hmdp.utils.SeckillStock;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * 补秒杀库存，事务由测试手动开启和提交
+ */
+class VoucherServiceImplTest {
+
+    private static final Long VOUCHER_ID = 1L;
+
+    private final SeckillStock seckillStock = mock(SeckillStock.class);
+    private final VoucherServiceImpl voucherService = new VoucherServiceImpl();
+
+    @BeforeEach
+    void setUp() {
+        SeckillVoucherMapper seckillVoucherMapper = mock(SeckillVoucherMapper.class);
+        when(seckillVoucherMapper.update(any(), any())).thenReturn(1);
+        ISeckillVoucherService seckillVoucherService = mock(ISeckillVoucherService.class);
+        when(seckillVoucherService.update()).thenAnswer(invocation -> new UpdateChainWrapper<>(seckillVoucherMapper));
+        ReflectionTestUtils.setField(voucherService, "seckillVoucherService", seckillVoucherService);
+        ReflectionTestUtils.setField(voucherService, "seckillStock", seckillStock);
+        TransactionSynchronizationManager.initSynchronization();
+    }
+
+    @AfterEach
+    void tearDown() {
+        TransactionSynchronizationManager.clearSynchronization();
+    }
+
+    @Test
+    void redisStockIsAddedAfterCommit() {
+        assertTrue(voucherService.addSeckillStock(VOUCHER_ID, 10).getSuccess());
+        verify(seckillStock, never()).addStock(VOUCHER_ID, 10);
+
+        TransactionSynchronizationManager.getSynchronizations().forEach(TransactionSynchronization::afterCommit);
+        verify(seckillStock).addStock(VOUCHER_ID, 10);
+    }
+
+    @Test
+    void rollbackLeavesRedisUntouched() {
+        assertTrue(voucherService.addSeckillStock(VOUCHER_ID, 10).getSuccess());
+
+        TransactionSynchronizationManager.getSynchronizations()
+                .forEach(synchronization -> synchronization.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK));
+        verify(seckillStock, never()).addStock(any(), any(Integer.class));
+    }
+}